@@ -1,15 +1,27 @@
 package com.cobolt.cli;
 
-import com.cobolt.core.Blob;
+import com.cobolt.core.AddPipeline;
+import com.cobolt.core.FsMonitor;
+import com.cobolt.core.IgnoreMatcher;
+import com.cobolt.core.Index;
+import com.cobolt.core.ObjectInserter;
 import com.cobolt.core.Repository;
-import com.cobolt.objects.FileUtils;
+import com.cobolt.core.WorkTreeScanner;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 
 /**
@@ -21,6 +33,9 @@ public class AddCommand implements Callable<Integer> {
     @Parameters(description = "Files to add (supports '.' for all files)")
     private List<String> files;
 
+    @Option(names = { "--stats" }, description = "Report how fast files were read and hashed")
+    private boolean stats;
+
     @Override
     public Integer call() {
         try {
@@ -31,26 +46,49 @@ public class AddCommand implements Callable<Integer> {
             }
 
             Repository repo = new Repository(repoRoot);
-            int filesAdded = 0;
-
-            for (String filePattern : files) {
-                if (filePattern.equals(".")) {
-                    // Add all files in working directory
-                    filesAdded += addDirectory(repo, repoRoot);
-                } else {
-                    Path filePath = repoRoot.resolve(filePattern);
-                    if (!Files.exists(filePath)) {
-                        OutputFormatter.warning("File not found: " + filePattern);
-                        continue;
-                    }
-
-                    if (Files.isDirectory(filePath)) {
-                        filesAdded += addDirectory(repo, filePath);
+            int filesAdded;
+            long start = System.nanoTime();
+
+            try (ObjectInserter inserter = repo.newObjectInserter();
+                 AddPipeline pipeline = new AddPipeline(repo, inserter)) {
+                for (String filePattern : files) {
+                    if (filePattern.equals(".")) {
+                        // Add all files in working directory
+                        addAll(repo, pipeline, repoRoot);
                     } else {
-                        addFile(repo, repoRoot, filePath);
-                        filesAdded++;
+                        Path filePath = repoRoot.resolve(filePattern);
+                        if (!Files.exists(filePath)) {
+                            // A tracked file that was deleted: stage the removal
+                            String relativePath = repoRoot.relativize(filePath.normalize()).toString();
+                            if (repo.getIndex().contains(relativePath)) {
+                                pipeline.remove(relativePath);
+                            } else {
+                                OutputFormatter.warning("File not found: " + filePattern);
+                            }
+                            continue;
+                        }
+
+                        if (Files.isDirectory(filePath)) {
+                            addDirectory(repo, pipeline, filePath);
+                        } else {
+                            pipeline.add(filePath);
+                        }
                     }
                 }
+                filesAdded = pipeline.finish();
+
+                // Objects must be on disk before the index refers to them
+                inserter.flush();
+
+                if (stats) {
+                    printStats(pipeline, System.nanoTime() - start);
+                }
+
+                if (inserter.getChunkedBlobCount() > 0) {
+                    OutputFormatter.info(String.format("Chunked %d large file(s): %s, %s new (dedup ratio %.1fx)",
+                            inserter.getChunkedBlobCount(), OutputFormatter.size(inserter.getChunkedBytes()),
+                            OutputFormatter.size(inserter.getNewChunkBytes()), inserter.getDedupRatio()));
+                }
             }
 
             repo.saveIndex();
@@ -58,7 +96,7 @@ public class AddCommand implements Callable<Integer> {
             if (filesAdded > 0) {
                 OutputFormatter.success("Added " + filesAdded + " file(s) to staging area");
             } else {
-                OutputFormatter.info("No files to add");
+                OutputFormatter.info("No changes to add");
             }
 
             return 0;
@@ -68,33 +106,99 @@ public class AddCommand implements Callable<Integer> {
         }
     }
 
-    private void addFile(Repository repo, Path repoRoot, Path filePath) throws Exception {
-        // Skip .cobolt directory
-        if (filePath.startsWith(repo.getCoboltDir())) {
+    private void printStats(AddPipeline pipeline, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        OutputFormatter.info(String.format("Read %d file(s), %s in %.2f s (%.0f files/s, %.1f MiB/s)",
+                pipeline.getFilesRead(), OutputFormatter.size(pipeline.getBytesRead()), seconds,
+                pipeline.getFilesRead() / seconds, pipeline.getBytesRead() / (1024.0 * 1024) / seconds));
+    }
+
+    /**
+     * Stage every change in the working tree. With a file-system monitor only
+     * the paths it reports changed are looked at.
+     */
+    private void addAll(Repository repo, AddPipeline pipeline, Path repoRoot) throws Exception {
+        Index index = repo.getIndex();
+        FsMonitor.Result changes = repo.queryFsMonitor();
+        if (changes == null || !changes.isComplete() || index.getMonitorToken() == null) {
+            addDirectory(repo, pipeline, repoRoot);
+            if (changes != null) {
+                index.setMonitorState(changes.getToken(), Collections.emptySet());
+            }
             return;
         }
 
-        String relativePath = repoRoot.relativize(filePath).toString();
-        byte[] content = FileUtils.readBytes(filePath);
+        NavigableSet<String> candidates = new TreeSet<>(index.getMonitorPaths());
+        candidates.addAll(changes.getPaths());
+
+        // Tracked files at or below a changed path
+        List<Index.IndexEntry> tracked = new ArrayList<>();
+        for (Index.IndexEntry entry : index.getEntries()) {
+            if (FsMonitor.covers(candidates, entry.getPath())) {
+                tracked.add(entry);
+            }
+        }
+        for (Index.IndexEntry entry : tracked) {
+            Path file = repoRoot.resolve(entry.getPath());
+            if (!Files.isRegularFile(file)) {
+                pipeline.remove(entry.getPath());
+            } else {
+                pipeline.add(file);
+            }
+        }
 
-        Blob blob = new Blob(content);
-        String blobId = repo.writeObject(blob);
+        // Untracked files among them, scanning changed directories
+        IgnoreMatcher ignore = IgnoreMatcher.load(repoRoot);
+        WorkTreeScanner scanner = new WorkTreeScanner(repoRoot, ignore);
+        for (String path : candidates) {
+            Path file = repoRoot.resolve(path);
+            List<Path> found;
+            if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                found = scanner.scan(file);
+            } else if (Files.isRegularFile(file) && !ignore.isIgnored(path, false)) {
+                found = Collections.singletonList(file);
+            } else {
+                continue;
+            }
+            for (Path untracked : found) {
+                if (!index.contains(repoRoot.relativize(untracked).toString())) {
+                    pipeline.add(untracked);
+                }
+            }
+        }
 
-        String mode = Files.isExecutable(filePath) ? "100755" : "100644";
-        repo.getIndex().add(relativePath, blobId, mode);
+        index.setMonitorState(changes.getToken(), Collections.emptySet());
     }
 
-    private int addDirectory(Repository repo, Path dir) throws Exception {
-        int count = 0;
-        List<Path> files = FileUtils.listFilesRecursively(dir);
+    /**
+     * Stage every file under a directory except ignored ones that are not tracked
+     */
+    private void addDirectory(Repository repo, AddPipeline pipeline, Path dir) throws Exception {
+        Path workDir = repo.getWorkingDir();
+        List<Path> files = new WorkTreeScanner(workDir, IgnoreMatcher.load(workDir)).scan(dir);
 
+        Set<String> scanned = new HashSet<>();
         for (Path file : files) {
-            if (!file.startsWith(repo.getCoboltDir())) {
-                addFile(repo, repo.getWorkingDir(), file);
-                count++;
-            }
+            scanned.add(workDir.relativize(file).toString());
+            pipeline.add(file);
         }
 
-        return count;
+        // Stage removals of tracked files under the directory that no longer
+        // exist, and changes to tracked files the scan skipped as ignored
+        String prefix = workDir.relativize(dir.normalize()).toString();
+        if (!prefix.isEmpty()) {
+            prefix += "/";
+        }
+        for (Index.IndexEntry entry : repo.getIndex().getEntries()) {
+            if (!entry.getPath().startsWith(prefix) || scanned.contains(entry.getPath())) {
+                continue;
+            }
+            Path file = workDir.resolve(entry.getPath());
+            if (!Files.isRegularFile(file)) {
+                pipeline.remove(entry.getPath());
+            } else {
+                pipeline.add(file);
+            }
+        }
     }
 }
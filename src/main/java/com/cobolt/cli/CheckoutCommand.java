@@ -2,6 +2,7 @@ package com.cobolt.cli;
 
 import com.cobolt.core.*;
 import com.cobolt.objects.FileUtils;
+import com.cobolt.objects.ObjectId;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Parameters;
 
@@ -89,38 +90,45 @@ public class CheckoutCommand implements Callable<Integer> {
         Commit commit = (Commit) obj;
         Tree tree = (Tree) repo.readObject(commit.getTreeId());
 
+        // In a partial repository, fetch every missing blob in one batch up front
+        int fetched = repo.prefetchTree(commit.getTree());
+        if (fetched > 0) {
+            OutputFormatter.info("Fetched " + fetched + " objects from " + repo.getPromisorRemote());
+        }
+
         // Clear current working directory (except .cobolt)
         clearWorkingDirectory(repo);
 
-        // Restore files from tree
-        restoreTree(repo, tree, repo.getWorkingDir());
-
-        // Clear staging area
+        // Restore files from tree, staging each with the stat data it was written with
         repo.getIndex().clear();
+        restoreTree(repo, commit.getTree(), tree, repo.getWorkingDir());
         repo.saveIndex();
     }
 
     private void clearWorkingDirectory(Repository repo) throws Exception {
-        List<Path> files = FileUtils.listFilesRecursively(repo.getWorkingDir());
+        // Nested repositories are pruned by the scanner, so they survive a checkout
+        List<Path> files = new WorkTreeScanner(repo.getWorkingDir()).scan(repo.getWorkingDir());
         for (Path file : files) {
-            if (!file.startsWith(repo.getCoboltDir())) {
-                FileUtils.deleteRecursively(file);
-            }
+            FileUtils.deleteRecursively(file);
         }
     }
 
-    private void restoreTree(Repository repo, Tree tree, Path currentDir) throws Exception {
+    private void restoreTree(Repository repo, ObjectId treeId, Tree tree, Path currentDir) throws Exception {
         for (Tree.TreeEntry entry : tree.getEntries()) {
             Path entryPath = currentDir.resolve(entry.getName());
 
             if (entry.isBlob()) {
-                Blob blob = (Blob) repo.readObject(entry.getId());
-                FileUtils.writeBytes(entryPath, blob.getContent());
+                repo.checkoutBlob(entry.getId(), entryPath);
+                String relativePath = repo.getWorkingDir().relativize(entryPath).toString();
+                repo.getIndex().add(relativePath, entry.getObjectId(), entry.getMode(), FileStat.of(entryPath));
             } else if (entry.isTree()) {
                 FileUtils.createDirectories(entryPath);
                 Tree subtree = (Tree) repo.readObject(entry.getId());
-                restoreTree(repo, subtree, entryPath);
+                restoreTree(repo, entry.getObjectId(), subtree, entryPath);
             }
         }
+
+        // The directory matches its tree, so the next commit can reuse it as is
+        repo.getIndex().putCachedTree(repo.getWorkingDir().relativize(currentDir).toString(), treeId);
     }
 }
@@ -23,7 +23,12 @@ import picocli.CommandLine.Option;
         RemoteCommand.class,
         PullCommand.class,
         PushCommand.class,
-        CredentialCommand.class
+        CredentialCommand.class,
+        MigrateCommand.class,
+        RepackCommand.class,
+        CompactCommand.class,
+        DissociateCommand.class,
+        FsMonitorCommand.class
 })
 public class CoboltCLI implements Runnable {
 
@@ -44,41 +44,59 @@ public class CommitCommand implements Callable<Integer> {
                 return 1;
             }
 
-            // Build tree from index
-            Tree rootTree = buildTreeFromIndex(repo);
-            String treeId = repo.writeObject(rootTree);
-
-            // Create commit
             Commit commit = new Commit();
-            commit.setTreeId(treeId);
-            commit.setMessage(message);
-
-            // Set author and committer
-            String userName = author != null ? author : System.getProperty("user.name", "Unknown");
-            commit.setAuthor(userName);
-            commit.setCommitter(userName);
-
-            // Set parent if HEAD exists
-            String headCommitId = repo.resolveRef("HEAD");
-            if (headCommitId != null) {
-                commit.addParent(headCommitId);
+            String commitId;
+            try (ObjectInserter inserter = repo.newObjectInserter()) {
+                // Build tree from index, rewriting only directories with changed entries
+                String treeId = repo.writeTree(inserter).name();
+
+                // The index persists across commits, so an unchanged tree means nothing was staged
+                String headCommitId = repo.resolveRef("HEAD");
+                if (headCommitId != null && ((Commit) repo.readObject(headCommitId)).getTreeId().equals(treeId)) {
+                    OutputFormatter.warning("Nothing to commit (no changes staged since the last commit)");
+                    OutputFormatter.info("Use 'cobolt add <file>' to stage changes");
+                    return 1;
+                }
+
+                // Create commit
+                commit.setTreeId(treeId);
+                commit.setMessage(message);
+
+                // Set author and committer
+                String userName = author != null ? author : System.getProperty("user.name", "Unknown");
+                commit.setAuthor(userName);
+                commit.setCommitter(userName);
+
+                // Set parent if HEAD exists
+                if (headCommitId != null) {
+                    commit.addParent(headCommitId);
+                }
+
+                commitId = inserter.insert(commit);
+
+                // Objects must be durable before the branch points at them
+                inserter.flush();
             }
 
-            String commitId = repo.writeObject(commit);
+            // Keep the trees just written cached for the next commit
+            repo.saveIndex();
 
             // Update branch ref
             String currentBranch = repo.getCurrentBranch();
             if (currentBranch != null) {
-                repo.createBranch(currentBranch, commitId);
+                // Only advance the branch from the commit we built on
+                List<String> parents = commit.getParentIds();
+                String expected = parents.isEmpty() ? null : parents.get(0);
+                if (!repo.updateBranch(currentBranch, expected, commitId)) {
+                    OutputFormatter.error("Branch " + currentBranch + " was updated by another process; "
+                            + "commit " + commit.getShortId() + " was not recorded");
+                    return 1;
+                }
             } else {
                 // Detached HEAD
                 repo.setHead(commitId, false);
             }
 
-            // Clear staging area
-            repo.getIndex().clear();
-            repo.saveIndex();
-
             OutputFormatter.blank();
             OutputFormatter.success("Created commit " + OutputFormatter.hash(commit.getShortId()));
 
@@ -100,45 +118,6 @@ public class CommitCommand implements Callable<Integer> {
         }
     }
 
-    private Tree buildTreeFromIndex(Repository repo) throws Exception {
-        Tree tree = new Tree();
-        Map<String, Tree> subtrees = new HashMap<>();
-
-        for (Index.IndexEntry entry : repo.getIndex().getEntries()) {
-            String path = entry.getPath();
-            String[] parts = path.split("/");
-
-            if (parts.length == 1) {
-                // File in root
-                tree.addEntry(parts[0], entry.getBlobId(), entry.getMode());
-            } else {
-                // File in subdirectory
-                String dirPath = String.join("/", Arrays.copyOf(parts, parts.length - 1));
-                String fileName = parts[parts.length - 1];
-
-                Tree subtree = subtrees.computeIfAbsent(dirPath, k -> new Tree());
-                subtree.addEntry(fileName, entry.getBlobId(), entry.getMode());
-            }
-        }
-
-        // Write subtrees and add to parent tree
-        for (Map.Entry<String, Tree> subtreeEntry : subtrees.entrySet()) {
-            String dirPath = subtreeEntry.getKey();
-            Tree subtree = subtreeEntry.getValue();
-            String subtreeId = repo.writeObject(subtree);
-
-            String[] parts = dirPath.split("/");
-            if (parts.length == 1) {
-                tree.addEntry(parts[0], subtreeId, "040000");
-            } else {
-                // Nested directories - simplified for now
-                tree.addEntry(dirPath, subtreeId, "040000");
-            }
-        }
-
-        return tree;
-    }
-
     private String formatTimestamp(long timestamp) {
         return DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
                 .withZone(ZoneId.systemDefault())
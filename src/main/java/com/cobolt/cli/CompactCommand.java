@@ -0,0 +1,55 @@
+package com.cobolt.cli;
+
+import com.cobolt.core.DeltaCompactor;
+import com.cobolt.core.Repository;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Compact object history into a delta-compressed archive pack
+ */
+@Command(name = "compact", description = "Archive object history into a delta-compressed pack")
+public class CompactCommand implements Callable<Integer> {
+
+    @Option(names = { "--window" }, description = "Number of preceding objects to try as delta bases (default: pack.window or 10)")
+    private Integer window;
+
+    @Option(names = { "--depth" }, description = "Maximum delta chain length (default: pack.depth or 50)")
+    private Integer depth;
+
+    @Override
+    public Integer call() {
+        try {
+            Path repoRoot = Repository.findRepositoryRoot(Paths.get("").toAbsolutePath());
+            if (repoRoot == null) {
+                OutputFormatter.error("Not a Cobolt repository");
+                return 1;
+            }
+
+            Repository repo = new Repository(repoRoot);
+            int effectiveWindow = window != null ? window : repo.getConfigInt("pack.window", DeltaCompactor.DEFAULT_WINDOW);
+            int effectiveDepth = depth != null ? depth : repo.getConfigInt("pack.depth", DeltaCompactor.DEFAULT_DEPTH);
+
+            OutputFormatter.progress("Compacting objects");
+            DeltaCompactor.Result result = repo.compact(effectiveWindow, effectiveDepth);
+            OutputFormatter.clearProgress();
+
+            if (result.getObjectCount() > 0) {
+                OutputFormatter.success("Archived " + result.getObjectCount() + " object(s), "
+                        + result.getDeltaCount() + " stored as deltas");
+            } else {
+                OutputFormatter.info("Nothing to compact");
+            }
+
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.clearProgress();
+            OutputFormatter.error("Failed to compact: " + e.getMessage());
+            return 1;
+        }
+    }
+}
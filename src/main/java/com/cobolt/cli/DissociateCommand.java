@@ -0,0 +1,43 @@
+package com.cobolt.cli;
+
+import com.cobolt.core.Repository;
+import picocli.CommandLine.Command;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Copy borrowed objects in from alternates and stop using them
+ */
+@Command(name = "dissociate", description = "Copy objects borrowed from alternates into this repository")
+public class DissociateCommand implements Callable<Integer> {
+
+    @Override
+    public Integer call() {
+        try {
+            Path repoRoot = Repository.findRepositoryRoot(Paths.get("").toAbsolutePath());
+            if (repoRoot == null) {
+                OutputFormatter.error("Not a Cobolt repository");
+                return 1;
+            }
+
+            Repository repo = new Repository(repoRoot);
+            if (repo.getAlternates().isEmpty()) {
+                OutputFormatter.info("Repository does not borrow objects from alternates");
+                return 0;
+            }
+
+            OutputFormatter.progress("Copying objects from alternates");
+            int copied = repo.dissociate();
+            OutputFormatter.clearProgress();
+
+            OutputFormatter.success("Copied " + copied + " object(s); alternates removed");
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.clearProgress();
+            OutputFormatter.error("Failed to dissociate: " + e.getMessage());
+            return 1;
+        }
+    }
+}
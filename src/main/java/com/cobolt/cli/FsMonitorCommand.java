@@ -0,0 +1,112 @@
+package com.cobolt.cli;
+
+import com.cobolt.core.FsMonitor;
+import com.cobolt.core.FsMonitorDaemon;
+import com.cobolt.core.Repository;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Start, stop or query the file-system monitor daemon
+ */
+@Command(name = "fsmonitor", description = "Manage the file-system monitor that speeds up status")
+public class FsMonitorCommand implements Callable<Integer> {
+
+    /** How long --start waits for the daemon to accept connections */
+    private static final long START_TIMEOUT_MILLIS = 10_000;
+
+    @Option(names = { "--start" }, description = "Start the daemon in the background")
+    private boolean start;
+
+    @Option(names = { "--stop" }, description = "Stop the daemon")
+    private boolean stop;
+
+    @Option(names = { "--run" }, description = "Run the daemon in the foreground")
+    private boolean run;
+
+    @Override
+    public Integer call() {
+        try {
+            Path repoRoot = Repository.findRepositoryRoot(Paths.get("").toAbsolutePath());
+            if (repoRoot == null) {
+                OutputFormatter.error("Not a Cobolt repository");
+                return 1;
+            }
+            Path coboltDir = repoRoot.resolve(".cobolt");
+
+            if (run) {
+                return runDaemon(repoRoot);
+            } else if (start) {
+                return startDaemon(repoRoot, coboltDir);
+            } else if (stop) {
+                if (FsMonitor.stop(coboltDir)) {
+                    OutputFormatter.success("File-system monitor stopped");
+                } else {
+                    OutputFormatter.info("File-system monitor is not running");
+                }
+                return 0;
+            }
+
+            if (FsMonitor.isRunning(coboltDir)) {
+                OutputFormatter.info("File-system monitor is running");
+            } else {
+                OutputFormatter.info("File-system monitor is not running");
+            }
+            if (!new Repository(repoRoot).getConfigBoolean("core.fsmonitor", false)) {
+                OutputFormatter.info("  (set core.fsmonitor=true for status and add to use it)");
+            }
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.error("File-system monitor failed: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private int runDaemon(Path repoRoot) throws IOException {
+        FsMonitorDaemon daemon = new FsMonitorDaemon(repoRoot);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                // Exiting anyway; a stale socket is detected by the next start
+            }
+        }));
+        daemon.run();
+        return 0;
+    }
+
+    /**
+     * Launch this command with --run as a separate process and wait until
+     * it answers
+     */
+    private int startDaemon(Path repoRoot, Path coboltDir) throws Exception {
+        if (FsMonitor.isRunning(coboltDir)) {
+            OutputFormatter.info("File-system monitor is already running");
+            return 0;
+        }
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Path log = coboltDir.resolve("fsmonitor.log");
+        Process process = new ProcessBuilder(java.toString(), "-cp", System.getProperty("java.class.path"),
+                CoboltCLI.class.getName(), "fsmonitor", "--run")
+                .directory(repoRoot.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                .start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (!FsMonitor.isRunning(coboltDir)) {
+            if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                OutputFormatter.error("File-system monitor did not start; see " + repoRoot.relativize(log));
+                return 1;
+            }
+            Thread.sleep(50);
+        }
+        OutputFormatter.success("File-system monitor started (pid " + process.pid() + ")");
+        return 0;
+    }
+}
@@ -3,6 +3,8 @@ package com.cobolt.cli;
 import com.cobolt.core.Commit;
 import com.cobolt.core.CoboltObject;
 import com.cobolt.core.Repository;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdSet;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
@@ -29,6 +31,9 @@ public class LogCommand implements Callable<Integer> {
     @Option(names = { "--graph" }, description = "Show commit graph")
     private boolean graph;
 
+    @Option(names = { "--cache-stats" }, description = "Print object cache statistics after the log")
+    private boolean cacheStats;
+
     @Override
     public Integer call() {
         try {
@@ -70,6 +75,10 @@ public class LogCommand implements Callable<Integer> {
 
             OutputFormatter.blank();
 
+            if (cacheStats) {
+                OutputFormatter.info("Object cache: " + repo.getObjectCacheStats());
+            }
+
             return 0;
         } catch (Exception e) {
             OutputFormatter.error("Failed to show log: " + e.getMessage());
@@ -110,18 +119,17 @@ public class LogCommand implements Callable<Integer> {
 
     private List<Commit> getCommitHistory(Repository repo, String startCommitId, Integer limit) throws Exception {
         List<Commit> commits = new ArrayList<>();
-        Set<String> visited = new HashSet<>();
-        Queue<String> queue = new LinkedList<>();
+        ObjectIdSet visited = new ObjectIdSet();
+        Queue<ObjectId> queue = new LinkedList<>();
 
-        queue.add(startCommitId);
+        queue.add(ObjectId.fromString(startCommitId));
 
         while (!queue.isEmpty() && (limit == null || commits.size() < limit)) {
-            String commitId = queue.poll();
+            ObjectId commitId = queue.poll();
 
-            if (visited.contains(commitId)) {
+            if (!visited.add(commitId)) {
                 continue;
             }
-            visited.add(commitId);
 
             CoboltObject obj = repo.readObject(commitId);
             if (!(obj instanceof Commit)) {
@@ -132,7 +140,7 @@ public class LogCommand implements Callable<Integer> {
             commits.add(commit);
 
             // Add parents to queue
-            for (String parentId : commit.getParentIds()) {
+            for (ObjectId parentId : commit.getParents()) {
                 if (!visited.contains(parentId)) {
                     queue.add(parentId);
                 }
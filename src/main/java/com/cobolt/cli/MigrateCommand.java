@@ -0,0 +1,44 @@
+package com.cobolt.cli;
+
+import com.cobolt.core.Repository;
+import picocli.CommandLine.Command;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Convert objects written by older Cobolt versions to the current format
+ */
+@Command(name = "migrate", description = "Rewrite legacy objects in the current object format")
+public class MigrateCommand implements Callable<Integer> {
+
+    @Override
+    public Integer call() {
+        try {
+            Path repoRoot = Repository.findRepositoryRoot(Paths.get("").toAbsolutePath());
+            if (repoRoot == null) {
+                OutputFormatter.error("Not a Cobolt repository");
+                return 1;
+            }
+
+            Repository repo = new Repository(repoRoot);
+
+            OutputFormatter.progress("Migrating objects");
+            int migrated = repo.migrateObjects();
+            OutputFormatter.clearProgress();
+
+            if (migrated > 0) {
+                OutputFormatter.success("Migrated " + migrated + " object(s) to the current format");
+            } else {
+                OutputFormatter.info("All objects are already in the current format");
+            }
+
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.clearProgress();
+            OutputFormatter.error("Failed to migrate objects: " + e.getMessage());
+            return 1;
+        }
+    }
+}
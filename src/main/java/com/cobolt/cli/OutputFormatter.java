@@ -149,6 +149,23 @@ public class OutputFormatter {
         return branchName;
     }
 
+    /**
+     * Format a byte count with a binary unit (e.g. "12.3 MiB")
+     */
+    public static String size(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = { "KiB", "MiB", "GiB", "TiB" };
+        double value = bytes;
+        int unit = -1;
+        do {
+            value /= 1024;
+            unit++;
+        } while (value >= 1024 && unit < units.length - 1);
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
     /**
      * Print horizontal separator
      */
@@ -0,0 +1,44 @@
+package com.cobolt.cli;
+
+import com.cobolt.core.Repository;
+import picocli.CommandLine.Command;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Pack loose objects into a single pack file
+ */
+@Command(name = "repack", description = "Pack reachable loose objects into a pack file")
+public class RepackCommand implements Callable<Integer> {
+
+    @Override
+    public Integer call() {
+        try {
+            Path repoRoot = Repository.findRepositoryRoot(Paths.get("").toAbsolutePath());
+            if (repoRoot == null) {
+                OutputFormatter.error("Not a Cobolt repository");
+                return 1;
+            }
+
+            Repository repo = new Repository(repoRoot);
+
+            OutputFormatter.progress("Packing objects");
+            int packed = repo.repack();
+            OutputFormatter.clearProgress();
+
+            if (packed > 0) {
+                OutputFormatter.success("Packed " + packed + " object(s)");
+            } else {
+                OutputFormatter.info("No loose objects to pack");
+            }
+
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.clearProgress();
+            OutputFormatter.error("Failed to repack: " + e.getMessage());
+            return 1;
+        }
+    }
+}
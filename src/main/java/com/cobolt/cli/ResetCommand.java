@@ -1,12 +1,20 @@
 package com.cobolt.cli;
 
+import com.cobolt.core.Commit;
+import com.cobolt.core.Index;
 import com.cobolt.core.Repository;
+import com.cobolt.core.Tree;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Parameters;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 
 /**
@@ -32,10 +40,22 @@ public class ResetCommand implements Callable<Integer> {
 
             Repository repo = new Repository(repoRoot);
 
+            // The index persists across commits, so unstaging restores the HEAD version
+            Map<String, Tree.TreeEntry> headEntries = readHeadEntries(repo);
+            Index index = repo.getIndex();
+
             if (files == null || files.isEmpty()) {
                 // Reset all staged files
-                int count = repo.getIndex().getEntries().size();
-                repo.getIndex().clear();
+                int count = 0;
+                Set<String> paths = new TreeSet<>(headEntries.keySet());
+                for (Index.IndexEntry entry : index.getEntries()) {
+                    paths.add(entry.getPath());
+                }
+                for (String path : paths) {
+                    if (resetPath(index, path, headEntries.get(path))) {
+                        count++;
+                    }
+                }
                 repo.saveIndex();
 
                 OutputFormatter.success("Unstaged " + count + " file(s)");
@@ -43,8 +63,7 @@ public class ResetCommand implements Callable<Integer> {
                 // Reset specific files
                 int count = 0;
                 for (String file : files) {
-                    if (repo.getIndex().contains(file)) {
-                        repo.getIndex().remove(file);
+                    if (resetPath(index, file, headEntries.get(file))) {
                         count++;
                     }
                 }
@@ -63,4 +82,35 @@ public class ResetCommand implements Callable<Integer> {
             return 1;
         }
     }
+
+    private Map<String, Tree.TreeEntry> readHeadEntries(Repository repo) throws Exception {
+        String headCommitId = repo.resolveRef("HEAD");
+        if (headCommitId == null) {
+            return Collections.emptyMap();
+        }
+        Commit head = (Commit) repo.readObject(headCommitId);
+        return repo.readTreeEntries(head.getTree());
+    }
+
+    /**
+     * Point a path's index entry back at its HEAD version, or drop it if HEAD
+     * does not have the path. Returns false if it already matched HEAD.
+     */
+    private boolean resetPath(Index index, String path, Tree.TreeEntry headEntry) throws IOException {
+        Index.IndexEntry entry = index.getEntry(path);
+        if (headEntry == null) {
+            if (entry == null) {
+                return false;
+            }
+            index.remove(path);
+            return true;
+        }
+        if (entry != null && entry.getObjectId().equals(headEntry.getObjectId())
+                && entry.getMode().equals(headEntry.getMode())) {
+            return false;
+        }
+        // The working file still holds the staged content, so its stat data no longer applies
+        index.add(path, headEntry.getObjectId(), headEntry.getMode());
+        return true;
+    }
 }
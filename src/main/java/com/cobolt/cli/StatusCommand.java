@@ -1,15 +1,24 @@
 package com.cobolt.cli;
 
+import com.cobolt.core.Commit;
+import com.cobolt.core.FsMonitor;
+import com.cobolt.core.IgnoreMatcher;
 import com.cobolt.core.Index;
 import com.cobolt.core.Repository;
-import com.cobolt.objects.FileUtils;
+import com.cobolt.core.StatusEngine;
+import com.cobolt.core.WorkTreeScanner;
+import com.cobolt.objects.ObjectId;
 import picocli.CommandLine.Command;
 
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Show working tree status
@@ -38,84 +47,178 @@ public class StatusCommand implements Callable<Integer> {
             }
             OutputFormatter.blank();
 
-            // Get staged files
-            Set<String> stagedFiles = new HashSet<>();
-            for (Index.IndexEntry entry : repo.getIndex().getEntries()) {
-                stagedFiles.add(entry.getPath());
+            // Compare the index against HEAD for staged changes, printing them as they are found
+            Index index = repo.getIndex();
+            ObjectId headTree = null;
+            String headCommitId = repo.resolveRef("HEAD");
+            if (headCommitId != null) {
+                headTree = ((Commit) repo.readObject(headCommitId)).getTree();
             }
-
-            // Get all files in working directory
-            List<Path> workingFiles = FileUtils.listFilesRecursively(repoRoot);
-            Set<String> workingPaths = new HashSet<>();
-
-            for (Path file : workingFiles) {
-                if (!file.startsWith(repo.getCoboltDir())) {
-                    String relativePath = repoRoot.relativize(file).toString();
-                    workingPaths.add(relativePath);
+            Section staged = new Section("Changes to be committed:", "  (use 'cobolt reset <file>...' to unstage)");
+            Section unstaged = new Section("Changes not staged for commit:",
+                    "  (use 'cobolt add <file>...' to update what will be committed)");
+            List<String> mismatched = new ArrayList<>();
+            StatusEngine.Listener listener = new StatusEngine.Listener() {
+                @Override
+                public void staged(String path, StatusEngine.Change change) {
+                    staged.print(format(path, change));
                 }
-            }
 
-            // Categorize files
-            List<String> staged = new ArrayList<>();
-            List<String> unstaged = new ArrayList<>();
-            List<String> untracked = new ArrayList<>();
+                @Override
+                public void unstaged(String path, StatusEngine.Change change) {
+                    mismatched.add(path);
+                    unstaged.print(OutputFormatter.modified(label(path, change)));
+                }
+            };
+            StatusEngine engine = new StatusEngine(repo);
+            engine.diffHeadToIndex(headTree, listener);
+            staged.end();
 
-            for (String path : stagedFiles) {
-                staged.add(path);
+            // Compare the working tree against the index, hashing only files whose stat data changed.
+            // With a file-system monitor only the paths it reports changed need a look.
+            Set<String> stagedFiles = new HashSet<>();
+            List<Index.IndexEntry> examined = new ArrayList<>();
+            FsMonitor.Result changes = repo.queryFsMonitor();
+            String token = index.getMonitorToken();
+            boolean incremental = changes != null && changes.isComplete() && token != null;
+            NavigableSet<String> candidates = new TreeSet<>();
+            if (incremental) {
+                candidates.addAll(index.getMonitorPaths());
+                candidates.addAll(changes.getPaths());
             }
-
-            for (String path : workingPaths) {
-                if (!stagedFiles.contains(path)) {
-                    untracked.add(path);
+            for (Index.IndexEntry entry : index.getEntries()) {
+                stagedFiles.add(entry.getPath());
+                if (!incremental || FsMonitor.covers(candidates, entry.getPath())) {
+                    examined.add(entry);
                 }
             }
-
-            // Display sections
-            if (!staged.isEmpty()) {
-                OutputFormatter.header("Changes to be committed:");
-                OutputFormatter.info("  (use 'cobolt reset <file>...' to unstage)");
-                OutputFormatter.blank();
-
-                Collections.sort(staged);
-                for (String file : staged) {
-                    System.out.println("  " + OutputFormatter.added(file));
+            boolean refreshed = engine.diffIndexToWorkTree(examined, listener);
+            unstaged.end();
+
+            IgnoreMatcher ignore = IgnoreMatcher.load(repoRoot);
+            boolean useUntrackedCache = repo.getConfigBoolean("core.untrackedCache", false);
+            List<String> untracked;
+            if (incremental) {
+                untracked = findUntracked(repoRoot, ignore, candidates, stagedFiles);
+            } else {
+                // Scan the working tree in parallel for files neither in the index nor ignored
+                Queue<String> found = new ConcurrentLinkedQueue<>();
+                WorkTreeScanner scanner = new WorkTreeScanner(repoRoot, ignore);
+                if (useUntrackedCache) {
+                    // Directories unchanged since the last scan are not listed again
+                    scanner.scanUntracked(index.getUntrackedCache(), stagedFiles::contains, found::add);
+                } else {
+                    scanner.scan(repoRoot, file -> {
+                        String relativePath = repoRoot.relativize(file).toString();
+                        if (!stagedFiles.contains(relativePath)) {
+                            found.add(relativePath);
+                        }
+                    });
                 }
-                OutputFormatter.blank();
+                untracked = new ArrayList<>(found);
             }
+            Section untrackedSection = new Section("Untracked files:",
+                    "  (use 'cobolt add <file>...' to include in what will be committed)");
+            Collections.sort(untracked);
+            for (String file : untracked) {
+                untrackedSection.print(OutputFormatter.dim(file));
+            }
+            untrackedSection.end();
 
-            if (!unstaged.isEmpty()) {
-                OutputFormatter.header("Changes not staged for commit:");
-                OutputFormatter.info("  (use 'cobolt add <file>...' to update what will be committed)");
+            if (staged.count == 0 && unstaged.count == 0 && untracked.isEmpty()) {
+                OutputFormatter.info("Nothing to commit, working tree clean");
                 OutputFormatter.blank();
+            }
 
-                Collections.sort(unstaged);
-                for (String file : unstaged) {
-                    System.out.println("  " + OutputFormatter.modified(file));
+            // Remember what did not match, so the next status only adds what changes from here on
+            boolean monitorChanged = false;
+            if (changes != null) {
+                mismatched.addAll(untracked);
+                Set<String> paths = new TreeSet<>(mismatched);
+                if (!incremental || !changes.getPaths().isEmpty() || !paths.equals(index.getMonitorPaths())) {
+                    index.setMonitorState(changes.getToken(), paths);
+                    monitorChanged = true;
                 }
-                OutputFormatter.blank();
+            }
+            if (refreshed || monitorChanged || (useUntrackedCache && index.getUntrackedCache().isChanged())) {
+                repo.saveIndex();
             }
 
-            if (!untracked.isEmpty()) {
-                OutputFormatter.header("Untracked files:");
-                OutputFormatter.info("  (use 'cobolt add <file>...' to include in what will be committed)");
-                OutputFormatter.blank();
+            return 0;
+        } catch (Exception e) {
+            OutputFormatter.error("Failed to get status: " + e.getMessage());
+            return 1;
+        }
+    }
 
-                Collections.sort(untracked);
-                for (String file : untracked) {
-                    System.out.println("  " + OutputFormatter.dim(file));
-                }
+    private static String label(String path, StatusEngine.Change change) {
+        return change == StatusEngine.Change.DELETED ? path + " (deleted)" : path;
+    }
+
+    /**
+     * Format a staged change with the marker and color of its type
+     */
+    private static String format(String path, StatusEngine.Change change) {
+        switch (change) {
+            case ADDED:
+                return OutputFormatter.added(label(path, change));
+            case DELETED:
+                return OutputFormatter.removed(label(path, change));
+            default:
+                return OutputFormatter.modified(label(path, change));
+        }
+    }
+
+    /**
+     * Output section whose header is printed with its first line, so
+     * changes show up as they are found
+     */
+    private static final class Section {
+        private final String header;
+        private final String hint;
+        int count;
+
+        Section(String header, String hint) {
+            this.header = header;
+            this.hint = hint;
+        }
+
+        void print(String line) {
+            if (count++ == 0) {
+                OutputFormatter.header(header);
+                OutputFormatter.info(hint);
                 OutputFormatter.blank();
             }
+            System.out.println("  " + line);
+        }
 
-            if (staged.isEmpty() && unstaged.isEmpty() && untracked.isEmpty()) {
-                OutputFormatter.info("Nothing to commit, working tree clean");
+        void end() {
+            if (count > 0) {
                 OutputFormatter.blank();
             }
+        }
+    }
 
-            return 0;
-        } catch (Exception e) {
-            OutputFormatter.error("Failed to get status: " + e.getMessage());
-            return 1;
+    /**
+     * Untracked files among the changed paths; a changed directory is scanned
+     */
+    private List<String> findUntracked(Path repoRoot, IgnoreMatcher ignore, Set<String> candidates,
+                                       Set<String> stagedFiles) throws IOException {
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        WorkTreeScanner scanner = new WorkTreeScanner(repoRoot, ignore);
+        for (String path : candidates) {
+            Path file = repoRoot.resolve(path);
+            if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                scanner.scan(file, f -> {
+                    String relativePath = repoRoot.relativize(f).toString();
+                    if (!stagedFiles.contains(relativePath)) {
+                        found.add(relativePath);
+                    }
+                });
+            } else if (Files.isRegularFile(file) && !stagedFiles.contains(path) && !ignore.isIgnored(path, false)) {
+                found.add(path);
+            }
         }
+        return new ArrayList<>(found);
     }
 }
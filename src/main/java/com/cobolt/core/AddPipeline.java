@@ -0,0 +1,293 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stages working-tree files through a pipeline of bounded thread pools, so
+ * reading, hashing and writing of different files overlap instead of taking
+ * turns.
+ *
+ * The caller is the scanner and submits files in any order. A pool of I/O
+ * threads stats each file, skips it if its stat data still matches its
+ * entry, and reads it if it is small. A pool with a thread per core hashes
+ * and compresses it, streaming a large file to a temp object file instead.
+ * A single writer thread queues it in the {@link ObjectInserter}, which is
+ * not thread-safe and flushes in batches. Both the files in flight and the
+ * bytes read but not yet queued are capped, so submitting blocks while the
+ * later stages catch up and memory stays flat however many files there are.
+ *
+ * The index is left alone until {@link #finish}, which applies every update
+ * and removal in one batch on the calling thread.
+ */
+public class AddPipeline implements Closeable {
+
+    /** Files submitted but not yet through every stage */
+    static final int MAX_FILES_IN_FLIGHT = 1024;
+
+    /** Bytes read into memory but not yet queued for writing */
+    static final int MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+    /** Threads reading files; they mostly wait on the disk, so more than there are cores */
+    static final int READER_THREADS = 8;
+
+    private final Index index;
+    private final Path workTree;
+    private final Path coboltDir;
+    private final ObjectInserter inserter;
+    private final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS);
+    private final ExecutorService hashers;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final Semaphore filesInFlight = new Semaphore(MAX_FILES_IN_FLIGHT);
+    private final Semaphore bytesInFlight = new Semaphore(MAX_BYTES_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /** Paths already submitted, so a path named twice is added once */
+    private final Set<String> submitted = new HashSet<>();
+    private final Set<String> removals = new LinkedHashSet<>();
+
+    /** Entries to apply; only touched by the writer thread until finish */
+    private final List<Index.IndexEntry> updates = new ArrayList<>();
+
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    public AddPipeline(Repository repo, ObjectInserter inserter) {
+        this(repo, inserter, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AddPipeline(Repository repo, ObjectInserter inserter, int parallelism) {
+        this.index = repo.getIndex();
+        this.workTree = repo.getWorkingDir();
+        this.coboltDir = repo.getCoboltDir();
+        this.inserter = inserter;
+        this.hashers = Executors.newFixedThreadPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Submit a file to be staged, blocking while too many are in flight.
+     * Files in the .cobolt directory are ignored.
+     */
+    public void add(Path file) throws IOException {
+        if (file.startsWith(coboltDir)) {
+            return;
+        }
+        String path = workTree.relativize(file).toString();
+        if (!submitted.add(path)) {
+            return;
+        }
+        checkFailure();
+        acquire(filesInFlight, 1);
+
+        Item item = new Item(file, path);
+        CompletableFuture.runAsync(() -> read(item), readers)
+                .thenRunAsync(() -> prepare(item), hashers)
+                .thenRunAsync(() -> write(item), writer)
+                .whenComplete((result, e) -> done(item, e));
+    }
+
+    /**
+     * Stage the removal of a tracked path
+     */
+    public void remove(String path) {
+        if (submitted.add(path)) {
+            removals.add(path);
+        }
+    }
+
+    /**
+     * Wait for every submitted file, then update the index. Returns the
+     * number of entries that were added, changed or removed.
+     */
+    public int finish() throws IOException {
+        awaitAll();
+        checkFailure();
+
+        int changed = 0;
+        for (Index.IndexEntry update : updates) {
+            Index.IndexEntry existing = index.getEntry(update.getPath());
+            index.add(update.getPath(), update.getObjectId(), update.getMode(), update.getStat());
+            if (existing == null || !existing.getObjectId().equals(update.getObjectId())
+                    || !existing.getMode().equals(update.getMode())) {
+                changed++;
+            }
+        }
+        for (String path : removals) {
+            index.remove(path);
+            changed++;
+        }
+        updates.clear();
+        removals.clear();
+        return changed;
+    }
+
+    /**
+     * Number of files read and hashed so far
+     */
+    public long getFilesRead() {
+        return filesRead.get();
+    }
+
+    /**
+     * Bytes of file content read and hashed so far
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Stop the pipeline, discarding files not yet written
+     */
+    @Override
+    public void close() throws IOException {
+        failure.compareAndSet(null, new IOException("Add pipeline closed"));
+        filesInFlight.acquireUninterruptibly(MAX_FILES_IN_FLIGHT);
+        filesInFlight.release(MAX_FILES_IN_FLIGHT);
+        readers.shutdown();
+        hashers.shutdown();
+        writer.shutdown();
+    }
+
+    /**
+     * Reader stage: stat the file and read it unless it is unchanged or large
+     */
+    private void read(Item item) {
+        if (failure.get() != null) {
+            return;
+        }
+        try {
+            // Stat before reading, so an edit made while hashing shows up as a change later
+            item.stat = FileStat.of(item.file);
+            Index.IndexEntry existing = index.getEntry(item.path);
+            if (existing != null && index.isUnchanged(existing, item.stat)) {
+                return;
+            }
+            item.mode = Files.isExecutable(item.file) ? "100755" : "100644";
+            if (item.stat.getSize() < Repository.STREAM_THRESHOLD) {
+                int size = (int) item.stat.getSize();
+                acquire(bytesInFlight, size);
+                item.reserved = size;
+                item.content = Files.readAllBytes(item.file);
+            }
+            item.wanted = true;
+            filesRead.incrementAndGet();
+            bytesRead.addAndGet(item.stat.getSize());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hasher stage: hash and compress what was read, or stream a large file
+     */
+    private void prepare(Item item) {
+        if (!item.wanted || failure.get() != null) {
+            return;
+        }
+        try {
+            item.blob = item.content != null ? inserter.prepareBlob(item.content) : inserter.prepareBlob(item.file);
+            item.content = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writer stage: queue the blob and record the entry to apply
+     */
+    private void write(Item item) {
+        if (item.blob == null || failure.get() != null) {
+            return;
+        }
+        try {
+            ObjectId blobId = ObjectId.fromString(inserter.insert(item.blob));
+            item.blob = null;
+            updates.add(new Index.IndexEntry(item.path, blobId, item.mode, item.stat));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void done(Item item, Throwable e) {
+        try {
+            if (e != null) {
+                failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+            }
+            if (item.blob != null) {
+                item.blob.discard();
+            }
+        } catch (IOException discardFailure) {
+            failure.compareAndSet(null, discardFailure);
+        } finally {
+            item.content = null;
+            bytesInFlight.release(item.reserved);
+            filesInFlight.release();
+        }
+    }
+
+    private void awaitAll() throws IOException {
+        acquire(filesInFlight, MAX_FILES_IN_FLIGHT);
+        filesInFlight.release(MAX_FILES_IN_FLIGHT);
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure.get();
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) cause).getCause();
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        throw new IOException("Failed to add files", cause);
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws IOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while adding files", e);
+        }
+    }
+
+    /**
+     * One file on its way through the stages, each of which runs after the
+     * one before has finished with it
+     */
+    private static final class Item {
+        final Path file;
+        final String path;
+        FileStat stat;
+        String mode;
+        boolean wanted;
+        int reserved;
+        byte[] content;
+        ObjectInserter.PreparedBlob blob;
+
+        Item(Path file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+    }
+}
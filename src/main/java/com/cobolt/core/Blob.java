@@ -1,6 +1,9 @@
 package com.cobolt.core;
 
+import com.cobolt.objects.HashUtils;
+
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Blob object representing file content
@@ -18,6 +21,17 @@ public class Blob extends CoboltObject {
         this.data = content.getBytes(StandardCharsets.UTF_8);
     }
 
+    private Blob(byte[] data, int offset, int length) {
+        this.data = Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    /**
+     * Parse blob from canonical content bytes
+     */
+    static Blob parse(byte[] data, int offset, int length) {
+        return new Blob(data, offset, length);
+    }
+
     @Override
     public String getType() {
         return "blob";
@@ -28,6 +42,18 @@ public class Blob extends CoboltObject {
         return data.clone();
     }
 
+    @Override
+    public void computeId() {
+        this.id = HashUtils.hashObject(getType(), data);
+    }
+
+    /**
+     * Direct access to the content array for zero-copy readers; must not be modified
+     */
+    byte[] data() {
+        return data;
+    }
+
     /**
      * Get content as string
      */
@@ -0,0 +1,129 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stored form of a large blob split into content-defined chunks.
+ *
+ * The manifest is stored under the ID of the whole blob with type "chunked",
+ * so the blob keeps the ID its content hashes to and tree entries, status and
+ * merge never see the difference. Its body is the blob size (8 bytes) followed
+ * by one entry per chunk: the raw chunk ID (20 bytes) and chunk length (4 bytes).
+ * The chunks themselves are ordinary blobs, shared by every version that
+ * contains them.
+ */
+class ChunkManifest {
+
+    static final String TYPE = "chunked";
+
+    private static final byte[] TYPE_PREFIX = (TYPE + " ").getBytes(StandardCharsets.US_ASCII);
+    private static final int ENTRY_LENGTH = ObjectId.LENGTH + 4;
+
+    private long size;
+    private final List<ObjectId> chunkIds;
+    private final List<Integer> chunkLengths;
+
+    ChunkManifest() {
+        this(0, new ArrayList<>(), new ArrayList<>());
+    }
+
+    private ChunkManifest(long size, List<ObjectId> chunkIds, List<Integer> chunkLengths) {
+        this.size = size;
+        this.chunkIds = chunkIds;
+        this.chunkLengths = chunkLengths;
+    }
+
+    /**
+     * Check if stored object bytes hold a manifest
+     */
+    static boolean isManifest(byte[] data) {
+        if (data.length < TYPE_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < TYPE_PREFIX.length; i++) {
+            if (data[i] != TYPE_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the stored bytes of a manifest ("chunked len\0body")
+     */
+    static ChunkManifest parse(String id, byte[] data) throws IOException {
+        int offset = ObjectCodec.indexOf(data, (byte) 0, 0, data.length) + 1;
+        int length = data.length - offset;
+        if (offset == 0 || length < 8 || (length - 8) % ENTRY_LENGTH != 0) {
+            throw new IOException("Corrupt chunk manifest: " + id);
+        }
+
+        ByteBuffer body = ByteBuffer.wrap(data, offset, length);
+        long size = body.getLong();
+        int count = (length - 8) / ENTRY_LENGTH;
+        List<ObjectId> ids = new ArrayList<>(count);
+        List<Integer> lengths = new ArrayList<>(count);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            ids.add(ObjectId.fromRaw(data, body.position()));
+            body.position(body.position() + ObjectId.LENGTH);
+            int chunkLength = body.getInt();
+            lengths.add(chunkLength);
+            total += chunkLength;
+        }
+        if (total != size) {
+            throw new IOException("Chunk manifest sizes do not add up: " + id);
+        }
+        return new ChunkManifest(size, ids, lengths);
+    }
+
+    /**
+     * Append the next chunk of the blob
+     */
+    void add(ObjectId chunkId, int length) {
+        chunkIds.add(chunkId);
+        chunkLengths.add(length);
+        size += length;
+    }
+
+    /**
+     * Encode as stored object bytes ("chunked len\0body")
+     */
+    byte[] encode() {
+        int bodyLength = 8 + chunkIds.size() * ENTRY_LENGTH;
+        byte[] header = HashUtils.objectHeader(TYPE, bodyLength);
+        byte[] data = new byte[header.length + bodyLength];
+        System.arraycopy(header, 0, data, 0, header.length);
+
+        ByteBuffer body = ByteBuffer.wrap(data, header.length, bodyLength);
+        body.putLong(size);
+        for (int i = 0; i < chunkIds.size(); i++) {
+            chunkIds.get(i).copyRawTo(data, body.position());
+            body.position(body.position() + ObjectId.LENGTH);
+            body.putInt(chunkLengths.get(i));
+        }
+        return data;
+    }
+
+    /**
+     * Size of the reassembled blob
+     */
+    long getSize() {
+        return size;
+    }
+
+    List<ObjectId> getChunkIds() {
+        return chunkIds;
+    }
+
+    int getChunkLength(int index) {
+        return chunkLengths.get(index);
+    }
+}
@@ -1,7 +1,12 @@
 package com.cobolt.core;
 
 import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
@@ -10,7 +15,11 @@ import java.io.Serializable;
 public abstract class CoboltObject implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    protected String id;
+    /** Legacy object files store the ID as a hex string */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class) };
+
+    protected transient ObjectId id;
 
     /**
      * Get the object type (blob, tree, commit)
@@ -26,19 +35,26 @@ public abstract class CoboltObject implements Serializable {
      * Compute and set the object ID based on type and content
      */
     public void computeId() {
-        this.id = HashUtils.computeObjectId(getType(), getContent());
+        this.id = HashUtils.hashObject(getType(), getContent());
     }
 
     /**
-     * Get the object ID (SHA-1 hash)
+     * Get the object ID
      */
-    public String getId() {
+    public ObjectId getObjectId() {
         if (id == null) {
             computeId();
         }
         return id;
     }
 
+    /**
+     * Get the object ID (SHA-1 hash) as hex
+     */
+    public String getId() {
+        return getObjectId().name();
+    }
+
     /**
      * Get short version of ID (7 characters)
      */
@@ -53,11 +69,22 @@ public abstract class CoboltObject implements Serializable {
         if (!(obj instanceof CoboltObject))
             return false;
         CoboltObject other = (CoboltObject) obj;
-        return getId().equals(other.getId());
+        return getObjectId().equals(other.getObjectId());
     }
 
     @Override
     public int hashCode() {
-        return getId().hashCode();
+        return getObjectId().hashCode();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id != null ? id.name() : null);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = ObjectId.fromNullable((String) fields.get("id", null));
     }
 }
@@ -1,10 +1,16 @@
 package com.cobolt.core;
 
+import com.cobolt.objects.ObjectId;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -13,12 +19,21 @@ import java.util.List;
 public class Commit extends CoboltObject {
     private static final long serialVersionUID = 1L;
 
-    private String treeId;
-    private final List<String> parentIds;
-    private String author;
-    private String committer;
-    private long timestamp;
-    private String message;
+    /** Legacy commit objects store IDs as hex strings */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("treeId", String.class),
+            new ObjectStreamField("parentIds", List.class),
+            new ObjectStreamField("author", String.class),
+            new ObjectStreamField("committer", String.class),
+            new ObjectStreamField("timestamp", long.class),
+            new ObjectStreamField("message", String.class) };
+
+    private transient ObjectId treeId;
+    private transient List<ObjectId> parentIds;
+    private transient String author;
+    private transient String committer;
+    private transient long timestamp;
+    private transient String message;
 
     public Commit() {
         this.parentIds = new ArrayList<>();
@@ -36,10 +51,10 @@ public class Commit extends CoboltObject {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             StringBuilder sb = new StringBuilder();
 
-            sb.append("tree ").append(treeId).append("\n");
+            sb.append("tree ").append(treeId != null ? treeId.name() : null).append("\n");
 
-            for (String parentId : parentIds) {
-                sb.append("parent ").append(parentId).append("\n");
+            for (ObjectId parentId : parentIds) {
+                sb.append("parent ").append(parentId.name()).append("\n");
             }
 
             sb.append("author ").append(author).append(" ").append(timestamp).append("\n");
@@ -54,21 +69,98 @@ public class Commit extends CoboltObject {
         }
     }
 
+    /**
+     * Parse commit from canonical content bytes
+     */
+    static Commit parse(byte[] data, int offset, int length) throws IOException {
+        Commit commit = new Commit();
+        int end = offset + length;
+        int pos = offset;
+
+        while (pos < end) {
+            int lineEnd = ObjectCodec.indexOf(data, (byte) '\n', pos, end);
+            if (lineEnd < 0) {
+                throw new IOException("Corrupt commit header");
+            }
+            if (lineEnd == pos) {
+                // Blank line separates headers from the message
+                pos++;
+                break;
+            }
+
+            String line = new String(data, pos, lineEnd - pos, StandardCharsets.UTF_8);
+            if (line.startsWith("tree ")) {
+                commit.treeId = parseId(line.substring(5));
+            } else if (line.startsWith("parent ")) {
+                commit.parentIds.add(parseId(line.substring(7)));
+            } else if (line.startsWith("author ")) {
+                commit.author = stripTimestamp(line.substring(7), commit);
+            } else if (line.startsWith("committer ")) {
+                commit.committer = stripTimestamp(line.substring(10), commit);
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        commit.message = new String(data, pos, end - pos, StandardCharsets.UTF_8);
+        return commit;
+    }
+
+    private static ObjectId parseId(String hex) throws IOException {
+        if (!ObjectId.isId(hex)) {
+            throw new IOException("Corrupt commit object ID: " + hex);
+        }
+        return ObjectId.fromString(hex);
+    }
+
+    private static String stripTimestamp(String identity, Commit commit) throws IOException {
+        int space = identity.lastIndexOf(' ');
+        if (space < 0) {
+            throw new IOException("Corrupt commit identity: " + identity);
+        }
+        try {
+            commit.timestamp = Long.parseLong(identity.substring(space + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt commit timestamp: " + identity, e);
+        }
+        return identity.substring(0, space);
+    }
+
     // Getters and setters
-    public String getTreeId() {
+    public ObjectId getTree() {
         return treeId;
     }
 
-    public void setTreeId(String treeId) {
+    public void setTree(ObjectId treeId) {
         this.treeId = treeId;
     }
 
+    public List<ObjectId> getParents() {
+        return Collections.unmodifiableList(parentIds);
+    }
+
+    public void addParent(ObjectId parentId) {
+        this.parentIds.add(parentId);
+    }
+
+    public String getTreeId() {
+        return treeId != null ? treeId.name() : null;
+    }
+
+    public void setTreeId(String treeId) {
+        this.treeId = ObjectId.fromNullable(treeId);
+    }
+
     public List<String> getParentIds() {
-        return new ArrayList<>(parentIds);
+        List<String> names = new ArrayList<>(parentIds.size());
+        for (ObjectId parentId : parentIds) {
+            names.add(parentId.name());
+        }
+        return names;
     }
 
     public void addParent(String parentId) {
-        this.parentIds.add(parentId);
+        addParent(ObjectId.fromString(parentId));
     }
 
     public String getAuthor() {
@@ -106,4 +198,32 @@ public class Commit extends CoboltObject {
     public boolean isMergeCommit() {
         return parentIds.size() > 1;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("treeId", getTreeId());
+        fields.put("parentIds", getParentIds());
+        fields.put("author", author);
+        fields.put("committer", committer);
+        fields.put("timestamp", timestamp);
+        fields.put("message", message);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        treeId = ObjectId.fromNullable((String) fields.get("treeId", null));
+        parentIds = new ArrayList<>();
+        List<String> names = (List<String>) fields.get("parentIds", null);
+        if (names != null) {
+            for (String name : names) {
+                parentIds.add(ObjectId.fromString(name));
+            }
+        }
+        author = (String) fields.get("author", null);
+        committer = (String) fields.get("committer", null);
+        timestamp = fields.get("timestamp", 0L);
+        message = (String) fields.get("message", null);
+    }
 }
@@ -0,0 +1,194 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.DeltaUtils;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdMap;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Rewrites packed and reachable loose objects into a single archive pack in
+ * which similar objects are stored as deltas against each other.
+ *
+ * Objects are sorted by type, path-name hash and descending size, so versions
+ * of the same file end up next to each other with the newest (usually
+ * largest) first. Each object is then compared against the previous objects
+ * in a sliding window and stored as a delta against the one giving the
+ * smallest result, as long as the base's chain stays under the depth limit.
+ * Loose objects above the big-file threshold are left out and stay loose.
+ */
+public class DeltaCompactor {
+
+    public static final int DEFAULT_WINDOW = 10;
+    public static final int DEFAULT_DEPTH = 50;
+
+    private final Repository repository;
+    private final ObjectDirectory objectDirectory;
+    private final int window;
+    private final int maxDepth;
+    private final long bigFileThreshold;
+
+    public DeltaCompactor(Repository repository, ObjectDirectory objectDirectory, int window, int maxDepth,
+            long bigFileThreshold) {
+        if (window < 0 || maxDepth < 0) {
+            throw new IllegalArgumentException("Window and depth must not be negative");
+        }
+        this.repository = repository;
+        this.objectDirectory = objectDirectory;
+        this.window = window;
+        this.maxDepth = maxDepth;
+        this.bigFileThreshold = bigFileThreshold;
+    }
+
+    /**
+     * Write the archive pack, then remove the packs and loose objects it replaces
+     */
+    public Result compact() throws IOException {
+        ObjectIdMap<String> paths = repository.collectReachableObjects();
+        List<PackFile> oldPacks = objectDirectory.getPacks();
+        for (PackFile pack : oldPacks) {
+            for (int i = 0; i < pack.getObjectCount(); i++) {
+                paths.putIfAbsent(pack.getObjectId(i), "");
+            }
+        }
+
+        List<Candidate> candidates = new ArrayList<>(paths.size());
+        for (ObjectId objectId : paths.keys()) {
+            String id = objectId.name();
+            ObjectHeader header = objectDirectory.readHeader(id);
+            if (header == null) {
+                throw new IOException("Object not found: " + id);
+            }
+            if (!objectDirectory.hasLocal(id)) {
+                continue; // Borrowed from an alternate, which keeps it
+            }
+            if (header.getSize() > bigFileThreshold && objectDirectory.isLoose(id)) {
+                continue; // Too large to read whole; stays loose
+            }
+            candidates.add(new Candidate(id, header.getType(), nameHash(paths.get(objectId)), header.getSize()));
+        }
+        candidates.sort(Comparator.comparing((Candidate c) -> c.type)
+                .thenComparing(c -> c.nameHash, Integer::compareUnsigned)
+                .thenComparing(c -> -c.size));
+
+        PackWriter writer = new PackWriter(objectDirectory.getPackDirectory(), objectDirectory.getCompressionLevel());
+        List<String> looseIds = new ArrayList<>();
+        int deltaCount = 0;
+        try {
+            Deque<Candidate> recent = new ArrayDeque<>();
+            for (Candidate candidate : candidates) {
+                byte[] data = objectDirectory.read(candidate.id);
+                if (ObjectCodec.isLegacy(data)) {
+                    data = ObjectCodec.encode(ObjectCodec.decode(candidate.id, data));
+                }
+                if (objectDirectory.isLoose(candidate.id)) {
+                    looseIds.add(candidate.id);
+                }
+
+                Candidate base = null;
+                byte[] bestDelta = null;
+                if (!candidate.type.equals("commit")) {
+                    for (Candidate other : recent) {
+                        if (!other.type.equals(candidate.type) || other.depth >= maxDepth
+                                || other.data.length < data.length / 8) {
+                            continue;
+                        }
+                        byte[] delta = DeltaUtils.createDelta(other.data, data);
+                        if (delta.length < data.length / 2 && (bestDelta == null || delta.length < bestDelta.length)) {
+                            base = other;
+                            bestDelta = delta;
+                        }
+                    }
+                }
+
+                if (base != null) {
+                    writer.addDelta(candidate.id, base.id, bestDelta);
+                    candidate.depth = base.depth + 1;
+                    deltaCount++;
+                } else {
+                    writer.add(candidate.id, data);
+                }
+
+                if (window > 0) {
+                    candidate.data = data;
+                    recent.addFirst(candidate);
+                    if (recent.size() > window) {
+                        recent.removeLast().data = null;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (writer.getObjectCount() == 0) {
+            writer.abort();
+            return new Result(0, 0);
+        }
+
+        objectDirectory.replacePacks(writer.finish(), oldPacks);
+        for (String id : looseIds) {
+            objectDirectory.deleteLoose(id);
+        }
+        return new Result(candidates.size(), deltaCount);
+    }
+
+    /**
+     * Hash that sorts paths with the same trailing characters together
+     * (same file name or extension in different directories)
+     */
+    static int nameHash(String path) {
+        int hash = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            hash = (hash >>> 2) + (c << 24);
+        }
+        return hash;
+    }
+
+    /**
+     * Summary of a compaction run
+     */
+    public static class Result {
+        private final int objectCount;
+        private final int deltaCount;
+
+        Result(int objectCount, int deltaCount) {
+            this.objectCount = objectCount;
+            this.deltaCount = deltaCount;
+        }
+
+        public int getObjectCount() {
+            return objectCount;
+        }
+
+        public int getDeltaCount() {
+            return deltaCount;
+        }
+    }
+
+    private static class Candidate {
+        final String id;
+        final String type;
+        final int nameHash;
+        final long size;
+        int depth;
+        byte[] data;
+
+        Candidate(String id, String type, int nameHash, long size) {
+            this.id = id;
+            this.type = type;
+            this.nameHash = nameHash;
+            this.size = size;
+        }
+    }
+}
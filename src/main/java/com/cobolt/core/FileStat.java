@@ -0,0 +1,120 @@
+package com.cobolt.core;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File metadata cached in the index, so an unchanged working-tree file can be
+ * recognized without reading it. Times are in nanoseconds. On platforms
+ * without the unix attribute view, ctime is the creation time and dev and
+ * inode are 0.
+ */
+public final class FileStat {
+
+    /** Unknown metadata; never matches a file, so its content is always checked */
+    public static final FileStat UNKNOWN = new FileStat(0, 0, 0, 0, -1);
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFREG = 0100000;
+
+    private static final boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private final long mtime;
+    private final long ctime;
+    private final long dev;
+    private final long inode;
+    private final long size;
+
+    public FileStat(long mtime, long ctime, long dev, long inode, long size) {
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.dev = dev;
+        this.inode = inode;
+        this.size = size;
+    }
+
+    /**
+     * Read the metadata of a file with a single stat call
+     */
+    public static FileStat of(Path file) throws IOException {
+        if (UNIX) {
+            Map<String, Object> attrs = Files.readAttributes(file, "unix:lastModifiedTime,ctime,dev,ino,size");
+            return new FileStat(nanos((FileTime) attrs.get("lastModifiedTime")), nanos((FileTime) attrs.get("ctime")),
+                    (Long) attrs.get("dev"), (Long) attrs.get("ino"), (Long) attrs.get("size"));
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return new FileStat(nanos(attrs.lastModifiedTime()), nanos(attrs.creationTime()), 0, 0, attrs.size());
+    }
+
+    /**
+     * Read the metadata of a file with a single stat call, or return null if
+     * it does not exist or is not a regular file
+     */
+    public static FileStat ofRegularFile(Path file) throws IOException {
+        try {
+            if (UNIX) {
+                Map<String, Object> attrs = Files.readAttributes(file, "unix:mode,lastModifiedTime,ctime,dev,ino,size");
+                if (((Integer) attrs.get("mode") & S_IFMT) != S_IFREG) {
+                    return null;
+                }
+                return new FileStat(nanos((FileTime) attrs.get("lastModifiedTime")),
+                        nanos((FileTime) attrs.get("ctime")), (Long) attrs.get("dev"), (Long) attrs.get("ino"),
+                        (Long) attrs.get("size"));
+            }
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new FileStat(nanos(attrs.lastModifiedTime()), nanos(attrs.creationTime()), 0, 0, attrs.size());
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        }
+    }
+
+    static long nanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Check if a file still has this metadata; unknown metadata never matches
+     */
+    public boolean matches(FileStat other) {
+        return size >= 0 && size == other.size && mtime == other.mtime && ctime == other.ctime
+                && dev == other.dev && inode == other.inode;
+    }
+
+    /**
+     * Same metadata with the size cleared, so it no longer matches the file
+     */
+    FileStat smudged() {
+        return new FileStat(mtime, ctime, dev, inode, -1);
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public long getCtime() {
+        return ctime;
+    }
+
+    public long getDev() {
+        return dev;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
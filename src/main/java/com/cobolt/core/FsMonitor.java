@@ -0,0 +1,248 @@
+package com.cobolt.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side of the file-system monitor, which {@link FsMonitorDaemon}
+ * serves over a Unix-domain socket in the .cobolt directory.
+ *
+ * The protocol is line-based. A client sends one request line, "query"
+ * followed by the token of its last query, "ping" or "stop". A query is
+ * answered with "ok" and a new token, then every path changed since the old
+ * token, one per line, until the daemon closes the connection; or with
+ * "full" and a new token when it cannot tell, in which case the client has
+ * to examine the whole working tree. Paths are relative to the work tree
+ * root and may name a directory, standing for everything below it.
+ *
+ * Both sides give up on a connection that does not make progress within
+ * a deadline, so a hung daemon or a stuck client never blocks anyone for
+ * long; a client that times out examines the whole working tree instead.
+ */
+public final class FsMonitor {
+
+    static final String SOCKET_NAME = "fsmonitor.sock";
+
+    /** Sent in place of a token by a client that has none */
+    static final String NO_TOKEN = "-";
+
+    /** How long a client waits for a whole reply; longer than the daemon's cookie wait */
+    static final long REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    private FsMonitor() {
+    }
+
+    /**
+     * Ask the daemon what changed since a token (null if there is none).
+     * Returns null if no daemon is running for the repository.
+     */
+    public static Result query(Path coboltDir, String token) throws IOException {
+        List<String> reply = request(coboltDir, "query " + (token != null ? token : NO_TOKEN));
+        if (reply == null) {
+            return null;
+        }
+        if (reply.isEmpty()) {
+            // The daemon gave up on the request, so fall back to a full scan
+            return null;
+        }
+        String[] status = reply.get(0).split(" ", 2);
+        if (status.length != 2 || !(status[0].equals("ok") || status[0].equals("full"))) {
+            throw new IOException("Unexpected reply from file-system monitor: " + reply.get(0));
+        }
+        return new Result(status[1], status[0].equals("ok"), reply.subList(1, reply.size()));
+    }
+
+    /**
+     * Check if a daemon is running for the repository
+     */
+    public static boolean isRunning(Path coboltDir) throws IOException {
+        List<String> reply = request(coboltDir, "ping");
+        return reply != null && reply.equals(Collections.singletonList("pong"));
+    }
+
+    /**
+     * Ask the daemon to exit; returns false if none was running
+     */
+    public static boolean stop(Path coboltDir) throws IOException {
+        return request(coboltDir, "stop") != null;
+    }
+
+    /**
+     * Check if a path or one of its parent directories is among a set of
+     * changed paths
+     */
+    public static boolean covers(NavigableSet<String> paths, String path) {
+        if (paths.contains(path)) {
+            return true;
+        }
+        for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+            if (paths.contains(path.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send one request and read the reply lines, or return null if the
+     * daemon cannot be reached or does not answer in time
+     */
+    private static List<String> request(Path coboltDir, String line) throws IOException {
+        Path socket = coboltDir.resolve(SOCKET_NAME);
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        try (channel) {
+            try {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+            } catch (IOException e) {
+                // A socket file left behind by a daemon that died
+                return null;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS);
+            String text;
+            try {
+                write(channel, (line + "\n").getBytes(StandardCharsets.UTF_8), deadline);
+                channel.shutdownOutput();
+                text = read(channel, deadline, false);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            List<String> reply = new ArrayList<>();
+            for (String replyLine : text.split("\n")) {
+                if (!replyLine.isEmpty()) {
+                    reply.add(replyLine);
+                }
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * Read from a connection until end of stream, or only up to the first
+     * line break if {@code lineOnly}. Throws SocketTimeoutException once
+     * {@code deadline} (a {@link System#nanoTime} value) has passed.
+     */
+    static String read(SocketChannel channel, long deadline, boolean lineOnly) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                if (n > 0) {
+                    data.write(buffer.array(), 0, buffer.position());
+                    if (lineOnly && contains(buffer, (byte) '\n')) {
+                        break;
+                    }
+                    buffer.clear();
+                    continue;
+                }
+                await(selector, deadline);
+            }
+        }
+        // Closing the selector deregistered the channel
+        channel.configureBlocking(true);
+        String text = data.toString(StandardCharsets.UTF_8);
+        int newline = text.indexOf('\n');
+        return lineOnly && newline >= 0 ? text.substring(0, newline) : text;
+    }
+
+    /**
+     * Write all of {@code bytes}, giving up with SocketTimeoutException once
+     * {@code deadline} has passed
+     */
+    static void write(SocketChannel channel, byte[] bytes, long deadline) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_WRITE);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    await(selector, deadline);
+                }
+            }
+        }
+        channel.configureBlocking(true);
+    }
+
+    private static void await(Selector selector, long deadline) throws IOException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("File-system monitor connection timed out");
+        }
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+    }
+
+    private static boolean contains(ByteBuffer buffer, byte b) {
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Answer to a query
+     */
+    public static final class Result {
+        private final String token;
+        private final boolean complete;
+        private final List<String> paths;
+
+        Result(String token, boolean complete, List<String> paths) {
+            this.token = token;
+            this.complete = complete;
+            this.paths = paths;
+        }
+
+        /**
+         * Token to pass to the next query
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * False if the daemon could not tell what changed, so every path
+         * has to be examined
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Paths changed since the old token, if complete
+         */
+        public List<String> getPaths() {
+            return paths;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.cobolt.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background process that watches a working tree and tells clients which
+ * paths changed since their last query, so status only has to look at
+ * those. Serves the protocol described in {@link FsMonitor}.
+ *
+ * Every directory of the work tree is registered with a {@link WatchService},
+ * except .cobolt and nested repositories; directories created later are
+ * registered as their events arrive, and the keys of deleted or moved
+ * directories are cancelled. Each changed path is recorded with a sequence
+ * number, and a token is the daemon's instance ID with the sequence number
+ * at the time of a query. A lost event (an overflow, or too many paths
+ * recorded) or a change to an ignore file invalidates every earlier token,
+ * and such a token, or one from another instance, gets a "full" answer.
+ *
+ * Events arrive asynchronously, so before answering a query the daemon
+ * creates a cookie file in a watched directory and waits for its event:
+ * once it has arrived, every change made before the query was recorded.
+ *
+ * Each connection is served on a thread of its own with deadlines for
+ * reading the request and writing the reply, so a client that stalls only
+ * delays itself.
+ */
+public class FsMonitorDaemon implements Closeable {
+
+    static final String COOKIE_DIR = "fsmonitor-cookies";
+
+    /** Changed paths recorded before they are dropped and every token invalidated */
+    static final int MAX_CHANGED_PATHS = 1_000_000;
+
+    private static final long COOKIE_TIMEOUT_MILLIS = 2000;
+
+    /** How long a client may take to send its request line */
+    private static final long READ_TIMEOUT_MILLIS = 2000;
+
+    /** How long a client may take to accept the reply */
+    private static final long WRITE_TIMEOUT_MILLIS = 10_000;
+
+    private static final String COBOLT_DIR = ".cobolt";
+
+    private final Path workTree;
+    private final Path coboltDir;
+    private final Path cookieDir;
+    private final Path infoDir;
+    private final String instance;
+    private final WatchService watcher;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fsmonitor-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Directory of each watch key; kept here because a moved directory keeps its key */
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    /** Sequence number of the last change to each path */
+    private final Map<String, Long> changed = new HashMap<>();
+
+    private final Set<String> cookiesSeen = new HashSet<>();
+    private long sequence;
+
+    /** Oldest token sequence number that can still be answered */
+    private long validFrom;
+    private long cookieCount;
+
+    private ServerSocketChannel server;
+    private volatile boolean stopped;
+
+    public FsMonitorDaemon(Path workTree) throws IOException {
+        this.workTree = workTree.toAbsolutePath().normalize();
+        this.coboltDir = this.workTree.resolve(COBOLT_DIR);
+        this.cookieDir = coboltDir.resolve(COOKIE_DIR);
+        this.infoDir = coboltDir.resolve("info");
+        this.instance = ProcessHandle.current().pid() + "." + Long.toHexString(System.currentTimeMillis());
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watch the work tree and answer queries until a client asks the daemon
+     * to stop
+     */
+    public void run() throws IOException {
+        if (FsMonitor.isRunning(coboltDir)) {
+            throw new IOException("File-system monitor is already running");
+        }
+        Path socket = coboltDir.resolve(FsMonitor.SOCKET_NAME);
+        Files.deleteIfExists(socket);
+        Files.createDirectories(cookieDir);
+        synchronized (this) {
+            registerAll();
+        }
+
+        Thread events = new Thread(this::processEvents, "fsmonitor-events");
+        events.setDaemon(true);
+        events.start();
+        try {
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            while (!stopped) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                connections.execute(() -> {
+                    try (client) {
+                        serve(client);
+                    } catch (IOException e) {
+                        // The client went away or timed out; the others are served regardless
+                    }
+                });
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop watching and remove the socket
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        stopped = true;
+        watcher.close();
+        connections.shutdownNow();
+        if (server != null) {
+            server.close();
+            Files.deleteIfExists(coboltDir.resolve(FsMonitor.SOCKET_NAME));
+        }
+        if (Files.isDirectory(cookieDir)) {
+            try (DirectoryStream<Path> cookies = Files.newDirectoryStream(cookieDir)) {
+                for (Path cookie : cookies) {
+                    Files.deleteIfExists(cookie);
+                }
+            }
+            Files.deleteIfExists(cookieDir);
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        long readDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS);
+        String request = FsMonitor.read(client, readDeadline, true);
+        if (request.isEmpty()) {
+            return;
+        }
+        String reply;
+        if (request.startsWith("query ")) {
+            try {
+                reply = query(request.substring("query ".length()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } else if (request.equals("ping")) {
+            reply = "pong\n";
+        } else if (request.equals("stop")) {
+            stopped = true;
+            reply = "bye\n";
+        } else {
+            reply = "error unknown request\n";
+        }
+        long writeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS);
+        FsMonitor.write(client, reply.getBytes(StandardCharsets.UTF_8), writeDeadline);
+        if (request.equals("stop")) {
+            // Wakes the accept loop, which then shuts the daemon down
+            server.close();
+        }
+    }
+
+    /**
+     * Answer a query for the paths changed since a token
+     */
+    private synchronized String query(String token) throws IOException, InterruptedException {
+        if (!syncCookie()) {
+            return "full " + currentToken() + "\n";
+        }
+        long since = -1;
+        String prefix = instance + ":";
+        if (token.startsWith(prefix)) {
+            try {
+                since = Long.parseLong(token.substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                since = -1;
+            }
+        }
+        if (since < validFrom || since > sequence) {
+            return "full " + currentToken() + "\n";
+        }
+        StringBuilder reply = new StringBuilder("ok ").append(currentToken()).append('\n');
+        for (Map.Entry<String, Long> change : changed.entrySet()) {
+            if (change.getValue() > since) {
+                reply.append(change.getKey()).append('\n');
+            }
+        }
+        return reply.toString();
+    }
+
+    private String currentToken() {
+        return instance + ":" + sequence;
+    }
+
+    /**
+     * Create a cookie file and wait until its event arrives, so every event
+     * queued before it has been recorded. Returns false on timeout.
+     */
+    private boolean syncCookie() throws IOException, InterruptedException {
+        String name = "cookie-" + (++cookieCount);
+        Path cookie = cookieDir.resolve(name);
+        Files.createFile(cookie);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COOKIE_TIMEOUT_MILLIS);
+            while (!cookiesSeen.remove(name)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(cookie);
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow();
+                    } else if (dir != null) {
+                        handle(dir, dir.resolve((Path) event.context()), event.kind());
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void handle(Path dir, Path path, WatchEvent.Kind<?> kind) {
+        String name = path.getFileName().toString();
+        if (dir.equals(cookieDir)) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                cookiesSeen.add(name);
+            }
+            return;
+        }
+        if (dir.equals(infoDir)) {
+            if (name.equals("exclude")) {
+                invalidate();
+            }
+            return;
+        }
+        if (name.equals(COBOLT_DIR)) {
+            if (!dir.equals(workTree)) {
+                // A directory became a nested repository, so its files are no longer ours
+                invalidate();
+            }
+            return;
+        }
+        if (name.equals(IgnoreMatcher.IGNORE_FILE)) {
+            // Files may have become untracked without an event of their own
+            invalidate();
+            return;
+        }
+
+        changed.put(workTree.relativize(path).toString(), ++sequence);
+        if (changed.size() > MAX_CHANGED_PATHS) {
+            invalidate();
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+                && !Files.exists(path.resolve(COBOLT_DIR))) {
+            // Files created in it before it was registered are covered by its own path
+            try {
+                register(path);
+            } catch (IOException e) {
+                overflow();
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // A directory moved away keeps its keys, which would report the old paths
+            Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<WatchKey, Path> watched = it.next();
+                if (watched.getValue().startsWith(path)) {
+                    watched.getKey().cancel();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Events were lost: forget every token and register any directory whose
+     * creation was missed
+     */
+    private void overflow() {
+        invalidate();
+        try {
+            registerAll();
+        } catch (IOException e) {
+            // Directories that could not be registered stay unwatched until the next overflow
+        }
+    }
+
+    private void invalidate() {
+        changed.clear();
+        validFrom = ++sequence;
+    }
+
+    private void registerAll() throws IOException {
+        register(workTree);
+        keys.put(cookieDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE), cookieDir);
+        if (Files.isDirectory(infoDir)) {
+            keys.put(infoDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), infoDir);
+        }
+    }
+
+    /**
+     * Watch a directory and every directory below it, skipping .cobolt and
+     * nested repositories
+     */
+    private void register(Path dir) throws IOException {
+        List<Path> subdirs = new ArrayList<>();
+        try {
+            keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)
+                            && !entry.getFileName().toString().equals(COBOLT_DIR)
+                            && !Files.exists(entry.resolve(COBOLT_DIR))) {
+                        subdirs.add(entry);
+                    }
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return;
+        }
+        for (Path subdir : subdirs) {
+            register(subdir);
+        }
+    }
+}
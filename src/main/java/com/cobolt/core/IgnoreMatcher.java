@@ -0,0 +1,361 @@
+package com.cobolt.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which working-tree paths are ignored, from .coboltignore files in
+ * any directory and the repository-wide .cobolt/info/exclude.
+ *
+ * Patterns follow the usual ignore-file rules: blank lines and lines
+ * starting with # are skipped, ! re-includes, a trailing / matches only
+ * directories, and a pattern with a / anywhere but at the end is anchored
+ * to the directory of its file. * and ? do not match /, ** matches across
+ * directories and [...] is a character class. A file deeper in the tree
+ * overrides its parents, the exclude file has the lowest priority, and
+ * within a file the last matching pattern wins. Nothing inside an ignored
+ * directory can be re-included, since it is never listed.
+ *
+ * Each file is compiled once into a {@link Rules} node: patterns without
+ * wildcards are looked up by name, anchored patterns are filed in a trie
+ * under their literal leading directories, and only the remaining globs
+ * are run as compiled regular expressions. The scanner carries the node of
+ * each directory down the tree, so every entry is checked once, against
+ * the nodes on its own path.
+ */
+public class IgnoreMatcher {
+
+    public static final String IGNORE_FILE = ".coboltignore";
+
+    private final Path workTree;
+    private final Rules root;
+
+    private IgnoreMatcher(Path workTree, Rules root) {
+        this.workTree = workTree;
+        this.root = root;
+    }
+
+    /**
+     * Load the exclude file and the ignore file at the root of a work tree
+     */
+    public static IgnoreMatcher load(Path workTree) throws IOException {
+        Path root = workTree.toAbsolutePath().normalize();
+        Rules exclude = Rules.read(new Rules(null, ""), "", root.resolve(".cobolt").resolve("info").resolve("exclude"));
+        return new IgnoreMatcher(root, Rules.read(exclude, "", root.resolve(IGNORE_FILE)));
+    }
+
+    /**
+     * Rules in force at the work tree root
+     */
+    public Rules getRoot() {
+        return root;
+    }
+
+    /**
+     * Rules in force inside a directory, given those of its parent. Reads
+     * the directory's ignore file if it has one.
+     */
+    public Rules enter(Rules parent, String relativeDir, boolean hasIgnoreFile) throws IOException {
+        if (!hasIgnoreFile) {
+            return parent;
+        }
+        return Rules.read(parent, relativeDir, workTree.resolve(relativeDir).resolve(IGNORE_FILE));
+    }
+
+    /**
+     * Rules in force inside a directory, or null if the directory or one of
+     * its parents is ignored
+     */
+    public Rules rulesFor(String relativeDir) throws IOException {
+        Rules rules = root;
+        if (relativeDir.isEmpty()) {
+            return rules;
+        }
+        int start = 0;
+        while (true) {
+            int slash = relativeDir.indexOf('/', start);
+            String dir = slash < 0 ? relativeDir : relativeDir.substring(0, slash);
+            if (rules.isIgnored(dir, dir.substring(start), true)) {
+                return null;
+            }
+            rules = enter(rules, dir, Files.isRegularFile(workTree.resolve(dir).resolve(IGNORE_FILE)));
+            if (slash < 0) {
+                return rules;
+            }
+            start = slash + 1;
+        }
+    }
+
+    /**
+     * Check a single path, reading the ignore files of its parent directories
+     */
+    public boolean isIgnored(String relativePath, boolean isDirectory) throws IOException {
+        int slash = relativePath.lastIndexOf('/');
+        Rules rules = rulesFor(slash < 0 ? "" : relativePath.substring(0, slash));
+        return rules == null || rules.isIgnored(relativePath, relativePath.substring(slash + 1), isDirectory);
+    }
+
+    /**
+     * Compiled patterns of one ignore file, chained to those of the parent
+     * directories. Immutable, so it is shared between scanning threads.
+     */
+    public static final class Rules {
+        private final Rules parent;
+        private final String base;
+
+        /** Wildcard-free patterns matched against the name, by name */
+        private final Map<String, List<Rule>> names = new HashMap<>();
+
+        /** Patterns with wildcards matched against the name */
+        private final List<Rule> globs = new ArrayList<>();
+
+        /** Anchored patterns, filed under their literal leading directories */
+        private final TrieNode anchored = new TrieNode();
+
+        private Rules(Rules parent, String base) {
+            this.parent = parent;
+            this.base = base;
+        }
+
+        static Rules read(Rules parent, String base, Path file) throws IOException {
+            if (!Files.isRegularFile(file)) {
+                return parent;
+            }
+            Rules rules = new Rules(parent, base);
+            int index = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                Rule rule = Rule.parse(line, index);
+                if (rule != null) {
+                    rules.add(rule);
+                    index++;
+                }
+            }
+            return index == 0 ? parent : rules;
+        }
+
+        private void add(Rule rule) {
+            if (rule.anchored) {
+                TrieNode node = anchored;
+                for (String dir : rule.literalDirs) {
+                    node = node.children.computeIfAbsent(dir, k -> new TrieNode());
+                }
+                node.rules.add(rule);
+            } else if (rule.regex == null) {
+                names.computeIfAbsent(rule.literal, k -> new ArrayList<>()).add(rule);
+            } else {
+                globs.add(rule);
+            }
+        }
+
+        /**
+         * Check an entry by its path from the work tree root and its name
+         */
+        public boolean isIgnored(String relativePath, String name, boolean isDirectory) {
+            for (Rules rules = this; rules != null; rules = rules.parent) {
+                Rule match = rules.lastMatch(relativePath, name, isDirectory);
+                if (match != null) {
+                    return !match.negated;
+                }
+            }
+            return false;
+        }
+
+        private Rule lastMatch(String relativePath, String name, boolean isDirectory) {
+            Rule best = null;
+            List<Rule> named = names.get(name);
+            if (named != null) {
+                for (int i = named.size() - 1; i >= 0 && best == null; i--) {
+                    if (named.get(i).matches(name, isDirectory)) {
+                        best = named.get(i);
+                    }
+                }
+            }
+            for (int i = globs.size() - 1; i >= 0; i--) {
+                Rule rule = globs.get(i);
+                if (best != null && rule.index < best.index) {
+                    break;
+                }
+                if (rule.matches(name, isDirectory)) {
+                    best = rule;
+                    break;
+                }
+            }
+
+            if (anchored.children.isEmpty() && anchored.rules.isEmpty()) {
+                return best;
+            }
+            String path = relativePath;
+            if (!base.isEmpty()) {
+                if (relativePath.length() <= base.length() || !relativePath.startsWith(base)
+                        || relativePath.charAt(base.length()) != '/') {
+                    return best;
+                }
+                path = relativePath.substring(base.length() + 1);
+            }
+            TrieNode node = anchored;
+            int start = 0;
+            while (node != null) {
+                for (Rule rule : node.rules) {
+                    if ((best == null || rule.index > best.index) && rule.matches(path, isDirectory)) {
+                        best = rule;
+                    }
+                }
+                int slash = path.indexOf('/', start);
+                if (slash < 0) {
+                    break;
+                }
+                node = node.children.get(path.substring(start, slash));
+                start = slash + 1;
+            }
+            return best;
+        }
+    }
+
+    private static final class TrieNode {
+        final Map<String, TrieNode> children = new HashMap<>();
+        final List<Rule> rules = new ArrayList<>();
+    }
+
+    private static final class Rule {
+        final int index;
+        final boolean negated;
+        final boolean directoryOnly;
+        final boolean anchored;
+
+        /** The whole pattern when it has no wildcards */
+        final String literal;
+
+        /** Compiled pattern, or null when it has no wildcards */
+        final Pattern regex;
+
+        /** Leading directories of an anchored pattern that hold no wildcards */
+        final List<String> literalDirs;
+
+        private Rule(int index, boolean negated, boolean directoryOnly, boolean anchored, String pattern) {
+            this.index = index;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            boolean wildcards = hasWildcards(pattern);
+            this.literal = wildcards ? null : unescape(pattern);
+            this.regex = wildcards ? Pattern.compile(toRegex(pattern)) : null;
+            this.literalDirs = new ArrayList<>();
+            if (anchored) {
+                int start = 0;
+                int slash;
+                while ((slash = pattern.indexOf('/', start)) >= 0 && !hasWildcards(pattern.substring(start, slash))) {
+                    literalDirs.add(unescape(pattern.substring(start, slash)));
+                    start = slash + 1;
+                }
+            }
+        }
+
+        /**
+         * Parse one line of an ignore file, or return null for blanks and comments
+         */
+        static Rule parse(String line, int index) {
+            String pattern = stripTrailingSpaces(line);
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return null;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated || pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.indexOf('/') >= 0;
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+            return new Rule(index, negated, directoryOnly, anchored, pattern);
+        }
+
+        boolean matches(String path, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) {
+                return false;
+            }
+            return regex != null ? regex.matcher(path).matches() : literal.equals(path);
+        }
+
+        private static String stripTrailingSpaces(String line) {
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+                end--;
+            }
+            return line.substring(0, end);
+        }
+
+        private static boolean hasWildcards(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String unescape(String pattern) {
+            return pattern.indexOf('\\') < 0 ? pattern : pattern.replaceAll("\\\\(.)", "$1");
+        }
+
+        /**
+         * Translate a glob into an equivalent regular expression
+         */
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            int i = 0;
+            while (i < glob.length()) {
+                char c = glob.charAt(i);
+                if (c == '*' && glob.startsWith("**", i)
+                        && (i == 0 || glob.charAt(i - 1) == '/')
+                        && (i + 2 == glob.length() || glob.charAt(i + 2) == '/')) {
+                    // "**/" matches any leading directories, a final "**" anything below
+                    if (i + 2 == glob.length()) {
+                        regex.append(".*");
+                        i += 2;
+                    } else {
+                        regex.append("(?:.*/)?");
+                        i += 3;
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                    i++;
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                    i++;
+                } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                    int end = glob.indexOf(']', i + 2);
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end + 1;
+                } else if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i + 1))));
+                    i += 2;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    i++;
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
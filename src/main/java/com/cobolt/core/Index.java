@@ -1,20 +1,136 @@
 package com.cobolt.core;
 
 import com.cobolt.objects.FileUtils;
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.zip.CRC32C;
 
 /**
- * Staging area implementation tracking files ready for commit
+ * Staging area implementation tracking files ready for commit.
+ *
+ * Each entry carries the {@link FileStat} of the working-tree file it was
+ * staged from, so unchanged files are recognized without rehashing. The file
+ * is a versioned binary format: "CIDX", version, entry count, then per entry
+ * mtime, ctime, dev, inode, size, mode, raw blob ID and path, sorted by path,
+ * followed by optional extensions (signature, length, payload) and a CRC32C
+ * of everything before it. Readers skip extensions they do not know. Indexes
+ * written with Java serialization by older versions are still read, with
+ * unknown stat data.
+ *
+ * Loading only maps the file ({@link IndexFile}); commands that never look
+ * at the index pay nothing for its size. Path lookups binary-search the
+ * mapped entries, and the entries are decoded into memory on the first call
+ * that needs all of them or changes one.
+ *
+ * The TREE extension caches the tree ID of each directory whose entries have
+ * not changed since its tree was last written, so a commit only rebuilds the
+ * directories along changed paths.
+ *
+ * The FSMN extension holds the token of the file-system monitor the working
+ * tree was last checked against, with the paths that did not match the
+ * index at that point ({@link #getMonitorPaths}). Every other entry with
+ * trusted stat data matched its file then, and every other file was
+ * tracked or ignored. Removing an entry adds its path, since the file may
+ * now be untracked, and so does adding one without stat data.
+ *
+ * The UNTR extension holds the {@link UntrackedCache}. Adding a new path or
+ * removing one makes its directory be listed again.
+ *
+ * A file modified in the same timestamp tick as the index was written could
+ * keep matching its stat data. Such racily clean entries, with an mtime not
+ * older than the index file, are never trusted; saving smudges them so they
+ * stay untrusted after the index is rewritten later.
+ *
+ * In split mode a large working tree keeps most entries in a shared base
+ * file, a full index named "sharedindex." plus the SHA-1 of its content,
+ * which is rarely rewritten. The index file itself is then a version 2 index
+ * holding only the entries added or changed since the base was written,
+ * with a LINK extension naming the base and its entry count and a REMV
+ * extension listing removed paths. Saving rewrites only this small file
+ * until the changes outgrow a percentage of the base, when they are merged
+ * into a new base. The base is read on the first lookup the changes cannot
+ * answer, so saving changes staged without a lookup never reads it. Bases
+ * no longer referenced are deleted once they have not been used for a day.
+ *
+ * Individual operations are synchronized; a read-modify-write spanning
+ * several calls must hold {@link Repository#getIndexLock()}.
  */
 public class Index implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    static final byte[] MAGIC = { 'C', 'I', 'D', 'X' };
+    static final int VERSION = 1;
+
+    /** Version of an index holding changes on top of a shared base */
+    static final int SPLIT_VERSION = 2;
+
+    /** Fixed part of an entry: five longs, mode, blob ID and path length */
+    static final int ENTRY_FIXED_LENGTH = 5 * 8 + 4 + ObjectId.LENGTH + 2;
+
+    private static final byte[] TREE_EXTENSION = { 'T', 'R', 'E', 'E' };
+    private static final byte[] LINK_EXTENSION = { 'L', 'I', 'N', 'K' };
+    private static final byte[] REMOVED_EXTENSION = { 'R', 'E', 'M', 'V' };
+    private static final byte[] MONITOR_EXTENSION = { 'F', 'S', 'M', 'N' };
+    private static final byte[] UNTRACKED_EXTENSION = { 'U', 'N', 'T', 'R' };
+
+    private static final String SHARED_PREFIX = "sharedindex.";
+
+    /** Unreferenced shared bases untouched for this long are deleted */
+    private static final long SHARED_EXPIRY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** All entries; complete only once {@link #base} has been read */
     private final Map<String, IndexEntry> entries;
 
+    /** Entries changed since the shared base was written, null for removed paths */
+    private transient Map<String, IndexEntry> changes = new TreeMap<>();
+
+    /** File name of the shared base, or null if the index is not split */
+    private transient String sharedName;
+
+    /** Number of entries in the shared base */
+    private transient int sharedCount;
+
+    /** Shared base not yet opened, or null */
+    private transient Path unreadShared;
+
+    /** Mapped file whose entries are not yet in {@link #entries}, or null */
+    private transient IndexFile base;
+
+    /**
+     * Tree IDs of unchanged directories, keyed by path ("" for the root);
+     * null until read from the TREE extension of {@link #base}
+     */
+    private transient Map<String, ObjectId> cachedTrees = new HashMap<>();
+
+    /** Token of the file-system monitor the working tree was last checked against, or null */
+    private transient String monitorToken;
+
+    /**
+     * Paths to examine besides those the monitor reports; null until read
+     * from the FSMN extension of {@link #base}
+     */
+    private transient Set<String> monitorPaths = new TreeSet<>();
+
+    /** Untracked files by directory; null until read from the UNTR extension of {@link #base} */
+    private transient UntrackedCache untrackedCache = new UntrackedCache();
+
+    /** Modification time of the index file when last loaded or saved, 0 if never */
+    private transient long timestamp;
+
+    /** Loaded from a Java-serialized index, which only held changes on top of HEAD */
+    private transient boolean legacy;
+
     public Index() {
         this.entries = new TreeMap<>();
     }
@@ -22,77 +138,663 @@ public class Index implements Serializable {
     /**
      * Add file to index
      */
-    public void add(String path, String blobId, String mode) {
-        entries.put(path, new IndexEntry(path, blobId, mode));
+    public void add(String path, ObjectId blobId, String mode) throws IOException {
+        add(path, blobId, mode, FileStat.UNKNOWN);
+    }
+
+    /**
+     * Add file to index with the stat data it was read with. The stat must be
+     * taken before the content is read, so a concurrent edit is never hidden.
+     */
+    public synchronized void add(String path, ObjectId blobId, String mode, FileStat stat) throws IOException {
+        IndexEntry entry = new IndexEntry(path, blobId, mode, stat);
+        // Without stat data the entry was not read from the file, which may differ
+        if (stat.getSize() < 0 && monitor() != null) {
+            monitorPaths.add(path);
+        }
+        if (sharedName == null) {
+            readBase();
+        } else {
+            changes.put(path, entry);
+            if (isBaseUnread()) {
+                // Without the base the old entry is unknown, so assume it changed
+                invalidateTrees(path);
+                invalidateUntracked(path);
+                return;
+            }
+        }
+        IndexEntry old = entries.put(path, entry);
+        // A stat refresh leaves the trees alone
+        if (old == null || !old.blobId.equals(blobId) || !old.mode.equals(mode)) {
+            invalidateTrees(path);
+        }
+        if (old == null) {
+            invalidateUntracked(path);
+        }
+    }
+
+    /**
+     * Add file to index, with the blob ID in hex
+     */
+    public void add(String path, String blobId, String mode) throws IOException {
+        add(path, ObjectId.fromString(blobId), mode);
     }
 
     /**
      * Remove file from index
      */
-    public void remove(String path) {
-        entries.remove(path);
+    public synchronized void remove(String path) throws IOException {
+        if (sharedName == null) {
+            readBase();
+        }
+        if (isBaseUnread() || entries.remove(path) != null) {
+            if (sharedName != null) {
+                changes.put(path, null);
+            }
+            invalidateTrees(path);
+            invalidateUntracked(path);
+            // The file may still exist, now untracked
+            if (monitor() != null) {
+                monitorPaths.add(path);
+            }
+        }
     }
 
     /**
      * Get entry by path
      */
-    public IndexEntry getEntry(String path) {
-        return entries.get(path);
+    public synchronized IndexEntry getEntry(String path) throws IOException {
+        if (!isBaseUnread()) {
+            return entries.get(path);
+        }
+        if (changes.containsKey(path)) {
+            return changes.get(path);
+        }
+        return openBase().find(path);
+    }
+
+    /**
+     * Get a snapshot of all entries, sorted by path
+     */
+    public synchronized Collection<IndexEntry> getEntries() throws IOException {
+        readBase();
+        return new ArrayList<>(entries.values());
     }
 
     /**
-     * Get all entries
+     * Check if a working-tree file with the given stat data is known to match
+     * its entry without reading it. Racily clean entries never match.
      */
-    public Collection<IndexEntry> getEntries() {
-        return entries.values();
+    public synchronized boolean isUnchanged(IndexEntry entry, FileStat stat) {
+        return entry.stat.matches(stat) && entry.stat.getMtime() < timestamp;
+    }
+
+    boolean isLegacy() {
+        return legacy;
     }
 
     /**
      * Check if path is staged
      */
-    public boolean contains(String path) {
-        return entries.containsKey(path);
+    public boolean contains(String path) throws IOException {
+        return getEntry(path) != null;
     }
 
     /**
      * Clear all entries
      */
-    public void clear() {
+    public synchronized void clear() {
         entries.clear();
+        cachedTrees = new HashMap<>();
+        monitorToken = null;
+        monitorPaths = new TreeSet<>();
+        untrackedCache = new UntrackedCache();
+        changes.clear();
+        sharedName = null;
+        sharedCount = 0;
+        unreadShared = null;
+        base = null;
+    }
+
+    /**
+     * Get the cached tree ID of a directory ("" for the root), or null if
+     * entries below it changed since it was recorded
+     */
+    public synchronized ObjectId getCachedTree(String dir) throws IOException {
+        return trees().get(dir);
+    }
+
+    /**
+     * Record the tree ID written for a directory's current entries
+     */
+    public synchronized void putCachedTree(String dir, ObjectId treeId) throws IOException {
+        trees().put(dir, treeId);
+    }
+
+    /**
+     * Drop the cached trees of every directory containing a path
+     */
+    private void invalidateTrees(String path) throws IOException {
+        Map<String, ObjectId> trees = trees();
+        if (trees.isEmpty()) {
+            return;
+        }
+        trees.remove("");
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            trees.remove(path.substring(0, slash));
+        }
+    }
+
+    private Map<String, ObjectId> trees() throws IOException {
+        if (cachedTrees == null) {
+            cachedTrees = new HashMap<>();
+            ByteBuffer extension = base.getExtension(TREE_EXTENSION);
+            if (extension != null) {
+                readTreeExtension(extension, cachedTrees, base.getPath());
+            }
+        }
+        return cachedTrees;
+    }
+
+    /**
+     * Cache of the untracked files of each directory, updated in place by
+     * {@link WorkTreeScanner#scanUntracked}
+     */
+    public synchronized UntrackedCache getUntrackedCache() throws IOException {
+        return untracked();
+    }
+
+    /**
+     * Make the directory of a path that was added or removed be listed again
+     */
+    private void invalidateUntracked(String path) throws IOException {
+        int slash = path.lastIndexOf('/');
+        untracked().invalidate(slash < 0 ? "" : path.substring(0, slash));
+    }
+
+    private UntrackedCache untracked() throws IOException {
+        if (untrackedCache == null) {
+            ByteBuffer extension = base.getExtension(UNTRACKED_EXTENSION);
+            untrackedCache = extension != null ? UntrackedCache.read(extension, base.getPath()) : new UntrackedCache();
+        }
+        return untrackedCache;
+    }
+
+    /**
+     * Token of the file-system monitor the working tree was last checked
+     * against, or null if it never was
+     */
+    public synchronized String getMonitorToken() throws IOException {
+        return monitor();
+    }
+
+    /**
+     * Paths that must be examined even if the monitor does not report them:
+     * files that did not match the index when the token was taken, and
+     * entries removed since
+     */
+    public synchronized Set<String> getMonitorPaths() throws IOException {
+        monitor();
+        return new TreeSet<>(monitorPaths);
+    }
+
+    /**
+     * Record the monitor token the working tree was just checked against,
+     * with the paths that did not match the index
+     */
+    public synchronized void setMonitorState(String token, Collection<String> paths) throws IOException {
+        monitor();
+        monitorToken = token;
+        monitorPaths = new TreeSet<>(paths);
+    }
+
+    private String monitor() throws IOException {
+        if (monitorPaths == null) {
+            monitorPaths = new TreeSet<>();
+            ByteBuffer extension = base.getExtension(MONITOR_EXTENSION);
+            if (extension != null) {
+                monitorToken = readMonitorExtension(extension, monitorPaths, base.getPath());
+            }
+        }
+        return monitorToken;
     }
 
     /**
      * Check if index is empty
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() throws IOException {
+        readBase();
         return entries.isEmpty();
     }
 
     /**
-     * Save index to file
+     * Check if the index is split into a shared base and changes on top of it
+     */
+    public synchronized boolean isSplit() {
+        return sharedName != null;
+    }
+
+    /**
+     * Save index to file as a single full index
      */
     public void save(Path indexPath) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-            oos.writeObject(this);
+        save(indexPath, false, 0);
+    }
+
+    /**
+     * Save index to file. When split, only the entries changed since the
+     * shared base was written are saved, unless there are more of them than
+     * {@code maxChangePercent} of the base, in which case everything is
+     * merged into a new base first.
+     */
+    public synchronized void save(Path indexPath, boolean split, int maxChangePercent) throws IOException {
+        if (!split) {
+            readBase();
+            if (sharedName != null) {
+                changes.clear();
+                sharedName = null;
+                sharedCount = 0;
+            }
+            write(indexPath);
+            deleteStaleShared(indexPath);
+            return;
+        }
+
+        if (sharedName == null || (long) changes.size() * 100 > (long) maxChangePercent * sharedCount) {
+            writeShared(indexPath);
+            write(indexPath);
+            deleteStaleShared(indexPath);
+            return;
+        }
+        // Keep the base in use from expiring
+        Files.setLastModifiedTime(indexPath.resolveSibling(sharedName),
+                FileTime.fromMillis(System.currentTimeMillis()));
+        write(indexPath);
+    }
+
+    private void write(Path indexPath) throws IOException {
+        FileUtils.writeAtomically(indexPath, encode());
+        long written = FileStat.nanos(Files.getLastModifiedTime(indexPath));
+        if (smudgeRacy(written)) {
+            // Rewrite so the smudged entries are what later readers see
+            FileUtils.writeAtomically(indexPath, encode());
+            written = FileStat.nanos(Files.getLastModifiedTime(indexPath));
         }
-        FileUtils.writeBytes(indexPath, baos.toByteArray());
+        timestamp = written;
     }
 
     /**
-     * Load index from file
+     * Write every entry to a new shared base and start over with no changes
+     */
+    private void writeShared(Path indexPath) throws IOException {
+        readBase();
+        Path sharedPath = writeSharedFile(indexPath);
+        if (smudgeRacy(entries, FileStat.nanos(Files.getLastModifiedTime(sharedPath)))) {
+            Files.delete(sharedPath);
+            sharedPath = writeSharedFile(indexPath);
+        }
+        sharedName = sharedPath.getFileName().toString();
+        sharedCount = entries.size();
+        changes.clear();
+    }
+
+    private Path writeSharedFile(Path indexPath) throws IOException {
+        byte[] data = encode(VERSION, entries.values(), Collections.emptyList(), false);
+        Path sharedPath = indexPath.resolveSibling(SHARED_PREFIX + HashUtils.computeSHA1(data));
+        FileUtils.writeAtomically(sharedPath, data);
+        return sharedPath;
+    }
+
+    /**
+     * Delete shared bases other than the current one that nobody has used
+     * recently; a reader that loaded the index just before a merge may still
+     * need the base it links to
+     */
+    private void deleteStaleShared(Path indexPath) throws IOException {
+        long expiry = System.currentTimeMillis() - SHARED_EXPIRY_MILLIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexPath.getParent(), SHARED_PREFIX + "*")) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().equals(sharedName)
+                        && Files.getLastModifiedTime(file).toMillis() < expiry) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private boolean isBaseUnread() {
+        return base != null || unreadShared != null;
+    }
+
+    /**
+     * Open the shared base on first use
+     */
+    private IndexFile openBase() throws IOException {
+        if (base == null && unreadShared != null) {
+            IndexFile shared;
+            try {
+                shared = IndexFile.open(unreadShared);
+            } catch (NoSuchFileException e) {
+                throw new IOException("Shared index not found: " + unreadShared, e);
+            }
+            if (shared.getVersion() != VERSION || shared.getCount() != sharedCount) {
+                throw new IOException("Shared index does not match the index: " + unreadShared);
+            }
+            base = shared;
+            unreadShared = null;
+        }
+        return base;
+    }
+
+    /**
+     * Decode the entries of the mapped file and apply the changes on top of them
+     */
+    private void readBase() throws IOException {
+        if (!isBaseUnread()) {
+            return;
+        }
+        trees();
+        monitor();
+        untracked();
+        openBase().readEntries(entries);
+        for (Map.Entry<String, IndexEntry> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                entries.remove(change.getKey());
+            } else {
+                entries.put(change.getKey(), change.getValue());
+            }
+        }
+        base = null;
+    }
+
+    /**
+     * Smudge entries modified no earlier than the index file, so their stat
+     * data is not trusted once the index is rewritten with a newer time
+     */
+    private boolean smudgeRacy(long indexTime) {
+        if (sharedName == null) {
+            return smudgeRacy(entries, indexTime);
+        }
+        if (!smudgeRacy(changes, indexTime)) {
+            return false;
+        }
+        if (!isBaseUnread()) {
+            for (IndexEntry entry : changes.values()) {
+                if (entry != null) {
+                    entries.put(entry.path, entry);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean smudgeRacy(Map<String, IndexEntry> written, long indexTime) {
+        boolean smudged = false;
+        for (Map.Entry<String, IndexEntry> e : written.entrySet()) {
+            IndexEntry entry = e.getValue();
+            if (entry != null && entry.stat.getSize() >= 0 && entry.stat.getMtime() >= indexTime) {
+                e.setValue(new IndexEntry(entry.path, entry.blobId, entry.mode, entry.stat.smudged()));
+                smudged = true;
+            }
+        }
+        return smudged;
+    }
+
+    private byte[] encode() throws IOException {
+        if (sharedName == null) {
+            return encode(VERSION, entries.values(), Collections.emptyList(), true);
+        }
+        List<IndexEntry> changed = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, IndexEntry> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                removed.add(change.getKey());
+            } else {
+                changed.add(change.getValue());
+            }
+        }
+        return encode(SPLIT_VERSION, changed, removed, true);
+    }
+
+    /**
+     * Encode entries in the given version; the tree cache, monitor state and
+     * untracked cache are left out of a shared base
+     */
+    private byte[] encode(int version, Collection<IndexEntry> written, List<String> removed, boolean withState)
+            throws IOException {
+        Map<String, ObjectId> trees = withState ? trees() : Collections.emptyMap();
+        String token = withState ? monitor() : null;
+        UntrackedCache untracked = withState ? untracked() : null;
+
+        // Size first, so the file is built in one exactly sized array
+        int length = MAGIC.length + 8;
+        for (IndexEntry entry : written) {
+            int pathLength = utf8Length(entry.path);
+            if (pathLength > 0xFFFF) {
+                throw new IOException("Path too long for the index: " + entry.path);
+            }
+            length += ENTRY_FIXED_LENGTH + pathLength;
+        }
+        int linkLength = 0;
+        int removedLength = 0;
+        if (version == SPLIT_VERSION) {
+            linkLength = 2 + utf8Length(sharedName) + 4;
+            length += LINK_EXTENSION.length + 4 + linkLength;
+            if (!removed.isEmpty()) {
+                removedLength = 4;
+                for (String path : removed) {
+                    removedLength += 2 + utf8Length(path);
+                }
+                length += REMOVED_EXTENSION.length + 4 + removedLength;
+            }
+        }
+        int treeLength = 0;
+        if (!trees.isEmpty()) {
+            treeLength = 4;
+            for (String dir : trees.keySet()) {
+                treeLength += 2 + utf8Length(dir) + ObjectId.LENGTH;
+            }
+            length += TREE_EXTENSION.length + 4 + treeLength;
+        }
+        int monitorLength = 0;
+        if (token != null) {
+            monitorLength = 2 + utf8Length(token) + 4;
+            for (String path : monitorPaths) {
+                monitorLength += 2 + utf8Length(path);
+            }
+            length += MONITOR_EXTENSION.length + 4 + monitorLength;
+        }
+        int untrackedLength = 0;
+        if (untracked != null && untracked.size() > 0) {
+            untrackedLength = untracked.encodedLength();
+            length += UNTRACKED_EXTENSION.length + 4 + untrackedLength;
+        }
+
+        byte[] data = new byte[length + 4];
+        ByteBuffer out = ByteBuffer.wrap(data);
+        out.put(MAGIC).putInt(version).putInt(written.size());
+        for (IndexEntry entry : written) {
+            FileStat stat = entry.stat;
+            out.putLong(stat.getMtime()).putLong(stat.getCtime()).putLong(stat.getDev())
+                    .putLong(stat.getInode()).putLong(stat.getSize());
+            out.putInt(Integer.parseInt(entry.mode, 8));
+            entry.blobId.copyRawTo(data, out.position());
+            out.position(out.position() + ObjectId.LENGTH);
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) path.length).put(path);
+        }
+        if (version == SPLIT_VERSION) {
+            byte[] name = sharedName.getBytes(StandardCharsets.UTF_8);
+            out.put(LINK_EXTENSION).putInt(linkLength).putShort((short) name.length).put(name).putInt(sharedCount);
+            if (!removed.isEmpty()) {
+                out.put(REMOVED_EXTENSION).putInt(removedLength).putInt(removed.size());
+                for (String path : removed) {
+                    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                    out.putShort((short) bytes.length).put(bytes);
+                }
+            }
+        }
+        if (treeLength > 0) {
+            out.put(TREE_EXTENSION).putInt(treeLength).putInt(trees.size());
+            for (Map.Entry<String, ObjectId> tree : trees.entrySet()) {
+                byte[] dir = tree.getKey().getBytes(StandardCharsets.UTF_8);
+                out.putShort((short) dir.length).put(dir);
+                tree.getValue().copyRawTo(data, out.position());
+                out.position(out.position() + ObjectId.LENGTH);
+            }
+        }
+        if (monitorLength > 0) {
+            byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+            out.put(MONITOR_EXTENSION).putInt(monitorLength).putShort((short) bytes.length).put(bytes);
+            out.putInt(monitorPaths.size());
+            for (String path : monitorPaths) {
+                bytes = path.getBytes(StandardCharsets.UTF_8);
+                out.putShort((short) bytes.length).put(bytes);
+            }
+        }
+        if (untrackedLength > 0) {
+            out.put(UNTRACKED_EXTENSION).putInt(untrackedLength);
+            untracked.write(out);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        out.putInt((int) crc.getValue());
+        return data;
+    }
+
+    static int utf8Length(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return s.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return s.length();
+    }
+
+    /**
+     * Load index from file. The file is only mapped; entries are decoded
+     * when first used.
      */
     public static Index load(Path indexPath) throws IOException {
-        if (!FileUtils.exists(indexPath)) {
+        long timestamp;
+        IndexFile file;
+        try {
+            // Time first: if the file is replaced in between, racy checks err on the safe side
+            timestamp = FileStat.nanos(Files.getLastModifiedTime(indexPath));
+            file = IndexFile.open(indexPath);
+        } catch (NoSuchFileException e) {
             return new Index();
         }
 
+        Index index;
+        if (file.isLegacy()) {
+            index = loadLegacy(file.readAll());
+        } else if (file.getVersion() == SPLIT_VERSION) {
+            index = loadSplit(file);
+        } else {
+            index = new Index();
+            index.base = file;
+            index.cachedTrees = null;
+            index.monitorPaths = null;
+            index.untrackedCache = null;
+        }
+        index.timestamp = timestamp;
+        return index;
+    }
+
+    /**
+     * Read the changes of a split index; they are small, so they are decoded
+     * right away, while the shared base is only opened when needed
+     */
+    private static Index loadSplit(IndexFile file) throws IOException {
+        Index index = new Index();
+        file.readEntries(index.changes);
+        ByteBuffer link = file.getExtension(LINK_EXTENSION);
+        ByteBuffer removed = file.getExtension(REMOVED_EXTENSION);
+        ByteBuffer trees = file.getExtension(TREE_EXTENSION);
+        ByteBuffer monitor = file.getExtension(MONITOR_EXTENSION);
+        ByteBuffer untracked = file.getExtension(UNTRACKED_EXTENSION);
         try {
-            byte[] data = FileUtils.readBytes(indexPath);
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            try (ObjectInputStream ois = new ObjectInputStream(bais)) {
-                return (Index) ois.readObject();
+            if (link != null) {
+                index.sharedName = readPath(link);
+                index.sharedCount = link.getInt();
+            }
+            if (removed != null) {
+                int count = removed.getInt();
+                for (int i = 0; i < count; i++) {
+                    index.changes.put(readPath(removed), null);
+                }
             }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Index file is corrupt: " + file.getPath(), e);
+        }
+        if (trees != null) {
+            readTreeExtension(trees, index.cachedTrees, file.getPath());
+        }
+        if (monitor != null) {
+            index.monitorToken = readMonitorExtension(monitor, index.monitorPaths, file.getPath());
+        }
+        if (untracked != null) {
+            index.untrackedCache = UntrackedCache.read(untracked, file.getPath());
+        }
+
+        String name = index.sharedName;
+        if (name == null || !name.startsWith(SHARED_PREFIX)
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new IOException("Index file is corrupt (bad shared index link): " + file.getPath());
+        }
+        index.unreadShared = file.getPath().resolveSibling(name);
+        return index;
+    }
+
+    static String readPath(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readTreeExtension(ByteBuffer in, Map<String, ObjectId> trees, Path indexPath)
+            throws IOException {
+        try {
+            int count = in.getInt();
+            byte[] raw = new byte[ObjectId.LENGTH];
+            for (int i = 0; i < count; i++) {
+                String dir = readPath(in);
+                in.get(raw);
+                trees.put(dir, ObjectId.fromRaw(raw, 0));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Index file is corrupt: " + indexPath, e);
+        }
+    }
+
+    private static String readMonitorExtension(ByteBuffer in, Set<String> paths, Path indexPath) throws IOException {
+        try {
+            String token = readPath(in);
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                paths.add(readPath(in));
+            }
+            return token;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Index file is corrupt: " + indexPath, e);
+        }
+    }
+
+    /**
+     * Read an index written with Java serialization; it is rewritten in the
+     * binary format on the next save
+     */
+    private static Index loadLegacy(byte[] data) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            Index index = (Index) ois.readObject();
+            index.cachedTrees = new HashMap<>();
+            index.changes = new TreeMap<>();
+            index.monitorPaths = new TreeSet<>();
+            index.untrackedCache = new UntrackedCache();
+            index.legacy = true;
+            return index;
         } catch (ClassNotFoundException e) {
             throw new IOException("Failed to load index", e);
         }
@@ -104,26 +806,65 @@ public class Index implements Serializable {
     public static class IndexEntry implements Serializable {
         private static final long serialVersionUID = 1L;
 
-        private final String path;
-        private final String blobId;
-        private final String mode;
+        /** The index file stores the blob ID as a hex string */
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("path", String.class),
+                new ObjectStreamField("blobId", String.class),
+                new ObjectStreamField("mode", String.class) };
 
-        public IndexEntry(String path, String blobId, String mode) {
+        private transient String path;
+        private transient ObjectId blobId;
+        private transient String mode;
+        private transient FileStat stat;
+
+        public IndexEntry(String path, ObjectId blobId, String mode) {
+            this(path, blobId, mode, FileStat.UNKNOWN);
+        }
+
+        public IndexEntry(String path, ObjectId blobId, String mode, FileStat stat) {
             this.path = path;
             this.blobId = blobId;
             this.mode = mode;
+            this.stat = stat;
         }
 
         public String getPath() {
             return path;
         }
 
-        public String getBlobId() {
+        public ObjectId getObjectId() {
             return blobId;
         }
 
+        public String getBlobId() {
+            return blobId.name();
+        }
+
         public String getMode() {
             return mode;
         }
+
+        /**
+         * Stat data of the file when it was staged
+         */
+        public FileStat getStat() {
+            return stat;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("path", path);
+            fields.put("blobId", blobId.name());
+            fields.put("mode", mode);
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            path = (String) fields.get("path", null);
+            blobId = ObjectId.fromString((String) fields.get("blobId", null));
+            mode = (String) fields.get("mode", null);
+            stat = FileStat.UNKNOWN;
+        }
     }
 }
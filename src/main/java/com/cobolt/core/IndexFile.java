@@ -0,0 +1,237 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only view of an index file in the {@link Index} binary format,
+ * memory-mapped and decoded on demand.
+ *
+ * Opening reads only the header. The first lookup verifies the checksum and
+ * builds a table of entry offsets, which are in path order, so a path is
+ * found by binary search and only the entries probed are decoded. Windows
+ * cannot replace a file that is mapped, so there the file is read into heap.
+ *
+ * Not thread-safe; {@link Index} only uses it while holding its own lock.
+ */
+final class IndexFile {
+
+    static final int HEADER_LENGTH = Index.MAGIC.length + 8;
+
+    private static final boolean MAP = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final Path path;
+    private final ByteBuffer data;
+    private final boolean legacy;
+    private final int version;
+    private final int count;
+
+    /** Start of each entry, built on first use */
+    private int[] offsets;
+    private final List<byte[]> extensionSignatures = new ArrayList<>();
+    private final List<ByteBuffer> extensions = new ArrayList<>();
+
+    private IndexFile(Path path, ByteBuffer data) throws IOException {
+        this.path = path;
+        this.data = data;
+        this.legacy = data.limit() >= 2 && (data.get(0) & 0xff) == 0xAC && (data.get(1) & 0xff) == 0xED;
+        if (legacy) {
+            this.version = 0;
+            this.count = 0;
+            return;
+        }
+
+        byte[] magic = new byte[Index.MAGIC.length];
+        if (data.limit() >= HEADER_LENGTH + 4) {
+            data.get(0, magic);
+        }
+        if (!Arrays.equals(magic, Index.MAGIC)) {
+            throw new IOException("Not an index file: " + path);
+        }
+        this.version = data.getInt(Index.MAGIC.length);
+        if (version != Index.VERSION && version != Index.SPLIT_VERSION) {
+            throw new IOException("Unsupported index version " + version + ": " + path);
+        }
+        this.count = data.getInt(Index.MAGIC.length + 4);
+        if (count < 0) {
+            throw new IOException("Index file is corrupt (bad entry count): " + path);
+        }
+    }
+
+    /**
+     * Map an index file; only its header is read
+     */
+    static IndexFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Index file too large: " + path);
+            }
+            ByteBuffer data;
+            if (MAP) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining() && channel.read(data) >= 0) {
+                    // Keep reading until the buffer is full or the file ends
+                }
+                data.flip();
+            }
+            return new IndexFile(path, data);
+        }
+    }
+
+    /**
+     * Check if the file was written with Java serialization by an older version
+     */
+    boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Whole file content, for formats that are not read lazily
+     */
+    byte[] readAll() {
+        byte[] bytes = new byte[data.limit()];
+        data.get(0, bytes);
+        return bytes;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Find the entry for a path by binary search, or null if there is none
+     */
+    Index.IndexEntry find(String entryPath) throws IOException {
+        buildOffsets();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = pathAt(offsets[mid]).compareTo(entryPath);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entryAt(offsets[mid]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode every entry into a map
+     */
+    void readEntries(Map<String, Index.IndexEntry> into) throws IOException {
+        buildOffsets();
+        for (int offset : offsets) {
+            Index.IndexEntry entry = entryAt(offset);
+            into.put(entry.getPath(), entry);
+        }
+    }
+
+    /**
+     * Payload of an extension, or null if the file does not have it
+     */
+    ByteBuffer getExtension(byte[] signature) throws IOException {
+        buildOffsets();
+        for (int i = 0; i < extensions.size(); i++) {
+            if (Arrays.equals(extensionSignatures.get(i), signature)) {
+                return extensions.get(i).duplicate();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verify the checksum and locate every entry and extension. Only the
+     * path lengths are read, so nothing is decoded yet.
+     */
+    private void buildOffsets() throws IOException {
+        if (offsets != null) {
+            return;
+        }
+        int end = data.limit() - 4;
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate().position(0).limit(end));
+        if (data.getInt(end) != (int) crc.getValue()) {
+            throw new IOException("Index file is corrupt (checksum mismatch): " + path);
+        }
+
+        int[] found = new int[count];
+        int position = HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            if (position > end - Index.ENTRY_FIXED_LENGTH) {
+                throw new IOException("Index file is corrupt (truncated entries): " + path);
+            }
+            found[i] = position;
+            position += Index.ENTRY_FIXED_LENGTH + (data.getShort(position + Index.ENTRY_FIXED_LENGTH - 2) & 0xFFFF);
+        }
+        while (position < end) {
+            if (position > end - 8) {
+                throw new IOException("Index file is corrupt (bad extension): " + path);
+            }
+            byte[] signature = new byte[4];
+            data.get(position, signature);
+            int length = data.getInt(position + 4);
+            if (length < 0 || length > end - position - 8) {
+                throw new IOException("Index file is corrupt (bad extension): " + path);
+            }
+            extensionSignatures.add(signature);
+            extensions.add(data.slice(position + 8, length));
+            position += 8 + length;
+        }
+        if (position != end) {
+            throw new IOException("Index file is corrupt (truncated entries): " + path);
+        }
+        offsets = found;
+    }
+
+    private String pathAt(int offset) {
+        byte[] bytes = new byte[data.getShort(offset + Index.ENTRY_FIXED_LENGTH - 2) & 0xFFFF];
+        data.get(offset + Index.ENTRY_FIXED_LENGTH, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Index.IndexEntry entryAt(int offset) {
+        FileStat stat = new FileStat(data.getLong(offset), data.getLong(offset + 8), data.getLong(offset + 16),
+                data.getLong(offset + 24), data.getLong(offset + 32));
+        String mode = modeString(data.getInt(offset + 40));
+        byte[] raw = new byte[ObjectId.LENGTH];
+        data.get(offset + 44, raw);
+        return new Index.IndexEntry(pathAt(offset), ObjectId.fromRaw(raw, 0), mode, stat);
+    }
+
+    private static String modeString(int mode) {
+        switch (mode) {
+            case 0100644:
+                return "100644";
+            case 0100755:
+                return "100755";
+            default:
+                return Integer.toOctalString(mode);
+        }
+    }
+}
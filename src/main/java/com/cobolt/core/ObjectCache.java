@@ -0,0 +1,428 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe object cache bounded by estimated bytes rather than entry count.
+ *
+ * The cache is split into segments by object ID, each with its own lock, so
+ * threads reading different objects rarely contend. The budgets are shared by
+ * all segments, so one object may take up to the whole budget. Once a budget
+ * is exceeded the least recently used entry over all segments is evicted.
+ *
+ * Commits and trees share one budget and blobs get another, so a few large
+ * blobs cannot push out the metadata that history walks depend on. Each pool
+ * is a segmented LRU: new objects enter a probation segment and move to a
+ * protected segment (80% of the pool) when read again, so objects read once
+ * during a scan are evicted before the frequently used ones.
+ */
+public class ObjectCache {
+
+    /** Default budget for commits and trees */
+    public static final long DEFAULT_METADATA_BYTES = 32L * 1024 * 1024;
+
+    /** Default budget for blobs */
+    public static final long DEFAULT_BLOB_BYTES = 64L * 1024 * 1024;
+
+    private static final int PROTECTED_PERCENT = 80;
+
+    /** Number of independently locked segments; a power of two */
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Budget metadataBudget;
+    private final Budget blobBudget;
+
+    /** Ticks on every put and hit, so entries in different segments can be ordered by last use */
+    private final AtomicLong clock = new AtomicLong();
+
+    public ObjectCache(long metadataBytes, long blobBytes) {
+        this.metadataBudget = new Budget(metadataBytes);
+        this.blobBudget = new Budget(blobBytes);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(new Pool(metadataBudget, clock), new Pool(blobBudget, clock));
+        }
+    }
+
+    /**
+     * Get cached object, or null if not cached
+     */
+    public CoboltObject get(ObjectId id) {
+        Segment segment = segmentFor(id);
+        synchronized (segment) {
+            CoboltObject obj = segment.metadata.get(id);
+            if (obj == null) {
+                obj = segment.blobs.get(id);
+            }
+            if (obj == null) {
+                segment.misses++;
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Check if an object is cached, without counting a hit or miss
+     */
+    public boolean contains(ObjectId id) {
+        Segment segment = segmentFor(id);
+        synchronized (segment) {
+            return segment.metadata.contains(id) || segment.blobs.contains(id);
+        }
+    }
+
+    /**
+     * Add object to the pool for its type
+     */
+    public void put(ObjectId id, CoboltObject obj) {
+        Segment segment = segmentFor(id);
+        long weight = weigh(obj);
+        boolean blob = obj instanceof Blob;
+        synchronized (segment) {
+            segment.pool(blob).put(id, obj, weight);
+        }
+        evict(blob);
+    }
+
+    /**
+     * Drop all cached objects (statistics are kept)
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.metadata.clear();
+                segment.blobs.clear();
+            }
+        }
+    }
+
+    /**
+     * Snapshot of cache statistics, summed over the segments
+     */
+    public Stats getStats() {
+        long hits = 0;
+        long misses = 0;
+        long metadataEvictions = 0;
+        long blobEvictions = 0;
+        long metadataBytes = 0;
+        long blobBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.metadata.hits + segment.blobs.hits;
+                misses += segment.misses;
+                metadataEvictions += segment.metadata.evictions;
+                blobEvictions += segment.blobs.evictions;
+                metadataBytes += segment.metadata.residentBytes();
+                blobBytes += segment.blobs.residentBytes();
+            }
+        }
+        return new Stats(hits, misses, metadataEvictions, blobEvictions,
+                metadataBytes, blobBytes, metadataBudget.limit, blobBudget.limit);
+    }
+
+    /**
+     * Evict from the pools of one kind until they fit their shared budget.
+     * The victim is the least recently used probation entry of any segment,
+     * or protected entry if no probation entry is left. Segments are locked
+     * one at a time, so the choice can be slightly stale, which only makes it
+     * approximate.
+     */
+    private void evict(boolean blob) {
+        Budget budget = blob ? blobBudget : metadataBudget;
+        while (budget.resident.get() > budget.limit) {
+            Segment victim = null;
+            boolean victimProtected = true;
+            long oldest = Long.MAX_VALUE;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Pool pool = segment.pool(blob);
+                    boolean fromProtected = pool.probation.isEmpty();
+                    Entry eldest = pool.eldest();
+                    if (eldest != null && ((victimProtected && !fromProtected)
+                            || (victimProtected == fromProtected && eldest.lastUsed < oldest))) {
+                        victim = segment;
+                        victimProtected = fromProtected;
+                        oldest = eldest.lastUsed;
+                    }
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            synchronized (victim) {
+                victim.pool(blob).evictEldest();
+            }
+        }
+    }
+
+    private Segment segmentFor(ObjectId id) {
+        // The hash code is taken from the ID bytes, so the low bits are uniform
+        return segments[id.hashCode() & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Estimate the heap footprint of a decoded object
+     */
+    static long weigh(CoboltObject obj) {
+        if (obj instanceof Blob) {
+            return 64 + ((Blob) obj).getSize();
+        }
+        if (obj instanceof Tree) {
+            return 64 + 160L * ((Tree) obj).getEntries().size();
+        }
+        if (obj instanceof Commit) {
+            Commit commit = (Commit) obj;
+            String message = commit.getMessage();
+            return 256 + 48L * commit.getParents().size() + 2L * (message != null ? message.length() : 0);
+        }
+        return 256;
+    }
+
+    /**
+     * One lock's worth of the cache: a pool per object kind
+     */
+    private static class Segment {
+        final Pool metadata;
+        final Pool blobs;
+        long misses;
+
+        Segment(Pool metadata, Pool blobs) {
+            this.metadata = metadata;
+            this.blobs = blobs;
+        }
+
+        Pool pool(boolean blob) {
+            return blob ? blobs : metadata;
+        }
+    }
+
+    /**
+     * Byte budget of one kind of object, shared by the pools of every segment
+     */
+    private static class Budget {
+        final long limit;
+        final long protectedLimit;
+        final AtomicLong resident = new AtomicLong();
+        final AtomicLong protectedResident = new AtomicLong();
+
+        Budget(long limit) {
+            this.limit = limit;
+            this.protectedLimit = limit * PROTECTED_PERCENT / 100;
+        }
+    }
+
+    /**
+     * One segment's part of a segmented LRU pool; the budget is shared with the
+     * other segments and enforced by {@link ObjectCache#evict}
+     */
+    private static class Pool {
+        final Budget budget;
+        final AtomicLong clock;
+        final LinkedHashMap<ObjectId, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<ObjectId, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        long probationBytes;
+        long protectedBytes;
+        long hits;
+        long evictions;
+
+        Pool(Budget budget, AtomicLong clock) {
+            this.budget = budget;
+            this.clock = clock;
+        }
+
+        CoboltObject get(ObjectId id) {
+            Entry entry = protectedSegment.get(id);
+            if (entry != null) {
+                hits++;
+                entry.lastUsed = clock.incrementAndGet();
+                return entry.obj;
+            }
+
+            entry = probation.remove(id);
+            if (entry == null) {
+                return null;
+            }
+
+            // Second access: promote, demoting this segment's least recently used protected entries
+            hits++;
+            entry.lastUsed = clock.incrementAndGet();
+            probationBytes -= entry.weight;
+            protectedSegment.put(id, entry);
+            protectedBytes += entry.weight;
+            budget.protectedResident.addAndGet(entry.weight);
+
+            Iterator<Map.Entry<ObjectId, Entry>> it = protectedSegment.entrySet().iterator();
+            while (budget.protectedResident.get() > budget.protectedLimit && protectedSegment.size() > 1) {
+                Map.Entry<ObjectId, Entry> eldest = it.next();
+                it.remove();
+                protectedBytes -= eldest.getValue().weight;
+                budget.protectedResident.addAndGet(-eldest.getValue().weight);
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().weight;
+            }
+            return entry.obj;
+        }
+
+        boolean contains(ObjectId id) {
+            return protectedSegment.containsKey(id) || probation.containsKey(id);
+        }
+
+        void put(ObjectId id, CoboltObject obj, long weight) {
+            if (weight > budget.limit) {
+                return;
+            }
+
+            Entry existing = protectedSegment.get(id);
+            if (existing != null) {
+                return;
+            }
+            existing = probation.remove(id);
+            if (existing != null) {
+                probationBytes -= existing.weight;
+                budget.resident.addAndGet(-existing.weight);
+            }
+
+            Entry entry = new Entry(obj, weight);
+            entry.lastUsed = clock.incrementAndGet();
+            probation.put(id, entry);
+            probationBytes += weight;
+            budget.resident.addAndGet(weight);
+        }
+
+        /**
+         * The entry evicted next from this segment, or null if it is empty
+         */
+        Entry eldest() {
+            LinkedHashMap<ObjectId, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            return segment.isEmpty() ? null : segment.values().iterator().next();
+        }
+
+        void evictEldest() {
+            LinkedHashMap<ObjectId, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Entry> it = segment.values().iterator();
+            if (!it.hasNext()) {
+                return;
+            }
+            Entry eldest = it.next();
+            it.remove();
+            if (segment == probation) {
+                probationBytes -= eldest.weight;
+            } else {
+                protectedBytes -= eldest.weight;
+                budget.protectedResident.addAndGet(-eldest.weight);
+            }
+            budget.resident.addAndGet(-eldest.weight);
+            evictions++;
+        }
+
+        void clear() {
+            budget.resident.addAndGet(-(probationBytes + protectedBytes));
+            budget.protectedResident.addAndGet(-protectedBytes);
+            probation.clear();
+            protectedSegment.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        long residentBytes() {
+            return probationBytes + protectedBytes;
+        }
+    }
+
+    private static class Entry {
+        final CoboltObject obj;
+        final long weight;
+
+        /** Clock value of the last put or hit; guarded by the segment lock */
+        long lastUsed;
+
+        Entry(CoboltObject obj, long weight) {
+            this.obj = obj;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Cache statistics snapshot
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long metadataEvictions;
+        private final long blobEvictions;
+        private final long metadataBytes;
+        private final long blobBytes;
+        private final long metadataBudget;
+        private final long blobBudget;
+
+        Stats(long hits, long misses, long metadataEvictions, long blobEvictions,
+                long metadataBytes, long blobBytes, long metadataBudget, long blobBudget) {
+            this.hits = hits;
+            this.misses = misses;
+            this.metadataEvictions = metadataEvictions;
+            this.blobEvictions = blobEvictions;
+            this.metadataBytes = metadataBytes;
+            this.blobBytes = blobBytes;
+            this.metadataBudget = metadataBudget;
+            this.blobBudget = blobBudget;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        public long getEvictions() {
+            return metadataEvictions + blobEvictions;
+        }
+
+        public long getMetadataEvictions() {
+            return metadataEvictions;
+        }
+
+        public long getBlobEvictions() {
+            return blobEvictions;
+        }
+
+        public long getResidentBytes() {
+            return metadataBytes + blobBytes;
+        }
+
+        public long getMetadataBytes() {
+            return metadataBytes;
+        }
+
+        public long getBlobBytes() {
+            return blobBytes;
+        }
+
+        public long getMetadataBudget() {
+            return metadataBudget;
+        }
+
+        public long getBlobBudget() {
+            return blobBudget;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hit-ratio=%.1f%% evictions=%d (commits/trees %d, blobs %d) "
+                    + "resident=%d bytes (commits/trees %d/%d, blobs %d/%d)",
+                    hits, misses, getHitRatio() * 100, getEvictions(), metadataEvictions, blobEvictions,
+                    getResidentBytes(), metadataBytes, metadataBudget, blobBytes, blobBudget);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.SerializationUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canonical on-disk encoding for Cobolt objects.
+ *
+ * Every object is stored as {@code "<type> <length>\0<content>"}, the same bytes
+ * that {@link com.cobolt.objects.HashUtils#computeObjectId} hashes, so the stored
+ * form is self-describing and verifiable. Content is decoded by the parser of
+ * the matching type ({@link Blob#parse}, {@link Tree#parse}, {@link Commit#parse}).
+ */
+public class ObjectCodec {
+
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+
+    /**
+     * Encode object as header followed by canonical content
+     */
+    public static byte[] encode(CoboltObject obj) {
+        byte[] content = obj instanceof Blob ? ((Blob) obj).data() : obj.getContent();
+        byte[] header = HashUtils.objectHeader(obj.getType(), content.length);
+
+        byte[] data = new byte[header.length + content.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(content, 0, data, header.length, content.length);
+        return data;
+    }
+
+    /**
+     * Decode object stored under the given ID
+     */
+    public static CoboltObject decode(String id, byte[] data) throws IOException {
+        if (isLegacy(data)) {
+            return decodeLegacy(id, data);
+        }
+
+        int space = indexOf(data, (byte) ' ', 0, data.length);
+        int nul = space < 0 ? -1 : indexOf(data, (byte) 0, space + 1, data.length);
+        if (nul < 0) {
+            throw new IOException("Corrupt object header: " + id);
+        }
+
+        String type = new String(data, 0, space, StandardCharsets.US_ASCII);
+        int length;
+        try {
+            length = Integer.parseInt(new String(data, space + 1, nul - space - 1, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt object length: " + id, e);
+        }
+
+        int offset = nul + 1;
+        if (data.length - offset != length) {
+            throw new IOException("Object length mismatch: " + id);
+        }
+
+        CoboltObject obj;
+        switch (type) {
+            case "blob":
+                obj = Blob.parse(data, offset, length);
+                break;
+            case "tree":
+                obj = Tree.parse(data, offset, length);
+                break;
+            case "commit":
+                obj = Commit.parse(data, offset, length);
+                break;
+            default:
+                throw new IOException("Unknown object type '" + type + "': " + id);
+        }
+
+        obj.id = ObjectId.fromString(id);
+        return obj;
+    }
+
+    /**
+     * Check if data was written by the old Java-serialization object store
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == LEGACY_MAGIC_0 && data[1] == LEGACY_MAGIC_1;
+    }
+
+    private static CoboltObject decodeLegacy(String id, byte[] data) throws IOException {
+        try {
+            CoboltObject obj = SerializationUtils.deserialize(data);
+            obj.id = ObjectId.fromString(id);
+            return obj;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Failed to deserialize object: " + id, e);
+        }
+    }
+
+    static int indexOf(byte[] data, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
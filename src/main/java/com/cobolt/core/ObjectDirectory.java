@@ -0,0 +1,1098 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.FileUtils;
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectHasher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Object storage under .cobolt/objects: packs in objects/pack, consulted
+ * first, and loose objects in objects/xx/yyyy.
+ *
+ * Loose objects are zlib-compressed with the configured level; level 0 stores
+ * them uncompressed. Readers detect the format from the first byte, so
+ * compressed, uncompressed and legacy objects can live side by side.
+ * Existence checks go through an {@link ObjectFilter} kept in objects/info.
+ *
+ * Objects not found here are looked up, read-only, in the object directories
+ * listed in objects/info/alternates, one path per line, relative paths taken
+ * from this objects directory. Writes always go here, and an object an
+ * alternate already has is never written again.
+ */
+public class ObjectDirectory implements Closeable {
+
+    static final int BUFFER_SIZE = 8192;
+
+    /** First byte of a zlib stream using deflate with a 32K window */
+    private static final int ZLIB_MAGIC = 0x78;
+
+    /** Longest possible header: "commit " + 10 digits + NUL */
+    private static final int MAX_HEADER_LENGTH = 32;
+
+    /** Bodies at least this large are memory-mapped rather than read into heap */
+    public static final long DEFAULT_MAP_THRESHOLD = 1024L * 1024;
+
+    /** Upper bound on bytes mapped at once across all live object buffers */
+    public static final long DEFAULT_MAP_LIMIT = 256L * 1024 * 1024;
+
+    /** Alternates of alternates are followed this many levels deep */
+    private static final int MAX_ALTERNATE_DEPTH = 5;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Path objectsDir;
+    private final Path packDir;
+    private final int compressionLevel;
+    private final long mapThreshold;
+    private final long mapLimit;
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final ObjectFilter filter;
+    private final int alternateDepth;
+
+    /** Fan-out directories seen to exist; a hint, since other writers may remove them */
+    private final boolean[] knownFanOut = new boolean[256];
+    private final AtomicLong tempCounter = new AtomicLong();
+
+    private volatile List<PackFile> packs;
+    private volatile List<ObjectDirectory> alternates;
+
+    public ObjectDirectory(Path objectsDir, int compressionLevel) {
+        this(objectsDir, compressionLevel, DEFAULT_MAP_THRESHOLD, DEFAULT_MAP_LIMIT);
+    }
+
+    public ObjectDirectory(Path objectsDir, int compressionLevel, long mapThreshold, long mapLimit) {
+        this(objectsDir, compressionLevel, mapThreshold, mapLimit, 0);
+    }
+
+    /**
+     * Alternates get no filter, since building one would write to a directory
+     * that is only borrowed
+     */
+    private ObjectDirectory(Path objectsDir, int compressionLevel, long mapThreshold, long mapLimit,
+            int alternateDepth) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        this.objectsDir = objectsDir;
+        this.packDir = objectsDir.resolve("pack");
+        this.compressionLevel = compressionLevel;
+        this.mapThreshold = mapThreshold;
+        this.mapLimit = mapLimit;
+        this.alternateDepth = alternateDepth;
+        this.filter = alternateDepth == 0 ? new ObjectFilter(this) : null;
+    }
+
+    /**
+     * Check if an object exists in a pack or loose, here or in an alternate.
+     * Most absent objects are ruled out by the Bloom filter without any file
+     * system access.
+     */
+    public boolean has(String id) throws IOException {
+        return hasLocal(id) || findAlternate(id) != null;
+    }
+
+    /**
+     * Check if an object is stored in this directory itself, ignoring alternates
+     */
+    boolean hasLocal(String id) throws IOException {
+        if (filter != null && !filter.mightContain(id)) {
+            return false;
+        }
+        if (inPacks(id) || isLoose(id)) {
+            return true;
+        }
+        // Another process may have packed the loose object since packs were scanned
+        return rescanPacks() && inPacks(id);
+    }
+
+    /**
+     * Read the stored bytes of an object ("type len\0content"), or null if absent
+     */
+    public byte[] read(String id) throws IOException {
+        for (PackFile pack : getPacks()) {
+            byte[] data = pack.read(id);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        byte[] data = readLoose(id);
+        if (data == null && rescanPacks()) {
+            for (PackFile pack : getPacks()) {
+                data = pack.read(id);
+                if (data != null) {
+                    return data;
+                }
+            }
+        }
+        if (data == null) {
+            ObjectDirectory alternate = findAlternate(id);
+            return alternate != null ? alternate.read(id) : null;
+        }
+        return data;
+    }
+
+    /**
+     * Read only the type and size of an object, or null if absent.
+     * Compressed objects are inflated just far enough to reach the header.
+     */
+    public ObjectHeader readHeader(String id) throws IOException {
+        for (PackFile pack : getPacks()) {
+            ObjectHeader header = pack.readHeader(id);
+            if (header != null) {
+                return header;
+            }
+        }
+
+        Path objectPath = getObjectPath(id);
+        if (!Files.exists(objectPath)) {
+            ObjectDirectory alternate = findAlternate(id);
+            return alternate != null ? alternate.readHeader(id) : null;
+        }
+
+        try (InputStream in = open(objectPath)) {
+            return readEncodedHeader(in, id);
+        }
+    }
+
+    /**
+     * Read the type and size of an object's content, or null if absent.
+     * Unlike {@link #readHeader}, chunked blobs report type blob and their
+     * reassembled size.
+     */
+    public ObjectHeader readContentHeader(String id) throws IOException {
+        ObjectHeader header = readHeader(id);
+        if (header != null && header.getType().equals(ChunkManifest.TYPE)) {
+            return new ObjectHeader("blob", readManifest(id).getSize());
+        }
+        return header;
+    }
+
+    /**
+     * Read the chunk manifest stored under an ID, or null if the object is
+     * absent or not chunked
+     */
+    ChunkManifest readManifest(String id) throws IOException {
+        byte[] data = read(id);
+        return data != null && ChunkManifest.isManifest(data) ? ChunkManifest.parse(id, data) : null;
+    }
+
+    /**
+     * Reassemble a chunked blob into its encoded form ("blob len\0content")
+     */
+    byte[] assemble(String id, ChunkManifest manifest) throws IOException {
+        byte[] header = HashUtils.objectHeader("blob", manifest.getSize());
+        if (header.length + manifest.getSize() > Integer.MAX_VALUE - 8) {
+            throw new IOException("Blob too large to read into memory: " + id);
+        }
+        byte[] data = new byte[header.length + (int) manifest.getSize()];
+        System.arraycopy(header, 0, data, 0, header.length);
+        try (InputStream in = new ChunkInputStream(id, manifest)) {
+            int n = in.readNBytes(data, header.length, data.length - header.length);
+            if (n != manifest.getSize()) {
+                throw new IOException("Truncated chunked blob: " + id);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Read the content of an object (without header) as a read-only buffer, or
+     * null if absent. Uncompressed loose objects of at least the map threshold
+     * are mapped from the object file while the mapped-bytes budget allows.
+     */
+    public ByteBuffer readBody(String id) throws IOException {
+        ObjectDirectory alternate = findBorrowed(id);
+        if (alternate != null) {
+            return alternate.readBody(id);
+        }
+        Path objectPath = getObjectPath(id);
+        if (!inPacks(id) && Files.exists(objectPath)) {
+            try (FileChannel channel = FileChannel.open(objectPath, StandardOpenOption.READ)) {
+                int headerLength = readRawHeaderLength(channel);
+                if (headerLength > 0 && !isManifest(channel)) {
+                    long size = channel.size() - headerLength;
+                    if (size >= mapThreshold && reserveMapped(size)) {
+                        ByteBuffer mapped;
+                        try {
+                            mapped = channel.map(FileChannel.MapMode.READ_ONLY, headerLength, size);
+                        } catch (IOException | RuntimeException e) {
+                            mappedBytes.addAndGet(-size);
+                            throw e;
+                        }
+                        // Views of the mapping keep it reachable, so the budget is
+                        // returned only once every derived buffer is gone
+                        CLEANER.register(mapped, () -> mappedBytes.addAndGet(-size));
+                        return mapped.asReadOnlyBuffer();
+                    }
+                }
+            }
+        }
+
+        byte[] data = read(id);
+        if (data == null) {
+            return null;
+        }
+        if (ObjectCodec.isLegacy(data)) {
+            data = ObjectCodec.encode(ObjectCodec.decode(id, data));
+        } else if (ChunkManifest.isManifest(data)) {
+            data = assemble(id, ChunkManifest.parse(id, data));
+        }
+        int offset = ObjectCodec.indexOf(data, (byte) 0, 0, data.length) + 1;
+        return ByteBuffer.wrap(data, offset, data.length - offset).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the content of a blob to a file, returning false if the object is absent.
+     * Uncompressed loose objects are moved file-to-file with transferTo;
+     * everything else is streamed into the target, chunked blobs chunk by
+     * chunk whether their manifest is loose or packed.
+     */
+    public boolean copyBodyTo(String id, Path target) throws IOException {
+        ObjectDirectory alternate = findBorrowed(id);
+        if (alternate != null) {
+            return alternate.copyBodyTo(id, target);
+        }
+        Path objectPath = getObjectPath(id);
+        if (inPacks(id) || !Files.exists(objectPath)) {
+            // Streamed, so a packed manifest is copied chunk by chunk rather than assembled in memory
+            try (ObjectStream in = openBody(id)) {
+                if (in == null) {
+                    return false;
+                }
+                if (!in.getType().equals("blob")) {
+                    throw new IOException("Not a blob: " + id);
+                }
+                Files.createDirectories(target.getParent());
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+
+        try (FileChannel in = FileChannel.open(objectPath, StandardOpenOption.READ)) {
+            int headerLength = readRawHeaderLength(in);
+            if (headerLength > 0) {
+                if (isManifest(in)) {
+                    return copyChunksTo(id, target);
+                }
+                ByteBuffer type = ByteBuffer.allocate(5);
+                in.read(type, 0);
+                if (!new String(type.array(), StandardCharsets.US_ASCII).equals("blob ")) {
+                    throw new IOException("Not a blob: " + id);
+                }
+
+                long size = in.size() - headerLength;
+                try (FileChannel out = openTarget(target)) {
+                    long position = 0;
+                    while (position < size) {
+                        long n = in.transferTo(headerLength + position, size - position, out);
+                        if (n <= 0) {
+                            // Nothing left to transfer: the file shrank underneath the copy
+                            throw new IOException("Object file truncated: " + id);
+                        }
+                        position += n;
+                    }
+                }
+                return true;
+            }
+        }
+
+        try (InputStream in = open(objectPath)) {
+            in.mark(2);
+            int first = in.read();
+            in.reset();
+
+            if (first == 0xAC) {
+                CoboltObject obj = ObjectCodec.decode(id, in.readAllBytes());
+                Files.createDirectories(target.getParent());
+                Files.write(target, obj.getContent());
+                return true;
+            }
+
+            ObjectHeader header = parseHeader(readHeaderBytes(in, id), id);
+            if (header.getType().equals(ChunkManifest.TYPE)) {
+                return copyChunksTo(id, target);
+            }
+            if (!header.getType().equals("blob")) {
+                throw new IOException("Not a blob: " + id);
+            }
+            Files.createDirectories(target.getParent());
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Open a stream over the content of an object (without header), or return
+     * null if absent. Loose objects are inflated while reading; packed objects
+     * are bounded by the big-file threshold and read into memory.
+     */
+    public ObjectStream openBody(String id) throws IOException {
+        ObjectDirectory alternate = findBorrowed(id);
+        if (alternate != null) {
+            return alternate.openBody(id);
+        }
+        if (!inPacks(id)) {
+            InputStream in;
+            try {
+                in = open(getObjectPath(id));
+            } catch (NoSuchFileException e) {
+                in = null; // Absent, or packed by another process since the check
+            }
+            if (in != null) {
+                try {
+                    in.mark(2);
+                    int first = in.read();
+                    in.reset();
+                    if (first == 0xAC) {
+                        CoboltObject obj = ObjectCodec.decode(id, in.readAllBytes());
+                        in.close();
+                        byte[] content = obj.getContent();
+                        return new ObjectStream(new ByteArrayInputStream(content),
+                                new ObjectHeader(obj.getType(), content.length));
+                    }
+                    ObjectHeader header = parseHeader(readHeaderBytes(in, id), id);
+                    if (header.getType().equals(ChunkManifest.TYPE)) {
+                        ChunkManifest manifest = ChunkManifest.parse(id, readManifestBytes(in, header, id));
+                        in.close();
+                        return openChunks(id, manifest);
+                    }
+                    return new ObjectStream(in, header);
+                } catch (IOException | RuntimeException e) {
+                    in.close();
+                    throw e;
+                }
+            }
+        }
+
+        byte[] data = read(id);
+        if (data == null) {
+            return null;
+        }
+        if (ObjectCodec.isLegacy(data)) {
+            data = ObjectCodec.encode(ObjectCodec.decode(id, data));
+        } else if (ChunkManifest.isManifest(data)) {
+            return openChunks(id, ChunkManifest.parse(id, data));
+        }
+        int offset = ObjectCodec.indexOf(data, (byte) 0, 0, data.length) + 1;
+        byte[] header = new byte[offset];
+        System.arraycopy(data, 0, header, 0, offset);
+        return new ObjectStream(new ByteArrayInputStream(data, offset, data.length - offset), parseHeader(header, id));
+    }
+
+    /**
+     * Check if an object is stored as a loose file
+     */
+    public boolean isLoose(String id) {
+        return Files.exists(getObjectPath(id));
+    }
+
+    /**
+     * Check if a loose object is still stored with Java serialization,
+     * without reading more than its first byte
+     */
+    public boolean isLegacyLoose(String id) throws IOException {
+        Path objectPath = getObjectPath(id);
+        if (!Files.exists(objectPath)) {
+            return false;
+        }
+        try (InputStream in = open(objectPath)) {
+            return in.read() == 0xAC;
+        }
+    }
+
+    /**
+     * Read a loose object's encoded bytes, or null if it is not loose
+     */
+    public byte[] readLoose(String id) throws IOException {
+        Path objectPath = getObjectPath(id);
+        if (!Files.exists(objectPath)) {
+            return null;
+        }
+
+        try (InputStream in = open(objectPath)) {
+            return readEncoded(in, id);
+        }
+    }
+
+    /**
+     * Delete a loose object file, and its fan-out directory once empty
+     */
+    public void deleteLoose(String id) throws IOException {
+        Path objectPath = getObjectPath(id);
+        Files.deleteIfExists(objectPath);
+        try {
+            if (Files.deleteIfExists(objectPath.getParent())) {
+                knownFanOut[Integer.parseInt(id.substring(0, 2), 16)] = false;
+            }
+        } catch (DirectoryNotEmptyException e) {
+            // Other objects share the fan-out directory
+        }
+    }
+
+    /**
+     * List the IDs of all loose objects
+     */
+    public List<String> listLooseObjectIds() throws IOException {
+        List<String> ids = new ArrayList<>();
+        if (!Files.isDirectory(objectsDir)) {
+            return ids;
+        }
+
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(objectsDir, "[0-9a-f][0-9a-f]")) {
+            for (Path dir : fanout) {
+                String prefix = dir.getFileName().toString();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (name.length() == 38 && !name.endsWith(".tmp")) {
+                            ids.add(prefix + name);
+                        }
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Close the Bloom filter's journal. Reads and writes still work after this,
+     * reopening it when needed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (filter != null) {
+            filter.close();
+        }
+    }
+
+    /**
+     * Get the object directories listed in objects/info/alternates
+     */
+    public List<ObjectDirectory> getAlternates() throws IOException {
+        List<ObjectDirectory> current = alternates;
+        if (current == null) {
+            current = loadAlternates();
+            alternates = current;
+        }
+        return current;
+    }
+
+    /**
+     * Replace the list of alternates; an empty list removes the file
+     */
+    public synchronized void setAlternates(List<Path> dirs) throws IOException {
+        Path alternatesPath = getAlternatesPath();
+        if (dirs.isEmpty()) {
+            Files.deleteIfExists(alternatesPath);
+        } else {
+            StringBuilder content = new StringBuilder();
+            for (Path dir : dirs) {
+                content.append(dir.toAbsolutePath().normalize()).append('\n');
+            }
+            FileUtils.writeAtomically(alternatesPath, content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        alternates = null;
+    }
+
+    private synchronized List<ObjectDirectory> loadAlternates() throws IOException {
+        Path alternatesPath = getAlternatesPath();
+        if (alternateDepth >= MAX_ALTERNATE_DEPTH || !Files.exists(alternatesPath)) {
+            return Collections.emptyList();
+        }
+        List<ObjectDirectory> loaded = new ArrayList<>();
+        for (String line : Files.readAllLines(alternatesPath, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Path dir = objectsDir.resolve(line).normalize();
+            if (!Files.isDirectory(dir)) {
+                throw new IOException("Alternate object directory not found: " + dir);
+            }
+            loaded.add(new ObjectDirectory(dir, compressionLevel, mapThreshold, mapLimit, alternateDepth + 1));
+        }
+        return Collections.unmodifiableList(loaded);
+    }
+
+    private Path getAlternatesPath() {
+        return objectsDir.resolve("info").resolve("alternates");
+    }
+
+    /**
+     * First alternate holding an object, or null
+     */
+    private ObjectDirectory findAlternate(String id) throws IOException {
+        for (ObjectDirectory alternate : getAlternates()) {
+            if (alternate.has(id)) {
+                return alternate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Alternate to read an object from, or null when it is stored here or
+     * absent. Costs nothing when there are no alternates.
+     */
+    private ObjectDirectory findBorrowed(String id) throws IOException {
+        if (getAlternates().isEmpty() || hasLocal(id)) {
+            return null;
+        }
+        return findAlternate(id);
+    }
+
+    /**
+     * Get the currently known packs
+     */
+    public List<PackFile> getPacks() throws IOException {
+        List<PackFile> current = packs;
+        if (current == null) {
+            synchronized (this) {
+                if (packs == null) {
+                    packs = scanPacks(Collections.emptyList());
+                }
+                current = packs;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Register a pack that was just written
+     */
+    public synchronized void addPack(PackFile pack) throws IOException {
+        List<PackFile> updated = new ArrayList<>(getPacks());
+        updated.add(0, pack);
+        packs = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Swap in a pack that supersedes older ones, then delete the old pack files
+     */
+    public void replacePacks(PackFile pack, List<PackFile> superseded) throws IOException {
+        synchronized (this) {
+            List<PackFile> updated = new ArrayList<>();
+            updated.add(pack);
+            for (PackFile existing : getPacks()) {
+                if (!superseded.contains(existing)) {
+                    updated.add(existing);
+                }
+            }
+            packs = Collections.unmodifiableList(updated);
+        }
+
+        for (PackFile old : superseded) {
+            old.close();
+            if (old.getIndexPath().equals(pack.getIndexPath())) {
+                continue; // Same object set, so the new pack was written over the old name
+            }
+            Files.deleteIfExists(old.getIndexPath());
+            Files.deleteIfExists(old.getPackPath());
+        }
+    }
+
+    private boolean inPacks(String id) throws IOException {
+        for (PackFile pack : getPacks()) {
+            if (pack.has(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pick up packs added since the last scan; returns true if any were found
+     */
+    private synchronized boolean rescanPacks() throws IOException {
+        List<PackFile> current = getPacks();
+        List<PackFile> rescanned = scanPacks(current);
+        if (rescanned.size() == current.size()) {
+            return false;
+        }
+        packs = rescanned;
+        return true;
+    }
+
+    private List<PackFile> scanPacks(List<PackFile> known) throws IOException {
+        List<PackFile> result = new ArrayList<>();
+        if (!Files.isDirectory(packDir)) {
+            return Collections.unmodifiableList(result);
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDir, "pack-*.idx")) {
+            for (Path indexPath : stream) {
+                PackFile existing = null;
+                for (PackFile pack : known) {
+                    if (pack.getIndexPath().equals(indexPath)) {
+                        existing = pack;
+                    }
+                }
+                result.add(existing != null ? existing : PackFile.open(indexPath));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Write encoded object bytes. The file is written under a temporary name
+     * and renamed into place, so a crash never leaves a torn object.
+     */
+    public void write(String id, byte[] data) throws IOException {
+        publish(writeTemp(id, deflate(data), false), id);
+        filter.add(id);
+    }
+
+    /**
+     * Create an empty temp file for a blob that is about to be streamed in
+     */
+    Path createTempFile() throws IOException {
+        Files.createDirectories(objectsDir);
+        return Files.createTempFile(objectsDir, "tmp_obj_", ".tmp");
+    }
+
+    /**
+     * Stream a blob into a temp file in loose object format and return its ID.
+     * The caller either publishes the file or deletes it.
+     */
+    String writeBlobTemp(InputStream in, long size, Path tempPath) throws IOException {
+        ObjectHasher hasher = HashUtils.newObjectHasher("blob", size);
+        try (OutputStream out = newObjectOutput(tempPath)) {
+            out.write(HashUtils.objectHeader("blob", size));
+
+            byte[] buffer = new byte[BUFFER_SIZE * 8];
+            long remaining = size;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Blob stream ended " + remaining + " bytes early");
+                }
+                hasher.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            if (in.read() >= 0) {
+                throw new IOException("Blob stream is longer than " + size + " bytes");
+            }
+        }
+        return hasher.finish().name();
+    }
+
+    /**
+     * Compress encoded object bytes into the loose file format
+     */
+    byte[] deflate(byte[] data) {
+        if (compressionLevel == Deflater.NO_COMPRESSION) {
+            return data;
+        }
+
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write loose file bytes to a temp file next to the object's final path,
+     * optionally forcing them to disk before returning
+     */
+    Path writeTemp(String id, byte[] fileBytes, boolean sync) throws IOException {
+        Path objectPath = getObjectPath(id);
+        Path tempPath = objectPath.resolveSibling(objectPath.getFileName() + "."
+                + ProcessHandle.current().pid() + "-" + tempCounter.incrementAndGet() + ".tmp");
+        ensureFanOut(id, objectPath.getParent());
+
+        try (FileChannel channel = createNew(tempPath)) {
+            ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        return tempPath;
+    }
+
+    /**
+     * Rename a finished temp file into place as a loose object. Returns the
+     * fan-out directory, whose entry must be synced for the rename to be durable.
+     */
+    Path publish(Path tempPath, String id) throws IOException {
+        Path objectPath = getObjectPath(id);
+        ensureFanOut(id, objectPath.getParent());
+        // Another writer may have stored the same object; the content is identical
+        Files.move(tempPath, objectPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return objectPath.getParent();
+    }
+
+    /**
+     * Record objects published in a batch, with one journal append
+     */
+    void recordPublished(List<String> ids) throws IOException {
+        filter.addAll(ids);
+    }
+
+    /**
+     * Force a file's content to disk
+     */
+    static void sync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Force a directory's entries to disk, where the platform supports it
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened or synced on some platforms (Windows)
+        }
+    }
+
+    private ObjectStream openChunks(String id, ChunkManifest manifest) {
+        return new ObjectStream(new ChunkInputStream(id, manifest), new ObjectHeader("blob", manifest.getSize()));
+    }
+
+    private boolean copyChunksTo(String id, Path target) throws IOException {
+        ChunkManifest manifest = readManifest(id);
+        if (manifest == null) {
+            throw new IOException("Corrupt chunk manifest: " + id);
+        }
+        Files.createDirectories(target.getParent());
+        try (InputStream in = new ChunkInputStream(id, manifest)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild a manifest's stored bytes from a stream positioned after its header
+     */
+    private static byte[] readManifestBytes(InputStream in, ObjectHeader header, String id) throws IOException {
+        byte[] prefix = HashUtils.objectHeader(header.getType(), header.getSize());
+        byte[] data = new byte[prefix.length + (int) header.getSize()];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        if (in.readNBytes(data, prefix.length, (int) header.getSize()) != header.getSize()) {
+            throw new IOException("Truncated object: " + id);
+        }
+        return data;
+    }
+
+    /**
+     * Check if an uncompressed object file holds a chunk manifest
+     */
+    private static boolean isManifest(FileChannel channel) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(ChunkManifest.TYPE.length() + 1);
+        channel.read(prefix, 0);
+        return ChunkManifest.isManifest(Arrays.copyOf(prefix.array(), prefix.position()));
+    }
+
+    private static FileChannel createNew(Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            // Fan-out directory was removed under us, e.g. by a concurrent repack
+            Files.createDirectories(file.getParent());
+            return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    private void ensureFanOut(String id, Path dir) throws IOException {
+        int fanOut = Integer.parseInt(id.substring(0, 2), 16);
+        if (!knownFanOut[fanOut]) {
+            Files.createDirectories(dir);
+            knownFanOut[fanOut] = true;
+        }
+    }
+
+    /**
+     * Rewrite an existing object via temp file and rename, so readers never
+     * observe a partially written file
+     */
+    public void replace(String id, byte[] data) throws IOException {
+        publish(writeTemp(id, deflate(data), false), id);
+    }
+
+    /**
+     * Get path of the loose object file for an ID
+     */
+    public Path getObjectPath(String id) {
+        String dirName = id.substring(0, 2);
+        String fileName = id.substring(2);
+        return objectsDir.resolve(dirName).resolve(fileName);
+    }
+
+    public Path getDirectory() {
+        return objectsDir;
+    }
+
+    public Path getPackDirectory() {
+        return packDir;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Length of the header of an uncompressed object file, or -1 if the file is
+     * compressed or legacy. Leaves the channel position unspecified.
+     */
+    private static int readRawHeaderLength(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+        channel.read(buffer, 0);
+        if (buffer.position() == 0) {
+            return -1;
+        }
+
+        int first = buffer.get(0) & 0xff;
+        if (first == ZLIB_MAGIC || first == 0xAC) {
+            return -1;
+        }
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean reserveMapped(long size) {
+        while (true) {
+            long current = mappedBytes.get();
+            if (current + size > mapLimit) {
+                return false;
+            }
+            if (mappedBytes.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    private static FileChannel openTarget(Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Open an object file for writing, compressing with the configured level
+     */
+    private OutputStream newObjectOutput(Path target) throws IOException {
+        if (compressionLevel == Deflater.NO_COMPRESSION) {
+            return new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE);
+        }
+
+        Deflater deflater = new Deflater(compressionLevel);
+        return new DeflaterOutputStream(Files.newOutputStream(target), deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Open an object file, transparently inflating it if compressed
+     */
+    private InputStream open(Path objectPath) throws IOException {
+        InputStream raw = new BufferedInputStream(Files.newInputStream(objectPath), BUFFER_SIZE);
+        raw.mark(1);
+        int first = raw.read();
+        raw.reset();
+
+        if (first == ZLIB_MAGIC) {
+            return new BufferedInputStream(new InflaterInputStream(raw), BUFFER_SIZE);
+        }
+        return raw;
+    }
+
+    /**
+     * Read encoded object bytes ("type len\0content") from a stream positioned
+     * at the header; legacy Java-serialized objects are returned whole
+     */
+    static byte[] readEncoded(InputStream in, String id) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        in.mark(2);
+        int first = in.read();
+        in.reset();
+
+        // Legacy Java-serialized objects carry no header; hand them over whole
+        if (first == 0xAC) {
+            return in.readAllBytes();
+        }
+
+        byte[] header = readHeaderBytes(in, id);
+        int size = (int) parseHeader(header, id).getSize();
+
+        byte[] data = new byte[header.length + size];
+        System.arraycopy(header, 0, data, 0, header.length);
+        if (in.readNBytes(data, header.length, size) != size) {
+            throw new IOException("Truncated object: " + id);
+        }
+        return data;
+    }
+
+    /**
+     * Read just the header of encoded object bytes from a stream
+     */
+    static ObjectHeader readEncodedHeader(InputStream in, String id) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        in.mark(2);
+        int first = in.read();
+        in.reset();
+
+        if (first == 0xAC) {
+            CoboltObject obj = ObjectCodec.decode(id, in.readAllBytes());
+            return new ObjectHeader(obj.getType(), obj.getContent().length);
+        }
+
+        return parseHeader(readHeaderBytes(in, id), id);
+    }
+
+    private static byte[] readHeaderBytes(InputStream in, String id) throws IOException {
+        byte[] header = new byte[MAX_HEADER_LENGTH];
+        for (int i = 0; i < MAX_HEADER_LENGTH; i++) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            header[i] = (byte) b;
+            if (b == 0) {
+                byte[] result = new byte[i + 1];
+                System.arraycopy(header, 0, result, 0, i + 1);
+                return result;
+            }
+        }
+        throw new IOException("Corrupt object header: " + id);
+    }
+
+    private static ObjectHeader parseHeader(byte[] header, String id) throws IOException {
+        int space = ObjectCodec.indexOf(header, (byte) ' ', 0, header.length);
+        if (space < 0) {
+            throw new IOException("Corrupt object header: " + id);
+        }
+
+        String type = new String(header, 0, space, StandardCharsets.US_ASCII);
+        try {
+            long size = Long.parseLong(new String(header, space + 1, header.length - space - 2, StandardCharsets.US_ASCII));
+            return new ObjectHeader(type, size);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt object length: " + id, e);
+        }
+    }
+
+    /**
+     * Content of a chunked blob, opening each chunk only when reading reaches it
+     */
+    private class ChunkInputStream extends InputStream {
+        private final String id;
+        private final ChunkManifest manifest;
+        private int next;
+        private InputStream current;
+
+        ChunkInputStream(String id, ChunkManifest manifest) {
+            this.id = id;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null) {
+                    if (next == manifest.getChunkIds().size()) {
+                        return -1;
+                    }
+                    current = openChunk(next++);
+                }
+                int n = current.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+
+        private InputStream openChunk(int index) throws IOException {
+            String chunkId = manifest.getChunkIds().get(index).name();
+            ObjectStream chunk = openBody(chunkId);
+            if (chunk == null) {
+                throw new IOException("Missing chunk " + chunkId + " of blob " + id);
+            }
+            if (chunk.getSize() != manifest.getChunkLength(index)) {
+                chunk.close();
+                throw new IOException("Chunk " + chunkId + " of blob " + id + " has the wrong size");
+            }
+            return chunk;
+        }
+    }
+}
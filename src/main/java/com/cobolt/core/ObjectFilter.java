@@ -0,0 +1,451 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.BloomFilter;
+import com.cobolt.objects.HashUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisted Bloom filter over every object ID in an object directory, so
+ * most lookups of absent objects are answered without touching the disk.
+ *
+ * The filter lives in objects/info/bloom together with the length of
+ * objects/info/bloom-journal it already covers. Every new object's ID is
+ * appended to the journal, by this and any other process, and loading replays
+ * the journal past that point. The filter is built from the loose object directories and
+ * packs on first use, and rebuilt once it holds more IDs than it was sized for.
+ *
+ * The journal starts with a random generation ID, recorded in the filter
+ * file too. Once the filter is saved, the journal is compacted: a new one is
+ * renamed into place, the rest of the old one is folded into the filter, and
+ * the filter is saved against the new generation, so the journal never grows
+ * much past {@link #FOLD_THRESHOLD} entries. A writer whose append landed in
+ * a journal that was replaced meanwhile repeats it in the new one; a reader
+ * seeing a new journal reloads the filter, and a filter saved against
+ * another generation is rebuilt. Compaction and saving are guarded by a lock
+ * file, so only one process at a time rewrites either file.
+ *
+ * Answers come from the filter in memory without locking or any file system
+ * access. Objects this instance records are in it at once; ones written by
+ * other processes are picked up from the journal on a miss at most every
+ * {@link #REFRESH_MILLIS}, so they may be reported missing for that long.
+ * A caller that needs them at once, like a read, looks at the files anyway.
+ */
+class ObjectFilter implements Closeable {
+
+    private static final byte[] MAGIC = { 'C', 'B', 'L', 'M' };
+    private static final int VERSION = 2;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /** Journal entries replayed on load before they are folded into the filter */
+    static final int FOLD_THRESHOLD = 4096;
+
+    /** Misses look for objects journaled by other processes at most this often */
+    static final long REFRESH_MILLIS = 100;
+
+    /** A lock file this old was left behind by a process that died */
+    private static final long STALE_LOCK_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final ObjectDirectory objectDirectory;
+    private final Path filterPath;
+    private final Path journalPath;
+    private final Path lockPath;
+
+    private volatile BloomFilter filter;
+
+    /** System.nanoTime() when the journal was last checked for other writers */
+    private volatile long refreshedAt;
+    private long replayedLength;
+    private FileChannel journal;
+
+    /** File key of the journal the channel was opened on, or null if the platform has none */
+    private Object journalKey;
+    private byte[] generation;
+
+    ObjectFilter(ObjectDirectory objectDirectory) {
+        this.objectDirectory = objectDirectory;
+        Path infoDir = objectDirectory.getDirectory().resolve("info");
+        this.filterPath = infoDir.resolve("bloom");
+        this.journalPath = infoDir.resolve("bloom-journal");
+        this.lockPath = infoDir.resolve("bloom.lock");
+    }
+
+    /**
+     * Check an ID; false means the object was not stored when the journal was
+     * last checked
+     */
+    boolean mightContain(String id) throws IOException {
+        byte[] raw = HashUtils.hexToBytes(id);
+        BloomFilter current = filter;
+        if (current != null) {
+            if (current.mightContain(raw)) {
+                return true;
+            }
+            if (System.nanoTime() - refreshedAt < TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS)) {
+                return false;
+            }
+        }
+        return confirmAbsent(raw);
+    }
+
+    private synchronized boolean confirmAbsent(byte[] raw) throws IOException {
+        refreshedAt = System.nanoTime();
+        if (filter == null || isReplaced()) {
+            // Another process compacted the journal, so our offset into it means nothing
+            closeJournal();
+            filter = load();
+        }
+        if (filter.mightContain(raw)) {
+            return true;
+        }
+        // Pick up objects other writers have journaled since we last looked
+        if (journal().size() > replayedLength) {
+            try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                replayedLength = replay(filter, in, replayedLength);
+            }
+            resizeIfFull();
+            return filter.mightContain(raw);
+        }
+        return false;
+    }
+
+    /**
+     * Record a newly written object. Must be called after the object is on disk.
+     */
+    synchronized void add(String id) throws IOException {
+        // A single small append is atomic, so concurrent writers never interleave an entry
+        append(ByteBuffer.wrap(HashUtils.hexToBytes(id)));
+    }
+
+    /**
+     * Record a batch of newly written objects with a single journal append.
+     * Must be called after the objects are on disk.
+     */
+    synchronized void addAll(List<String> ids) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(ids.size() * PackFile.ID_LENGTH);
+        for (String id : ids) {
+            entries.put(HashUtils.hexToBytes(id));
+        }
+        entries.flip();
+        append(entries);
+    }
+
+    /**
+     * Close the journal; it is reopened if more objects are recorded
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closeJournal();
+    }
+
+    private void append(ByteBuffer entries) throws IOException {
+        while (true) {
+            ByteBuffer data = entries.duplicate();
+            while (data.hasRemaining()) {
+                journal().write(data);
+            }
+            if (!isReplaced()) {
+                break;
+            }
+            // The journal was compacted; the compacting process may have read the old one before this append
+            closeJournal();
+            filter = null;
+        }
+        if (filter != null) {
+            byte[] raw = new byte[PackFile.ID_LENGTH];
+            for (int i = 0; i < entries.limit(); i += PackFile.ID_LENGTH) {
+                entries.get(i, raw);
+                filter.add(raw);
+            }
+            long end = journal.position();
+            if (end - entries.limit() == replayedLength) {
+                replayedLength = end;
+            }
+            resizeIfFull();
+        }
+    }
+
+    /**
+     * Past its sizing the false-positive rate climbs, so rebuild a larger filter
+     */
+    private void resizeIfFull() throws IOException {
+        if (filter.getCount() > filter.getCapacity()) {
+            filter = rebuild();
+        }
+    }
+
+    /**
+     * Journal channel, opened once for appending and for cheap size checks
+     */
+    private FileChannel journal() throws IOException {
+        while (journal == null) {
+            if (!Files.exists(journalPath)) {
+                createJournal(false);
+            }
+            Object keyBefore = fileKey();
+            byte[] opened = readGeneration();
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            // Replaced between the checks: the channel may be on either file, so try again
+            if (keyBefore != null && !keyBefore.equals(fileKey())) {
+                channel.close();
+                continue;
+            }
+            journal = channel;
+            journalKey = keyBefore;
+            generation = opened;
+        }
+        return journal;
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Check if the journal our channel appends to is no longer the current one
+     */
+    private boolean isReplaced() throws IOException {
+        return journal != null && journalKey != null && !journalKey.equals(fileKey());
+    }
+
+    private Object fileKey() throws IOException {
+        try {
+            return Files.readAttributes(journalPath, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private byte[] readGeneration() throws IOException {
+        try (InputStream in = Files.newInputStream(journalPath)) {
+            return in.readNBytes(PackFile.ID_LENGTH);
+        } catch (NoSuchFileException e) {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Write a journal holding only a new generation ID and move it into
+     * place, over the current one if {@code replace}
+     */
+    private void createJournal(boolean replace) throws IOException {
+        Files.createDirectories(journalPath.getParent());
+        byte[] id = new byte[PackFile.ID_LENGTH];
+        new SecureRandom().nextBytes(id);
+        Path tempPath = Files.createTempFile(journalPath.getParent(), "bloom-journal", ".tmp");
+        try {
+            Files.write(tempPath, id);
+            if (replace) {
+                Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.move(tempPath, journalPath);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // Another process created it first
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private BloomFilter load() throws IOException {
+        if (Files.exists(filterPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(filterPath), ObjectDirectory.BUFFER_SIZE))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (Arrays.equals(magic, MAGIC) && in.readInt() == VERSION) {
+                    byte[] savedGeneration = new byte[PackFile.ID_LENGTH];
+                    in.readFully(savedGeneration);
+                    long journalOffset = in.readLong();
+                    BloomFilter loaded = BloomFilter.readFrom(in);
+                    journal();
+                    if (Arrays.equals(savedGeneration, generation)) {
+                        try (FileChannel journalIn = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                            replayedLength = replay(loaded, journalIn, journalOffset);
+                        }
+                        if (loaded.getCount() <= loaded.getCapacity()) {
+                            if (replayedLength - journalOffset >= FOLD_THRESHOLD * PackFile.ID_LENGTH) {
+                                compact(loaded);
+                            }
+                            return loaded;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Unreadable or truncated filter: fall through and rebuild it
+            }
+        }
+        return rebuild();
+    }
+
+    /**
+     * Save a filter that covers the journal up to {@link #replayedLength}
+     * and start a new, empty journal, unless another process holds the lock
+     */
+    private void compact(BloomFilter target) throws IOException {
+        if (journalKey == null || !tryLock()) {
+            return;
+        }
+        try {
+            try (FileChannel old = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                if (isReplaced()) {
+                    return;
+                }
+                createJournal(true);
+                // Appends that reached the old journal before the switch are read here; later ones are repeated
+                replayedLength = replay(target, old, replayedLength);
+            }
+            closeJournal();
+            journal();
+            try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                replayedLength = replay(target, in, PackFile.ID_LENGTH);
+            }
+            save(target, generation, replayedLength);
+        } finally {
+            Files.deleteIfExists(lockPath);
+        }
+    }
+
+    /**
+     * Build a fresh filter from the object files. Objects written while the
+     * directories are listed land in the journal past the recorded offset.
+     * The journal is compacted along the way when the lock is free;
+     * otherwise the filter is kept in memory only.
+     */
+    private BloomFilter rebuild() throws IOException {
+        journal();
+        boolean locked = journalKey != null && tryLock();
+        try {
+            if (locked) {
+                // Objects journaled before the switch are on disk, so the listing below finds them
+                createJournal(true);
+                closeJournal();
+                journal();
+            }
+            byte[] listedGeneration = generation;
+            long journalOffset = journal.size();
+            journalOffset -= journalOffset % PackFile.ID_LENGTH;
+
+            List<String> looseIds = objectDirectory.listLooseObjectIds();
+            List<PackFile> packs = objectDirectory.getPacks();
+            long total = looseIds.size();
+            for (PackFile pack : packs) {
+                total += pack.getObjectCount();
+            }
+
+            // Leave room for the repository to double before the next rebuild
+            BloomFilter rebuilt = BloomFilter.create(total * 2, FALSE_POSITIVE_RATE);
+            for (String id : looseIds) {
+                rebuilt.add(HashUtils.hexToBytes(id));
+            }
+            for (PackFile pack : packs) {
+                for (int i = 0; i < pack.getObjectCount(); i++) {
+                    rebuilt.add(HashUtils.hexToBytes(pack.getId(i)));
+                }
+            }
+
+            if (locked) {
+                save(rebuilt, listedGeneration, journalOffset);
+            }
+            try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+                replayedLength = replay(rebuilt, in, journalOffset);
+            }
+            return rebuilt;
+        } finally {
+            if (locked) {
+                Files.deleteIfExists(lockPath);
+            }
+        }
+    }
+
+    /**
+     * Take the lock file guarding compaction, clearing one left by a dead process
+     */
+    private boolean tryLock() throws IOException {
+        Files.createDirectories(lockPath.getParent());
+        try {
+            Files.createFile(lockPath);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            try {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(lockPath).toMillis() > STALE_LOCK_MILLIS) {
+                    Files.deleteIfExists(lockPath);
+                }
+            } catch (NoSuchFileException gone) {
+                // Released meanwhile; the next compaction gets it
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Add journal entries from an offset; returns the offset after the last whole entry
+     */
+    private static long replay(BloomFilter target, FileChannel in, long offset) throws IOException {
+        long position = offset;
+        ByteBuffer buffer = ByteBuffer.allocate(PackFile.ID_LENGTH * 512);
+        while (in.read(buffer, position) > 0) {
+            int complete = buffer.position() - buffer.position() % PackFile.ID_LENGTH;
+            byte[] id = new byte[PackFile.ID_LENGTH];
+            for (int i = 0; i < complete; i += PackFile.ID_LENGTH) {
+                buffer.get(i, id);
+                target.add(id);
+            }
+            position += complete;
+            if (complete == 0) {
+                break; // Partial trailing entry still being appended
+            }
+            buffer.clear();
+        }
+        return position;
+    }
+
+    private void save(BloomFilter source, byte[] journalGeneration, long journalOffset) throws IOException {
+        Files.createDirectories(filterPath.getParent());
+        Path tempPath = Files.createTempFile(filterPath.getParent(), "bloom", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempPath), ObjectDirectory.BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.write(journalGeneration);
+                out.writeLong(journalOffset);
+                source.writeTo(out);
+            }
+            Files.move(tempPath, filterPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
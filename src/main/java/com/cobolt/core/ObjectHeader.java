@@ -0,0 +1,28 @@
+package com.cobolt.core;
+
+/**
+ * Type and content size of a stored object, read without decoding its body
+ */
+public class ObjectHeader {
+
+    private final String type;
+    private final long size;
+
+    public ObjectHeader(String type, long size) {
+        this.type = type;
+        this.size = size;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + size;
+    }
+}
@@ -0,0 +1,448 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ContentChunker;
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectHasher;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes many objects as one batch.
+ *
+ * Inserted objects are compressed into memory, or for large blobs streamed
+ * to a temp file, and nothing becomes visible until {@link #flush}. Flushing
+ * writes every object to a temp file and forces it to disk, then renames them
+ * all into place, then syncs each fan-out directory touched by the batch once.
+ * A crash therefore leaves either complete objects or stray temp files, never
+ * a torn object. The filter journal gets one append per batch.
+ *
+ * Blobs of at least the chunk threshold are split into content-defined chunks
+ * and stored as a {@link ChunkManifest}, so chunks shared with other versions
+ * are stored once.
+ *
+ * Objects are readable from the repository only after the batch is flushed;
+ * {@link #close} discards anything not yet flushed.
+ */
+public class ObjectInserter implements Closeable {
+
+    /** Buffered bytes that trigger an automatic flush */
+    static final long DEFAULT_BATCH_BYTES = 16L * 1024 * 1024;
+
+    private final ObjectDirectory objectDirectory;
+    private final ObjectCache objectCache;
+    private final boolean sync;
+    private final long batchBytes;
+    private final long chunkThreshold;
+
+    private final ObjectIdMap<Pending> pending = new ObjectIdMap<>();
+    private final List<Pending> order = new ArrayList<>();
+    private long bufferedBytes;
+    private int insertedCount;
+    private int chunkedBlobCount;
+    private long chunkedBytes;
+    private long newChunkBytes;
+
+    ObjectInserter(ObjectDirectory objectDirectory, ObjectCache objectCache, boolean sync, long batchBytes,
+            long chunkThreshold) {
+        this.objectDirectory = objectDirectory;
+        this.objectCache = objectCache;
+        this.sync = sync;
+        this.batchBytes = batchBytes;
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    /**
+     * Queue an object for writing and return its ID
+     */
+    public String insert(CoboltObject obj) throws IOException {
+        obj.computeId();
+        ObjectId id = obj.getObjectId();
+        if (pending.containsKey(id)) {
+            return id.name();
+        }
+        if (objectDirectory.has(id.name())) {
+            objectCache.put(id, obj);
+            return id.name();
+        }
+        // Cached only once flushed, so a discarded batch is never readable
+        Pending p = new Pending(id, objectDirectory.deflate(ObjectCodec.encode(obj)), null);
+        p.object = obj;
+        add(p);
+        return id.name();
+    }
+
+    /**
+     * Queue the content of a file as a blob. Large files are streamed to a
+     * temp file rather than read into memory.
+     */
+    public String insertBlob(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size < Repository.STREAM_THRESHOLD) {
+            return insert(new Blob(Files.readAllBytes(file)));
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            return insertBlob(in, size);
+        }
+    }
+
+    /**
+     * Queue a blob read from a stream of exactly {@code size} bytes
+     */
+    public String insertBlob(InputStream in, long size) throws IOException {
+        if (chunkThreshold > 0 && size >= chunkThreshold) {
+            return insertChunked(in, size);
+        }
+        if (size < Repository.STREAM_THRESHOLD) {
+            return insert(new Blob(in.readNBytes((int) size)));
+        }
+
+        Path tempPath = objectDirectory.createTempFile();
+        try {
+            ObjectId id = ObjectId.fromString(objectDirectory.writeBlobTemp(in, size, tempPath));
+            if (!has(id)) {
+                add(new Pending(id, null, tempPath));
+                tempPath = null;
+            }
+            return id.name();
+        } finally {
+            if (tempPath != null) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Hash and compress the content of a file ahead of {@link #insert(PreparedBlob)}.
+     * Unlike everything else here this may be called from several threads at
+     * once, so the expensive part of adding many files can run in parallel.
+     * Large files are streamed to a temp file; files to be chunked are only
+     * read when inserted.
+     */
+    public PreparedBlob prepareBlob(Path file) throws IOException {
+        long size = Files.size(file);
+        if (chunkThreshold > 0 && size >= chunkThreshold) {
+            return new PreparedBlob(null, file, null, null, null);
+        }
+        if (size < Repository.STREAM_THRESHOLD) {
+            return prepareBlob(Files.readAllBytes(file));
+        }
+
+        Path tempPath = objectDirectory.createTempFile();
+        try (InputStream in = Files.newInputStream(file)) {
+            ObjectId id = ObjectId.fromString(objectDirectory.writeBlobTemp(in, size, tempPath));
+            PreparedBlob blob = new PreparedBlob(id, null, null, null, tempPath);
+            tempPath = null;
+            return blob;
+        } finally {
+            if (tempPath != null) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Hash and compress blob content ahead of {@link #insert(PreparedBlob)};
+     * content that is already stored is not compressed. May be called from
+     * several threads at once.
+     */
+    public PreparedBlob prepareBlob(byte[] content) throws IOException {
+        if (chunkThreshold > 0 && content.length >= chunkThreshold) {
+            return new PreparedBlob(null, null, content, null, null);
+        }
+        ObjectId id = HashUtils.hashObject("blob", content);
+        if (objectDirectory.has(id.name())) {
+            return new PreparedBlob(id, null, content, null, null);
+        }
+        return new PreparedBlob(id, null, null, objectDirectory.deflate(encodeBlob(content)), null);
+    }
+
+    /**
+     * Queue a blob prepared by {@link #prepareBlob} and return its ID
+     */
+    public String insert(PreparedBlob blob) throws IOException {
+        if (blob.id == null) {
+            if (blob.content != null) {
+                String id = insertChunked(new ByteArrayInputStream(blob.content), blob.content.length);
+                blob.content = null;
+                return id;
+            }
+            try (InputStream in = Files.newInputStream(blob.source)) {
+                return insertChunked(in, Files.size(blob.source));
+            }
+        }
+        if (has(blob.id)) {
+            blob.discard();
+            return blob.id.name();
+        }
+        if (blob.tempPath != null) {
+            add(new Pending(blob.id, null, blob.tempPath));
+        } else if (blob.fileBytes != null) {
+            add(new Pending(blob.id, blob.fileBytes, null));
+        } else {
+            // Stored when prepared but gone since, so compress it after all
+            add(new Pending(blob.id, objectDirectory.deflate(encodeBlob(blob.content)), null));
+        }
+        blob.tempPath = null;
+        blob.fileBytes = null;
+        blob.content = null;
+        return blob.id.name();
+    }
+
+    /**
+     * Split a blob into chunks, queue the chunks not yet stored and then the
+     * manifest, under the ID of the whole content
+     */
+    private String insertChunked(InputStream in, long size) throws IOException {
+        ObjectHasher hasher = HashUtils.newObjectHasher("blob", size);
+        ContentChunker chunker = new ContentChunker(in, size);
+        ChunkManifest manifest = new ChunkManifest();
+
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            hasher.update(chunk, 0, chunk.length);
+            ObjectId chunkId = HashUtils.hashObject("blob", chunk);
+            if (!has(chunkId)) {
+                add(new Pending(chunkId, objectDirectory.deflate(encodeBlob(chunk)), null));
+                newChunkBytes += chunk.length;
+            }
+            manifest.add(chunkId, chunk.length);
+        }
+        if (manifest.getSize() != size) {
+            throw new IOException("Blob stream ended " + (size - manifest.getSize()) + " bytes early");
+        }
+
+        ObjectId id = hasher.finish();
+        chunkedBlobCount++;
+        chunkedBytes += size;
+        if (!has(id)) {
+            // Queued after its chunks, so it is never published before them
+            add(new Pending(id, objectDirectory.deflate(manifest.encode()), null));
+        }
+        return id.name();
+    }
+
+    private static byte[] encodeBlob(byte[] content) {
+        byte[] header = HashUtils.objectHeader("blob", content.length);
+        byte[] encoded = new byte[header.length + content.length];
+        System.arraycopy(header, 0, encoded, 0, header.length);
+        System.arraycopy(content, 0, encoded, header.length, content.length);
+        return encoded;
+    }
+
+    /**
+     * Queue a local copy of an object currently read from an alternate,
+     * keeping its stored form, so chunked blobs stay chunked
+     */
+    void insertLocalCopy(ObjectId id) throws IOException {
+        String name = id.name();
+        if (pending.containsKey(id) || objectDirectory.hasLocal(name)) {
+            return;
+        }
+        ObjectHeader header = objectDirectory.readHeader(name);
+        if (header == null) {
+            throw new IOException("Object not found: " + name);
+        }
+
+        if (header.getType().equals("blob") && header.getSize() >= Repository.STREAM_THRESHOLD) {
+            Path tempPath = objectDirectory.createTempFile();
+            try (ObjectStream in = objectDirectory.openBody(name)) {
+                if (!objectDirectory.writeBlobTemp(in, header.getSize(), tempPath).equals(name)) {
+                    throw new IOException("Blob content does not match its ID: " + name);
+                }
+                add(new Pending(id, null, tempPath));
+                tempPath = null;
+            } finally {
+                if (tempPath != null) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+            return;
+        }
+
+        byte[] data = objectDirectory.read(name);
+        if (ObjectCodec.isLegacy(data)) {
+            data = ObjectCodec.encode(ObjectCodec.decode(name, data));
+        }
+        add(new Pending(id, objectDirectory.deflate(data), null));
+    }
+
+    /**
+     * Check if an object is stored or waiting in this batch
+     */
+    public boolean has(ObjectId id) throws IOException {
+        return pending.containsKey(id) || objectDirectory.has(id.name());
+    }
+
+    /**
+     * Number of objects written by this inserter so far, excluding ones that
+     * were already stored
+     */
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * Number of blobs stored as chunks
+     */
+    public int getChunkedBlobCount() {
+        return chunkedBlobCount;
+    }
+
+    /**
+     * Total content size of the blobs stored as chunks
+     */
+    public long getChunkedBytes() {
+        return chunkedBytes;
+    }
+
+    /**
+     * Bytes of chunk content that were not already stored
+     */
+    public long getNewChunkBytes() {
+        return newChunkBytes;
+    }
+
+    /**
+     * Content size of chunked blobs per byte of new chunk data
+     */
+    public double getDedupRatio() {
+        return newChunkBytes == 0 ? (chunkedBytes == 0 ? 1.0 : Double.POSITIVE_INFINITY)
+                : (double) chunkedBytes / newChunkBytes;
+    }
+
+    /**
+     * Make every queued object durable and visible
+     */
+    public void flush() throws IOException {
+        if (order.isEmpty()) {
+            return;
+        }
+
+        List<String> published = new ArrayList<>(order.size());
+        try {
+            // Data first, so no rename can expose content that is not yet on disk
+            for (Pending p : order) {
+                if (p.tempPath == null) {
+                    p.tempPath = objectDirectory.writeTemp(p.id.name(), p.fileBytes, sync);
+                    p.fileBytes = null;
+                } else if (sync) {
+                    ObjectDirectory.sync(p.tempPath);
+                }
+            }
+
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Pending p : order) {
+                directories.add(objectDirectory.publish(p.tempPath, p.id.name()));
+                p.tempPath = null;
+                published.add(p.id.name());
+                if (p.object != null) {
+                    objectCache.put(p.id, p.object);
+                }
+            }
+            if (sync) {
+                for (Path dir : directories) {
+                    ObjectDirectory.syncDirectory(dir);
+                }
+            }
+        } finally {
+            // Published objects must reach the filter even if a later one failed
+            objectDirectory.recordPublished(published);
+            insertedCount += published.size();
+            discard();
+        }
+    }
+
+    /**
+     * Discard anything not yet flushed
+     */
+    @Override
+    public void close() throws IOException {
+        discard();
+    }
+
+    private void add(Pending p) throws IOException {
+        pending.put(p.id, p);
+        order.add(p);
+        bufferedBytes += p.fileBytes != null ? p.fileBytes.length : 0;
+        if (bufferedBytes >= batchBytes) {
+            flush();
+        }
+    }
+
+    private void discard() throws IOException {
+        IOException failure = null;
+        for (Pending p : order) {
+            if (p.tempPath != null) {
+                try {
+                    Files.deleteIfExists(p.tempPath);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        pending.clear();
+        order.clear();
+        bufferedBytes = 0;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A blob hashed and compressed but not yet queued. One that is never
+     * inserted must be discarded, which removes its temp file.
+     */
+    public static final class PreparedBlob {
+        private final ObjectId id;
+        private final Path source;
+        private byte[] content;
+        private byte[] fileBytes;
+        private Path tempPath;
+
+        private PreparedBlob(ObjectId id, Path source, byte[] content, byte[] fileBytes, Path tempPath) {
+            this.id = id;
+            this.source = source;
+            this.content = content;
+            this.fileBytes = fileBytes;
+            this.tempPath = tempPath;
+        }
+
+        /**
+         * Drop the prepared data
+         */
+        public void discard() throws IOException {
+            content = null;
+            fileBytes = null;
+            if (tempPath != null) {
+                Files.deleteIfExists(tempPath);
+                tempPath = null;
+            }
+        }
+    }
+
+    private static class Pending {
+        final ObjectId id;
+        byte[] fileBytes;
+        Path tempPath;
+
+        /** Object to cache once published, if the caller handed one over */
+        CoboltObject object;
+
+        Pending(ObjectId id, byte[] fileBytes, Path tempPath) {
+            this.id = id;
+            this.fileBytes = fileBytes;
+            this.tempPath = tempPath;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.cobolt.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Lazy handle to a stored object. The header is read on first use and the
+ * content is only touched when a stream is opened, so large blobs can be
+ * inspected and copied without loading them into memory. Blobs already in
+ * the object cache are served from there.
+ */
+public class ObjectLoader {
+
+    private final ObjectDirectory objectDirectory;
+    private final String id;
+    private final Blob cached;
+    private ObjectHeader header;
+
+    ObjectLoader(ObjectDirectory objectDirectory, String id, Blob cached) {
+        this.objectDirectory = objectDirectory;
+        this.id = id;
+        this.cached = cached;
+        if (cached != null) {
+            this.header = new ObjectHeader(cached.getType(), cached.getSize());
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the object type (blob, tree, commit)
+     */
+    public String getType() throws IOException {
+        return getHeader().getType();
+    }
+
+    /**
+     * Get the content size in bytes
+     */
+    public long getSize() throws IOException {
+        return getHeader().getSize();
+    }
+
+    /**
+     * Open a new stream over the object content; the caller must close it.
+     * The stream also reports the type and size without a separate header read.
+     */
+    public ObjectStream openStream() throws IOException {
+        if (cached != null) {
+            return new ObjectStream(new ByteArrayInputStream(cached.data()), header);
+        }
+        ObjectStream in = objectDirectory.openBody(id);
+        if (in == null) {
+            throw new IOException("Object not found: " + id);
+        }
+        return in;
+    }
+
+    private ObjectHeader getHeader() throws IOException {
+        if (header == null) {
+            header = objectDirectory.readContentHeader(id);
+            if (header == null) {
+                throw new IOException("Object not found: " + id);
+            }
+        }
+        return header;
+    }
+}
@@ -0,0 +1,29 @@
+package com.cobolt.core;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * Stream over the content of a stored object that also carries its header,
+ * so callers learn the type and size from the same open that reads the body
+ */
+public class ObjectStream extends FilterInputStream {
+
+    private final ObjectHeader header;
+
+    ObjectStream(InputStream in, ObjectHeader header) {
+        super(in);
+        this.header = header;
+    }
+
+    public String getType() {
+        return header.getType();
+    }
+
+    /**
+     * Total content size in bytes
+     */
+    public long getSize() {
+        return header.getSize();
+    }
+}
@@ -0,0 +1,310 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.DeltaUtils;
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read access to a pack: many objects concatenated into one .pack file, located
+ * through a sorted .idx file.
+ *
+ * Pack layout: "CPAK", version, object count, then one entry per object,
+ * then a SHA-1 of everything before it. An entry is a kind byte followed by
+ * either the zlib-compressed encoded object, or the 20-byte ID of a base
+ * object in the same pack and a zlib-compressed delta against it
+ * ({@link DeltaUtils}). Reconstructed bases are kept in a small cache so
+ * reading along a delta chain does not re-apply the whole chain each time.
+ *
+ * Index layout: "CPIX", version, a 256-entry fan-out table where entry i
+ * counts the objects whose first ID byte is <= i, the sorted 20-byte object
+ * IDs, their pack offsets (8 bytes each), their entry lengths (4 bytes each)
+ * and finally the pack checksum. A lookup narrows the range with the fan-out
+ * table and binary-searches the IDs, all in the memory-mapped index.
+ */
+public class PackFile implements Closeable {
+
+    static final byte[] PACK_MAGIC = { 'C', 'P', 'A', 'K' };
+    static final byte[] INDEX_MAGIC = { 'C', 'P', 'I', 'X' };
+    static final int VERSION = 1;
+    static final int PACK_HEADER_LENGTH = 12;
+    static final int ID_LENGTH = 20;
+    static final int FANOUT_ENTRIES = 256;
+
+    /** Entry holding the whole compressed object */
+    static final int ENTRY_WHOLE = 0;
+
+    /** Entry holding a base object ID and a compressed delta against it */
+    static final int ENTRY_DELTA = 1;
+
+    /** Default byte budget for reconstructed delta bases */
+    static final long DEFAULT_BASE_CACHE_LIMIT = 16L * 1024 * 1024;
+
+    /** Hard limit on delta chain length when reading, guarding against cycles */
+    private static final int MAX_CHAIN_DEPTH = 1000;
+
+    private static final int FANOUT_OFFSET = 8;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + FANOUT_ENTRIES * 4;
+
+    private final Path packPath;
+    private final Path indexPath;
+    private final MappedByteBuffer index;
+    private final FileChannel pack;
+    private final int objectCount;
+    private final int offsetsOffset;
+    private final int lengthsOffset;
+    private final DeltaBaseCache baseCache = new DeltaBaseCache(DEFAULT_BASE_CACHE_LIMIT);
+
+    private PackFile(Path indexPath, MappedByteBuffer index, Path packPath, FileChannel pack) throws IOException {
+        this.indexPath = indexPath;
+        this.index = index;
+        this.packPath = packPath;
+        this.pack = pack;
+
+        byte[] magic = new byte[4];
+        index.get(0, magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC) || index.getInt(4) != VERSION) {
+            throw new IOException("Unsupported pack index: " + indexPath);
+        }
+
+        this.objectCount = index.getInt(FANOUT_OFFSET + (FANOUT_ENTRIES - 1) * 4);
+        this.offsetsOffset = IDS_OFFSET + objectCount * ID_LENGTH;
+        this.lengthsOffset = offsetsOffset + objectCount * 8;
+    }
+
+    /**
+     * Open pack from its .idx path (the .pack must sit next to it)
+     */
+    public static PackFile open(Path indexPath) throws IOException {
+        String name = indexPath.getFileName().toString();
+        Path packPath = indexPath.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+
+        MappedByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        FileChannel pack = FileChannel.open(packPath, StandardOpenOption.READ);
+        try {
+            return new PackFile(indexPath, index, packPath, pack);
+        } catch (IOException e) {
+            pack.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check if the pack contains an object
+     */
+    public boolean has(String id) {
+        return findPosition(HashUtils.hexToBytes(id)) >= 0;
+    }
+
+    /**
+     * Read the encoded bytes of an object ("type len\0content"), or null if absent
+     */
+    public byte[] read(String id) throws IOException {
+        int position = findPosition(HashUtils.hexToBytes(id));
+        if (position < 0) {
+            return null;
+        }
+
+        return readAt(position, id, 0);
+    }
+
+    /**
+     * Read the type and size of an object, or null if absent
+     */
+    public ObjectHeader readHeader(String id) throws IOException {
+        int position = findPosition(HashUtils.hexToBytes(id));
+        if (position < 0) {
+            return null;
+        }
+
+        byte[] entry = readEntry(position, id);
+        if (entry[0] == ENTRY_DELTA) {
+            byte[] data = readAt(position, id, 0);
+            return ObjectDirectory.readEncodedHeader(new ByteArrayInputStream(data), id);
+        }
+
+        try (InputStream in = inflate(entry, 1)) {
+            return ObjectDirectory.readEncodedHeader(in, id);
+        }
+    }
+
+    /**
+     * Number of objects in the pack
+     */
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Get the ID of the object at a sorted position
+     */
+    public String getId(int position) {
+        return getObjectId(position).name();
+    }
+
+    /**
+     * Get the ID of the object at a sorted position
+     */
+    public ObjectId getObjectId(int position) {
+        byte[] id = new byte[ID_LENGTH];
+        index.get(IDS_OFFSET + position * ID_LENGTH, id);
+        return ObjectId.fromRaw(id);
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pack.close();
+    }
+
+    /**
+     * Reconstruct the encoded object at a position, following delta bases
+     */
+    private byte[] readAt(int position, String id, int depth) throws IOException {
+        byte[] entry = readEntry(position, id);
+
+        if (entry[0] == ENTRY_WHOLE) {
+            try (InputStream in = inflate(entry, 1)) {
+                return ObjectDirectory.readEncoded(in, id);
+            }
+        }
+
+        if (entry[0] != ENTRY_DELTA) {
+            throw new IOException("Unknown pack entry kind " + entry[0] + ": " + id);
+        }
+        if (depth > MAX_CHAIN_DEPTH) {
+            throw new IOException("Delta chain too deep: " + id);
+        }
+
+        byte[] baseIdBytes = Arrays.copyOfRange(entry, 1, 1 + ID_LENGTH);
+        int basePosition = findPosition(baseIdBytes);
+        if (basePosition < 0) {
+            throw new IOException("Missing delta base for " + id);
+        }
+
+        byte[] base = baseCache.get(basePosition);
+        if (base == null) {
+            base = readAt(basePosition, HashUtils.bytesToHex(baseIdBytes), depth + 1);
+            baseCache.put(basePosition, base);
+        }
+
+        byte[] delta;
+        try (InputStream in = inflate(entry, 1 + ID_LENGTH)) {
+            delta = in.readAllBytes();
+        }
+        try {
+            return DeltaUtils.applyDelta(base, delta);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt delta for " + id, e);
+        }
+    }
+
+    private byte[] readEntry(int position, String id) throws IOException {
+        long offset = index.getLong(offsetsOffset + position * 8);
+        int length = index.getInt(lengthsOffset + position * 4);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (pack.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Truncated pack entry: " + id);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static InputStream inflate(byte[] entry, int from) {
+        return new InflaterInputStream(new ByteArrayInputStream(entry, from, entry.length - from));
+    }
+
+    /**
+     * Locate an ID in the index, or return -1
+     */
+    private int findPosition(byte[] id) {
+        int first = id[0] & 0xff;
+        int low = first == 0 ? 0 : index.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = index.getInt(FANOUT_OFFSET + first * 4);
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareId(int position, byte[] id) {
+        int base = IDS_OFFSET + position * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int a = index.get(base + i) & 0xff;
+            int b = id[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * LRU cache of reconstructed delta bases, bounded by total bytes
+     */
+    private static class DeltaBaseCache {
+        private final long limit;
+        private final Map<Integer, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        DeltaBaseCache(long limit) {
+            this.limit = limit;
+        }
+
+        synchronized byte[] get(int position) {
+            return entries.get(position);
+        }
+
+        synchronized void put(int position, byte[] data) {
+            if (data.length > limit) {
+                return;
+            }
+            byte[] previous = entries.put(position, data);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += data.length;
+
+            var it = entries.values().iterator();
+            while (size > limit && it.hasNext()) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdSet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a new pack and its index (see {@link PackFile} for the layout).
+ *
+ * Entries are streamed into a temporary pack file as they are added; the
+ * index is written on {@link #finish()}, after which both files are renamed
+ * into place, pack first, so a reader never finds an index without its pack.
+ */
+public class PackWriter {
+
+    private final Path packDir;
+    private final Path tempPack;
+    private final FileChannel channel;
+    private final Deflater deflater;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ObjectIdSet added = new ObjectIdSet();
+    private long offset;
+    private byte[] checksum;
+
+    public PackWriter(Path packDir, int compressionLevel) throws IOException {
+        this.packDir = packDir;
+        Files.createDirectories(packDir);
+        this.tempPack = Files.createTempFile(packDir, "tmp_pack_", ".pack");
+        this.channel = FileChannel.open(tempPack, StandardOpenOption.WRITE);
+        this.deflater = new Deflater(compressionLevel);
+
+        ByteBuffer header = ByteBuffer.allocate(PackFile.PACK_HEADER_LENGTH);
+        header.put(PackFile.PACK_MAGIC).putInt(PackFile.VERSION).putInt(0).flip();
+        writeFully(header);
+    }
+
+    /**
+     * Add an encoded object ("type len\0content") to the pack
+     */
+    public void add(String id, byte[] data) throws IOException {
+        if (!added.add(ObjectId.fromString(id))) {
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 16);
+        buffer.write(PackFile.ENTRY_WHOLE);
+        writeEntry(id, buffer, data);
+    }
+
+    /**
+     * Add an object stored as a delta against a base object in the same pack
+     */
+    public void addDelta(String id, String baseId, byte[] delta) throws IOException {
+        if (!added.add(ObjectId.fromString(id))) {
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(delta.length + PackFile.ID_LENGTH + 16);
+        buffer.write(PackFile.ENTRY_DELTA);
+        buffer.write(HashUtils.hexToBytes(baseId));
+        writeEntry(id, buffer, delta);
+    }
+
+    private void writeEntry(String id, ByteArrayOutputStream buffer, byte[] payload) throws IOException {
+        deflater.reset();
+        try (OutputStream out = new DeflaterOutputStream(buffer, deflater, ObjectDirectory.BUFFER_SIZE)) {
+            out.write(payload);
+        }
+
+        byte[] entry = buffer.toByteArray();
+        entries.add(new Entry(HashUtils.hexToBytes(id), offset, entry.length));
+        writeFully(ByteBuffer.wrap(entry));
+    }
+
+    /**
+     * Number of objects added so far
+     */
+    public int getObjectCount() {
+        return entries.size();
+    }
+
+    /**
+     * Write the index, publish both files and open the finished pack
+     */
+    public PackFile finish() throws IOException {
+        try {
+            ByteBuffer count = ByteBuffer.allocate(4).putInt(0, entries.size());
+            channel.write(count, 8);
+
+            checksum = computeChecksum();
+            writeFully(ByteBuffer.wrap(checksum));
+            channel.force(true);
+        } finally {
+            channel.close();
+            deflater.end();
+        }
+
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.id, b.id));
+        String name = "pack-" + computeName();
+
+        Path packPath = packDir.resolve(name + ".pack");
+        Path indexPath = packDir.resolve(name + ".idx");
+        Path tempIndex = Files.createTempFile(packDir, "tmp_idx_", ".idx");
+
+        try {
+            writeIndex(tempIndex);
+            Files.move(tempPack, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempIndex);
+            Files.deleteIfExists(tempPack);
+        }
+
+        return PackFile.open(indexPath);
+    }
+
+    /**
+     * Discard the partially written pack
+     */
+    public void abort() throws IOException {
+        channel.close();
+        deflater.end();
+        Files.deleteIfExists(tempPack);
+    }
+
+    private void writeIndex(Path indexPath) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(indexPath), ObjectDirectory.BUFFER_SIZE))) {
+            out.write(PackFile.INDEX_MAGIC);
+            out.writeInt(PackFile.VERSION);
+
+            int[] fanout = new int[PackFile.FANOUT_ENTRIES];
+            for (Entry entry : entries) {
+                fanout[entry.id[0] & 0xff]++;
+            }
+            int total = 0;
+            for (int i = 0; i < fanout.length; i++) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+
+            for (Entry entry : entries) {
+                out.write(entry.id);
+            }
+            for (Entry entry : entries) {
+                out.writeLong(entry.offset);
+            }
+            for (Entry entry : entries) {
+                out.writeInt(entry.length);
+            }
+            out.write(checksum);
+        }
+    }
+
+    private byte[] computeChecksum() throws IOException {
+        MessageDigest digest = HashUtils.newSHA1();
+        byte[] buffer = new byte[ObjectDirectory.BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(tempPack)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private String computeName() {
+        MessageDigest digest = HashUtils.newSHA1();
+        for (Entry entry : entries) {
+            digest.update(entry.id);
+        }
+        return HashUtils.bytesToHex(digest.digest());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer);
+        }
+    }
+
+    private static class Entry {
+        final byte[] id;
+        final long offset;
+        final int length;
+
+        Entry(byte[] id, long offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
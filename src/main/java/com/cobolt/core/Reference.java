@@ -3,6 +3,7 @@ package com.cobolt.core;
 import com.cobolt.objects.FileUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 
 /**
@@ -62,7 +63,7 @@ public class Reference {
     public void save(Path refsDir) throws IOException {
         Path refPath = getRefPath(refsDir);
         String content = symbolic ? "ref: " + target : target;
-        FileUtils.writeString(refPath, content);
+        FileUtils.writeAtomically(refPath, content.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
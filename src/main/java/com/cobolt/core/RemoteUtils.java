@@ -1,9 +1,14 @@
 package com.cobolt.core;
 
 import com.cobolt.objects.FileUtils;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdMap;
+import com.cobolt.objects.ObjectIdSet;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 /**
@@ -27,7 +32,10 @@ public class RemoteUtils {
         if (commitId == null)
             throw new IOException("Branch not found: " + branchName);
 
-        transferCommit(local, remote, commitId);
+        try (ObjectInserter inserter = remote.newObjectInserter()) {
+            transferCommits(local, inserter, ObjectId.fromString(commitId), true, remote.getPromisorRemote() == null);
+            inserter.flush();
+        }
 
         // 2. Update remote ref
         remote.createBranch(branchName, commitId);
@@ -43,6 +51,15 @@ public class RemoteUtils {
      * Pull objects and refs from a remote repository.
      */
     public static void pull(Repository local, Repository remote, String branchName) throws IOException {
+        pull(local, remote, branchName, true);
+    }
+
+    /**
+     * Pull objects and refs from a remote repository, leaving out blobs unless
+     * {@code includeBlobs} is set.
+     */
+    public static void pull(Repository local, Repository remote, String branchName, boolean includeBlobs)
+            throws IOException {
         // 1. Get remote ref
         Reference remoteBranch = remote.getBranch(branchName);
         if (remoteBranch == null)
@@ -51,7 +68,12 @@ public class RemoteUtils {
         String commitId = remoteBranch.getTarget();
 
         // 2. Transfer objects
-        transferCommit(remote, local, commitId);
+        try (ObjectInserter inserter = local.newObjectInserter()) {
+            // A partial repository has commits whose blobs are missing, so a full pull walks all of them
+            boolean complete = !includeBlobs || local.getPromisorRemote() == null;
+            transferCommits(remote, inserter, ObjectId.fromString(commitId), includeBlobs, complete);
+            inserter.flush();
+        }
 
         // 3. Update local ref (fetch only? or merge? For now, let's just update a
         // remote-tracking branch)
@@ -74,45 +96,108 @@ public class RemoteUtils {
         }
     }
 
-    private static void transferCommit(Repository source, Repository dest, String commitId) throws IOException {
-        if (dest.hasObject(commitId))
-            return;
+    /**
+     * Copy a single object, without the objects it references
+     */
+    static void transferObject(Repository source, ObjectInserter dest, ObjectId id) throws IOException {
+        if (source.readObjectHeader(id).getType().equals("blob")) {
+            transferBlob(source, dest, id);
+        } else {
+            dest.insert(source.readObject(id));
+        }
+    }
 
-        CoboltObject obj = source.readObject(commitId);
-        dest.writeObject(obj);
+    /**
+     * Copy the commits reachable from {@code tipId} that the destination lacks,
+     * with their trees and, if {@code includeBlobs}, their blobs. Objects are
+     * queued after everything they reference, so a batch flushed partway never
+     * publishes an object whose references are missing. If {@code complete},
+     * every object the destination has is known to have all its references,
+     * and the walk stops there.
+     */
+    private static void transferCommits(Repository source, ObjectInserter dest, ObjectId tipId,
+            boolean includeBlobs, boolean complete) throws IOException {
+        ObjectIdMap<Commit> expanded = new ObjectIdMap<>();
+        ObjectIdSet done = new ObjectIdSet();
+        ObjectIdSet seen = new ObjectIdSet();
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        stack.push(tipId);
+
+        // Iterative post-order walk, since history is too deep to recurse over
+        while (!stack.isEmpty()) {
+            ObjectId id = stack.peek();
+            if (done.contains(id)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = expanded.get(id);
+            if (commit == null) {
+                if (complete && dest.has(id)) {
+                    done.add(id);
+                    stack.pop();
+                    continue;
+                }
+                CoboltObject obj = source.readObject(id);
+                if (!(obj instanceof Commit)) {
+                    throw new IOException("Not a commit: " + id);
+                }
+                commit = (Commit) obj;
+                expanded.put(id, commit);
+                for (ObjectId parentId : commit.getParents()) {
+                    if (!done.contains(parentId)) {
+                        stack.push(parentId);
+                    }
+                }
+                continue;
+            }
 
-        if (obj instanceof Commit) {
-            Commit commit = (Commit) obj;
-            transferTree(source, dest, commit.getTreeId());
-            for (String parentId : commit.getParentIds()) {
-                transferCommit(source, dest, parentId);
+            // Every parent is done, so the commit's references are all queued
+            stack.pop();
+            expanded.remove(id);
+            done.add(id);
+            transferTree(source, dest, commit.getTree(), includeBlobs, complete, seen);
+            if (!dest.has(id)) {
+                dest.insert(commit);
             }
         }
     }
 
-    private static void transferTree(Repository source, Repository dest, String treeId) throws IOException {
-        if (dest.hasObject(treeId))
+    /**
+     * Copy a tree after its blobs and subtrees
+     */
+    private static void transferTree(Repository source, ObjectInserter dest, ObjectId treeId, boolean includeBlobs,
+            boolean complete, ObjectIdSet seen) throws IOException {
+        if (!seen.add(treeId)) {
             return;
+        }
+        boolean present = dest.has(treeId);
+        if (present && complete) {
+            return;
+        }
 
-        CoboltObject obj = source.readObject(treeId);
-        dest.writeObject(obj);
-
-        if (obj instanceof Tree) {
-            Tree tree = (Tree) obj;
-            for (Tree.TreeEntry entry : tree.getEntries()) {
-                if (entry.isTree()) {
-                    transferTree(source, dest, entry.getId());
-                } else {
-                    transferBlob(source, dest, entry.getId());
-                }
+        Tree tree = (Tree) source.readObject(treeId);
+        for (Tree.TreeEntry entry : tree.getEntries()) {
+            if (entry.isTree()) {
+                transferTree(source, dest, entry.getObjectId(), includeBlobs, complete, seen);
+            } else if (includeBlobs && seen.add(entry.getObjectId())) {
+                transferBlob(source, dest, entry.getObjectId());
             }
         }
+        if (!present) {
+            dest.insert(tree);
+        }
     }
 
-    private static void transferBlob(Repository source, Repository dest, String blobId) throws IOException {
-        if (dest.hasObject(blobId))
+    private static void transferBlob(Repository source, ObjectInserter dest, ObjectId blobId) throws IOException {
+        if (dest.has(blobId))
             return;
-        CoboltObject obj = source.readObject(blobId);
-        dest.writeObject(obj);
+
+        // Stream the content across so large blobs are never held in memory
+        try (ObjectStream in = source.openObject(blobId).openStream()) {
+            String written = dest.insertBlob(in, in.getSize());
+            if (!written.equals(blobId.name())) {
+                throw new IOException("Blob content does not match its ID: " + blobId);
+            }
+        }
     }
 }
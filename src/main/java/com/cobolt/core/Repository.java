@@ -1,18 +1,41 @@
 package com.cobolt.core;
 
 import com.cobolt.objects.FileUtils;
-import com.cobolt.objects.SerializationUtils;
+import com.cobolt.objects.ObjectId;
+import com.cobolt.objects.ObjectIdMap;
+import com.cobolt.objects.ObjectIdSet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 /**
- * Central repository management class
+ * Central repository management class.
+ *
+ * A single instance may be shared between threads. Object reads and
+ * existence checks run concurrently; index and ref updates are serialized
+ * by explicit locks and written atomically, so readers never see a partial
+ * file. Object inserters are not shared and belong to one thread each.
  */
-public class Repository {
+public class Repository implements Closeable {
+
+    /** Blobs at least this large are written by streaming instead of in memory */
+    public static final long STREAM_THRESHOLD = 1024L * 1024;
+
+    /** Blobs at least this large are stored as chunks (core.chunkThreshold); 0 disables chunking */
+    public static final long DEFAULT_CHUNK_THRESHOLD = 0;
+
+    /** Objects larger than this are never packed (core.bigFileThreshold) */
+    public static final long DEFAULT_BIG_FILE_THRESHOLD = 512L * 1024 * 1024;
+
+    /** Changes kept on top of a shared index before merging, as a percentage of it (core.splitIndexMaxPercent) */
+    public static final int DEFAULT_SPLIT_INDEX_MAX_PERCENT = 20;
 
     private final Path workingDir;
     private final Path coboltDir;
@@ -20,8 +43,26 @@ public class Repository {
     private final Path refsDir;
     private final Path indexPath;
     private final Path configPath;
+    private final ObjectDirectory objectDirectory;
+    private final ObjectCache objectCache;
+
+    private final Index index;
 
-    private Index index;
+    /** Serializes index updates and saves */
+    private final ReentrantLock indexLock = new ReentrantLock();
+
+    /** Serializes ref updates, so compare-and-set updates are atomic */
+    private final ReentrantLock refLock = new ReentrantLock();
+
+    /** Serializes config rewrites */
+    private final ReentrantLock configLock = new ReentrantLock();
+
+    /** Serializes fetches of promised objects and guards the promisor handle */
+    private final ReentrantLock fetchLock = new ReentrantLock();
+
+    /** Remote that promises the objects a partial pull left out, or null */
+    private volatile String promisorRemote;
+    private Repository promisor;
 
     /**
      * Open existing repository
@@ -38,7 +79,18 @@ public class Repository {
             throw new IOException("Not a Cobolt repository: " + workingDir);
         }
 
+        this.objectDirectory = new ObjectDirectory(objectsDir,
+                getConfigInt("core.compression", Deflater.DEFAULT_COMPRESSION),
+                getConfigLong("core.mmapThreshold", ObjectDirectory.DEFAULT_MAP_THRESHOLD),
+                getConfigLong("core.mmapLimit", ObjectDirectory.DEFAULT_MAP_LIMIT));
+        this.objectCache = new ObjectCache(
+                getConfigLong("core.cache.metadataBytes", ObjectCache.DEFAULT_METADATA_BYTES),
+                getConfigLong("core.cache.blobBytes", ObjectCache.DEFAULT_BLOB_BYTES));
         this.index = Index.load(indexPath);
+        this.promisorRemote = findPromisorRemote();
+        if (index.isLegacy()) {
+            upgradeLegacyIndex();
+        }
     }
 
     /**
@@ -66,6 +118,46 @@ public class Repository {
         return new Repository(workingDir);
     }
 
+    /**
+     * Release open files held by the object store and the promisor, if one was opened
+     */
+    @Override
+    public void close() throws IOException {
+        objectDirectory.close();
+        fetchLock.lock();
+        try {
+            if (promisor != null) {
+                promisor.close();
+                promisor = null;
+            }
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    /**
+     * Create a repository from an existing one, with the source as remote
+     * "origin" and its branches and HEAD copied. A shared clone lists the
+     * source's object directory as an alternate instead of copying objects.
+     */
+    public static Repository clone(Path source, Path target, boolean shared) throws IOException {
+        try (Repository sourceRepo = new Repository(source)) {
+            Repository repo = init(target);
+            repo.addRemote("origin", sourceRepo.getWorkingDir().toString());
+            if (shared) {
+                repo.objectDirectory.setAlternates(Collections.singletonList(sourceRepo.objectsDir));
+            }
+            for (String branch : sourceRepo.listBranches()) {
+                RemoteUtils.pull(repo, sourceRepo, branch);
+            }
+            String currentBranch = sourceRepo.getCurrentBranch();
+            if (currentBranch != null) {
+                repo.setHead("refs/heads/" + currentBranch, true);
+            }
+            return repo;
+        }
+    }
+
     /**
      * Check if directory contains a Cobolt repository
      */
@@ -87,6 +179,94 @@ public class Repository {
         return null;
     }
 
+    // Config methods
+
+    /**
+     * Get config value (null if not set)
+     */
+    public String getConfig(String key) throws IOException {
+        if (!Files.exists(configPath)) {
+            return null;
+        }
+        String prefix = key + "=";
+        String value = null;
+        for (String line : Files.readAllLines(configPath)) {
+            if (line.startsWith(prefix)) {
+                value = line.substring(prefix.length()).trim();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Get integer config value, falling back to a default when unset
+     */
+    public int getConfigInt(String key, int defaultValue) throws IOException {
+        String value = getConfig(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid integer for " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Get boolean config value, falling back to a default when unset
+     */
+    public boolean getConfigBoolean(String key, boolean defaultValue) throws IOException {
+        String value = getConfig(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IOException("Invalid boolean for " + key + ": " + value);
+    }
+
+    /**
+     * Get long config value, falling back to a default when unset
+     */
+    public long getConfigLong(String key, long defaultValue) throws IOException {
+        String value = getConfig(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid integer for " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Set a config value, replacing any earlier setting of the key
+     */
+    public void setConfig(String key, String value) throws IOException {
+        configLock.lock();
+        try {
+            String prefix = key + "=";
+            List<String> lines = new ArrayList<>();
+            if (Files.exists(configPath)) {
+                for (String line : Files.readAllLines(configPath)) {
+                    if (!line.startsWith(prefix)) {
+                        lines.add(line);
+                    }
+                }
+            }
+            lines.add(prefix + value);
+            FileUtils.writeAtomically(configPath, (String.join("\n", lines) + "\n").getBytes());
+        } finally {
+            configLock.unlock();
+        }
+    }
+
     // Remote methods
 
     /**
@@ -106,14 +286,7 @@ public class Repository {
      * Get remote URL
      */
     public String getRemoteUrl(String name) throws IOException {
-        Path config = coboltDir.resolve("config");
-        List<String> lines = Files.readAllLines(config);
-        for (String line : lines) {
-            if (line.startsWith("remote." + name + ".url=")) {
-                return line.split("=", 2)[1];
-            }
-        }
-        return null;
+        return getConfig("remote." + name + ".url");
     }
 
     /**
@@ -125,94 +298,555 @@ public class Repository {
             throw new IOException("Remote not found: " + remoteName);
         }
 
-        Repository remoteRepo = new Repository(Path.of(url));
-        RemoteUtils.push(this, remoteRepo, branchName);
+        try (Repository remoteRepo = new Repository(Path.of(url))) {
+            RemoteUtils.push(this, remoteRepo, branchName);
+        }
     }
 
     /**
      * Pull from remote
      */
     public void pull(String remoteName, String branchName) throws IOException {
+        pull(remoteName, branchName, false);
+    }
+
+    /**
+     * Pull from remote. A partial pull fetches commits and trees only and
+     * marks the remote as the promisor of the blobs left out
+     * (remote.&lt;name&gt;.promisor), which are then fetched when first read.
+     */
+    public void pull(String remoteName, String branchName, boolean partial) throws IOException {
         String url = getRemoteUrl(remoteName);
         if (url == null) {
             throw new IOException("Remote not found: " + remoteName);
         }
 
-        Repository remoteRepo = new Repository(Path.of(url));
-        RemoteUtils.pull(this, remoteRepo, branchName);
+        try (Repository remoteRepo = new Repository(Path.of(url))) {
+            if (partial) {
+                // Recorded first, so an interrupted pull still knows where its blobs are
+                setConfig("remote." + remoteName + ".promisor", "true");
+                promisorRemote = remoteName;
+            }
+            RemoteUtils.pull(this, remoteRepo, branchName, !partial);
+        }
     }
 
-    // Object storage methods
+    /**
+     * Name of the remote promising missing objects, or null if this is not a
+     * partial repository
+     */
+    public String getPromisorRemote() {
+        return promisorRemote;
+    }
+
+    private String findPromisorRemote() throws IOException {
+        if (!Files.exists(configPath)) {
+            return null;
+        }
+        String found = null;
+        for (String line : Files.readAllLines(configPath)) {
+            if (line.startsWith("remote.") && line.endsWith(".promisor=true")) {
+                found = line.substring("remote.".length(), line.length() - ".promisor=true".length());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Fetch all objects of a tree that are missing locally from the promisor
+     * remote, as one batch. Returns the number of objects fetched.
+     */
+    public int prefetchTree(ObjectId treeId) throws IOException {
+        if (promisorRemote == null) {
+            return 0;
+        }
+        List<ObjectId> missing = new ArrayList<>();
+        collectMissing(treeId, missing, new ObjectIdSet());
+        return fetchPromised(missing);
+    }
 
-    private final Map<String, CoboltObject> objectCache = new LinkedHashMap<String, CoboltObject>(100, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, CoboltObject> eldest) {
-            return size() > 100;
+    private void collectMissing(ObjectId treeId, List<ObjectId> missing, ObjectIdSet seen)
+            throws IOException {
+        if (!seen.add(treeId)) {
+            return;
+        }
+        if (!objectDirectory.has(treeId.name())) {
+            missing.add(treeId);
+            return;
         }
-    };
+        Tree tree = (Tree) readObject(treeId);
+        for (Tree.TreeEntry entry : tree.getEntries()) {
+            if (entry.isTree()) {
+                collectMissing(entry.getObjectId(), missing, seen);
+            } else if (seen.add(entry.getObjectId())
+                    && !objectDirectory.has(entry.getObjectId().name())) {
+                missing.add(entry.getObjectId());
+            }
+        }
+    }
+
+    /**
+     * Fetch objects missing locally from the promisor remote in one inserter
+     * batch. Returns the number of objects fetched; 0 when there is no promisor.
+     */
+    int fetchPromised(Collection<ObjectId> ids) throws IOException {
+        if (promisorRemote == null || ids.isEmpty()) {
+            return 0;
+        }
+        fetchLock.lock();
+        try {
+            if (promisor == null) {
+                String url = getRemoteUrl(promisorRemote);
+                if (url == null) {
+                    throw new IOException("Promisor remote not found: " + promisorRemote);
+                }
+                promisor = new Repository(Path.of(url));
+            }
+            try (ObjectInserter inserter = newObjectInserter()) {
+                for (ObjectId id : ids) {
+                    // Another thread may have fetched it while we waited for the lock
+                    if (!inserter.has(id)) {
+                        RemoteUtils.transferObject(promisor, inserter, id);
+                    }
+                }
+                inserter.flush();
+                return inserter.getInsertedCount();
+            }
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    /**
+     * Fetch a single missing object; false if there is nothing to fetch it from
+     */
+    private boolean fetchPromised(ObjectId id) throws IOException {
+        return promisorRemote != null && !objectDirectory.has(id.name())
+                && fetchPromised(Collections.singletonList(id)) > 0;
+    }
+
+    // Object storage methods
 
     /**
      * Write object to object database
      */
     public String writeObject(CoboltObject obj) throws IOException {
         obj.computeId();
-        String id = obj.getId();
+        ObjectId objectId = obj.getObjectId();
+        String id = objectId.name();
 
-        // Cache it
-        objectCache.put(id, obj);
+        // Cached only once stored, so a failed write is never readable
+        if (!objectDirectory.has(id)) {
+            objectDirectory.write(id, ObjectCodec.encode(obj));
+        }
+        objectCache.put(objectId, obj);
+
+        return id;
+    }
+
+    /**
+     * Store the content of a file as a blob. Large files are streamed rather
+     * than read into memory, and chunked from core.chunkThreshold.
+     */
+    public String writeBlob(Path file) throws IOException {
+        try (ObjectInserter inserter = newObjectInserter()) {
+            String id = inserter.insertBlob(file);
+            inserter.flush();
+            return id;
+        }
+    }
 
-        Path objectPath = getObjectPath(id);
-        if (Files.exists(objectPath)) {
-            return id; // Object already exists
+    /**
+     * Store a blob read from a stream of exactly {@code size} bytes
+     */
+    public String writeBlob(InputStream in, long size) throws IOException {
+        try (ObjectInserter inserter = newObjectInserter()) {
+            String id = inserter.insertBlob(in, size);
+            inserter.flush();
+            return id;
         }
+    }
 
-        byte[] data = SerializationUtils.serialize(obj);
-        FileUtils.writeBytes(objectPath, data);
+    /**
+     * Create an inserter for writing many objects as one durable batch.
+     * Data is fsynced on flush unless core.fsyncObjects is false.
+     */
+    public ObjectInserter newObjectInserter() throws IOException {
+        return new ObjectInserter(objectDirectory, objectCache,
+                getConfigBoolean("core.fsyncObjects", true), ObjectInserter.DEFAULT_BATCH_BYTES,
+                getConfigLong("core.chunkThreshold", DEFAULT_CHUNK_THRESHOLD));
+    }
 
-        return id;
+    /**
+     * Get a lazy handle to an object, for streaming content that may not fit in memory
+     */
+    public ObjectLoader openObject(ObjectId id) throws IOException {
+        CoboltObject cached = objectCache.get(id);
+        if (cached == null) {
+            fetchPromised(id);
+        }
+        return new ObjectLoader(objectDirectory, id.name(), cached instanceof Blob ? (Blob) cached : null);
+    }
+
+    public ObjectLoader openObject(String id) throws IOException {
+        return openObject(ObjectId.fromString(id));
     }
 
     /**
      * Read object from object database
      */
+    public CoboltObject readObject(ObjectId id) throws IOException {
+        CoboltObject cached = objectCache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+
+        String name = id.name();
+        byte[] data = objectDirectory.read(name);
+        if (data == null && fetchPromised(id)) {
+            data = objectDirectory.read(name);
+        }
+        if (data == null) {
+            throw new IOException("Object not found: " + name);
+        }
+
+        if (ChunkManifest.isManifest(data)) {
+            data = objectDirectory.assemble(name, ChunkManifest.parse(name, data));
+        }
+        CoboltObject obj = ObjectCodec.decode(name, data);
+        objectCache.put(id, obj);
+        return obj;
+    }
+
     public CoboltObject readObject(String id) throws IOException {
-        if (objectCache.containsKey(id)) {
-            return objectCache.get(id);
+        return readObject(parseId(id));
+    }
+
+    /**
+     * Check if object exists
+     */
+    public boolean hasObject(ObjectId id) throws IOException {
+        if (objectCache.contains(id)) {
+            return true;
         }
+        return objectDirectory.has(id.name());
+    }
+
+    public boolean hasObject(String id) throws IOException {
+        return ObjectId.isId(id) && hasObject(ObjectId.fromString(id));
+    }
 
-        Path objectPath = getObjectPath(id);
-        if (!Files.exists(objectPath)) {
+    /**
+     * Get hit/miss, eviction and residency statistics of the object cache
+     */
+    public ObjectCache.Stats getObjectCacheStats() {
+        return objectCache.getStats();
+    }
+
+    /**
+     * Read the content of an object as a read-only buffer, without building the
+     * object. Large uncompressed loose objects are memory-mapped.
+     */
+    public ByteBuffer readObjectBody(ObjectId id) throws IOException {
+        CoboltObject cached = objectCache.get(id);
+        if (cached instanceof Blob) {
+            return ByteBuffer.wrap(((Blob) cached).data()).asReadOnlyBuffer();
+        }
+
+        ByteBuffer body = objectDirectory.readBody(id.name());
+        if (body == null && fetchPromised(id)) {
+            body = objectDirectory.readBody(id.name());
+        }
+        if (body == null) {
+            throw new IOException("Object not found: " + id);
+        }
+        return body;
+    }
+
+    public ByteBuffer readObjectBody(String id) throws IOException {
+        return readObjectBody(parseId(id));
+    }
+
+    /**
+     * Write the content of a blob to a working-tree file. Uncompressed loose
+     * blobs are copied file-to-file with FileChannel.transferTo.
+     */
+    public void checkoutBlob(ObjectId id, Path target) throws IOException {
+        if (objectDirectory.copyBodyTo(id.name(), target)) {
+            return;
+        }
+        if (!fetchPromised(id) || !objectDirectory.copyBodyTo(id.name(), target)) {
             throw new IOException("Object not found: " + id);
         }
+    }
+
+    public void checkoutBlob(String id, Path target) throws IOException {
+        checkoutBlob(parseId(id), target);
+    }
+
+    /**
+     * Read object type and size without decoding the object body
+     */
+    public ObjectHeader readObjectHeader(ObjectId id) throws IOException {
+        CoboltObject cached = objectCache.get(id);
+        if (cached != null) {
+            long size = cached instanceof Blob ? ((Blob) cached).getSize() : cached.getContent().length;
+            return new ObjectHeader(cached.getType(), size);
+        }
+
+        ObjectHeader header = objectDirectory.readContentHeader(id.name());
+        if (header == null && fetchPromised(id)) {
+            header = objectDirectory.readContentHeader(id.name());
+        }
+        if (header == null) {
+            throw new IOException("Object not found: " + id);
+        }
+        return header;
+    }
+
+    public ObjectHeader readObjectHeader(String id) throws IOException {
+        return readObjectHeader(parseId(id));
+    }
+
+    /**
+     * Parse a hex ID from callers, reporting malformed IDs as missing objects
+     */
+    private static ObjectId parseId(String id) throws IOException {
+        if (!ObjectId.isId(id)) {
+            throw new IOException("Object not found: " + id);
+        }
+        return ObjectId.fromString(id);
+    }
+
+    /**
+     * Rewrite objects stored with Java serialization in the canonical encoding.
+     * Returns the number of objects migrated.
+     */
+    public int migrateObjects() throws IOException {
+        int migrated = 0;
+
+        for (String id : objectDirectory.listLooseObjectIds()) {
+            if (!objectDirectory.isLegacyLoose(id)) {
+                continue;
+            }
+            byte[] data = objectDirectory.readLoose(id);
+
+            CoboltObject obj = ObjectCodec.decode(id, data);
+            obj.computeId();
+            if (!obj.getId().equals(id)) {
+                throw new IOException("Object content does not match its ID: " + id);
+            }
+
+            objectDirectory.replace(id, ObjectCodec.encode(obj));
+            migrated++;
+        }
+
+        objectCache.clear();
+        return migrated;
+    }
+
+    /**
+     * Move all loose objects reachable from refs or the index into a new pack
+     * and delete the loose copies. Objects larger than core.bigFileThreshold
+     * stay loose, since packed objects are read into memory whole.
+     * Returns the number of objects packed.
+     */
+    public int repack() throws IOException {
+        List<ObjectId> reachable = collectReachableObjects().keys();
+        long bigFileThreshold = getBigFileThreshold();
 
+        PackWriter writer = new PackWriter(objectDirectory.getPackDirectory(), objectDirectory.getCompressionLevel());
+        List<String> packed = new ArrayList<>();
         try {
-            byte[] data = FileUtils.readBytes(objectPath);
-            CoboltObject obj = SerializationUtils.deserialize(data);
-            objectCache.put(id, obj);
-            return obj;
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Failed to deserialize object: " + id, e);
+            for (ObjectId objectId : reachable) {
+                String id = objectId.name();
+                if (!objectDirectory.isLoose(id) || objectDirectory.readHeader(id).getSize() > bigFileThreshold) {
+                    continue;
+                }
+                byte[] data = objectDirectory.readLoose(id);
+                if (data == null) {
+                    continue; // Already packed
+                }
+                if (ObjectCodec.isLegacy(data)) {
+                    data = ObjectCodec.encode(ObjectCodec.decode(id, data));
+                }
+                writer.add(id, data);
+                packed.add(id);
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (packed.isEmpty()) {
+            writer.abort();
+            return 0;
+        }
+
+        objectDirectory.addPack(writer.finish());
+        for (String id : packed) {
+            objectDirectory.deleteLoose(id);
         }
+        return packed.size();
     }
 
     /**
-     * Check if object exists
+     * Rewrite all packed and reachable objects into one delta-compressed archive pack
      */
-    public boolean hasObject(String id) {
-        if (objectCache.containsKey(id)) {
-            return true;
+    public DeltaCompactor.Result compact(int window, int depth) throws IOException {
+        DeltaCompactor.Result result = new DeltaCompactor(this, objectDirectory, window, depth,
+                getBigFileThreshold()).compact();
+        objectCache.clear();
+        return result;
+    }
+
+    private long getBigFileThreshold() throws IOException {
+        return getConfigLong("core.bigFileThreshold", DEFAULT_BIG_FILE_THRESHOLD);
+    }
+
+    /**
+     * Collect all objects reachable from branches, tags, HEAD and the index,
+     * mapped to the path they were first seen at ("" for commits and the root
+     * tree).
+     */
+    ObjectIdMap<String> collectReachableObjects() throws IOException {
+        Deque<ObjectId> commits = new ArrayDeque<>();
+        for (String branch : listBranches()) {
+            commits.add(ObjectId.fromString(getBranch(branch).getTarget()));
+        }
+        for (String tag : listTags()) {
+            commits.add(ObjectId.fromString(getTag(tag).getTarget()));
+        }
+        String head = resolveRef("HEAD");
+        if (head != null) {
+            commits.add(ObjectId.fromString(head));
+        }
+
+        ObjectIdMap<String> reachable = new ObjectIdMap<>();
+        while (!commits.isEmpty()) {
+            ObjectId commitId = commits.poll();
+            if (reachable.putIfAbsent(commitId, "") != null) {
+                continue;
+            }
+            Commit commit = (Commit) readObject(commitId);
+            collectTree(commit.getTree(), "", reachable);
+            commits.addAll(commit.getParents());
+        }
+
+        for (Index.IndexEntry entry : index.getEntries()) {
+            collectBlob(entry.getObjectId(), entry.getPath(), reachable);
         }
-        return Files.exists(getObjectPath(id));
+        return reachable;
     }
 
-    private Path getObjectPath(String id) {
-        String dirName = id.substring(0, 2);
-        String fileName = id.substring(2);
-        return objectsDir.resolve(dirName).resolve(fileName);
+    private void collectTree(ObjectId treeId, String path, ObjectIdMap<String> reachable) throws IOException {
+        if (reachable.putIfAbsent(treeId, path) != null) {
+            return;
+        }
+        Tree tree = (Tree) readObject(treeId);
+        for (Tree.TreeEntry entry : tree.getEntries()) {
+            String entryPath = path.isEmpty() ? entry.getName() : path + "/" + entry.getName();
+            if (entry.isTree()) {
+                collectTree(entry.getObjectId(), entryPath, reachable);
+            } else {
+                collectBlob(entry.getObjectId(), entryPath, reachable);
+            }
+        }
+    }
+
+    /**
+     * Add a blob, and the chunks of a chunked blob. Blobs a partial repository
+     * has not fetched are skipped.
+     */
+    private void collectBlob(ObjectId blobId, String path, ObjectIdMap<String> reachable) throws IOException {
+        if (reachable.containsKey(blobId)) {
+            return;
+        }
+        if (promisorRemote != null && !objectDirectory.has(blobId.name())) {
+            return; // Left out by a partial pull; the promisor remote has it
+        }
+        reachable.put(blobId, path);
+        ObjectHeader header = objectDirectory.readHeader(blobId.name());
+        if (header != null && header.getType().equals(ChunkManifest.TYPE)) {
+            for (ObjectId chunkId : objectDirectory.readManifest(blobId.name()).getChunkIds()) {
+                reachable.putIfAbsent(chunkId, path);
+            }
+        }
+    }
+
+    /**
+     * Object directories this repository borrows objects from
+     */
+    public List<Path> getAlternates() throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        for (ObjectDirectory alternate : objectDirectory.getAlternates()) {
+            dirs.add(alternate.getDirectory());
+        }
+        return dirs;
+    }
+
+    /**
+     * Copy every reachable object that is only stored in an alternate into
+     * this repository, then stop using alternates. Returns the number of
+     * objects copied.
+     */
+    public int dissociate() throws IOException {
+        if (objectDirectory.getAlternates().isEmpty()) {
+            return 0;
+        }
+        try (ObjectInserter inserter = newObjectInserter()) {
+            for (ObjectId id : collectReachableObjects().keys()) {
+                inserter.insertLocalCopy(id);
+            }
+            // Everything must be durable here before the alternates go away
+            inserter.flush();
+            objectDirectory.setAlternates(Collections.emptyList());
+            return inserter.getInsertedCount();
+        }
+    }
+
+    /**
+     * List the blobs of a tree recursively, keyed by path and sorted
+     */
+    public SortedMap<String, Tree.TreeEntry> readTreeEntries(ObjectId treeId) throws IOException {
+        SortedMap<String, Tree.TreeEntry> result = new TreeMap<>();
+        collectTreeEntries(treeId, "", result);
+        return result;
+    }
+
+    private void collectTreeEntries(ObjectId treeId, String prefix, SortedMap<String, Tree.TreeEntry> result)
+            throws IOException {
+        Tree tree = (Tree) readObject(treeId);
+        for (Tree.TreeEntry entry : tree.getEntries()) {
+            String path = prefix + entry.getName();
+            if (entry.isTree()) {
+                collectTreeEntries(entry.getObjectId(), path + "/", result);
+            } else {
+                result.put(path, entry);
+            }
+        }
     }
 
     // Index methods
 
+    /**
+     * Older versions cleared the index on commit, so it only held changes on
+     * top of HEAD. Fill in the rest of HEAD so it describes the whole next
+     * commit, as the index now does.
+     */
+    private void upgradeLegacyIndex() throws IOException {
+        String head = resolveRef("HEAD");
+        if (head == null) {
+            return;
+        }
+        Commit commit = (Commit) readObject(head);
+        for (Map.Entry<String, Tree.TreeEntry> e : readTreeEntries(commit.getTree()).entrySet()) {
+            if (!index.contains(e.getKey())) {
+                index.add(e.getKey(), e.getValue().getObjectId(), e.getValue().getMode());
+            }
+        }
+    }
+
     /**
      * Get the staging area
      */
@@ -221,10 +855,102 @@ public class Repository {
     }
 
     /**
-     * Save index to disk
+     * Lock to hold across a read-modify-write of the index; {@link #saveIndex}
+     * takes it as well
+     */
+    public Lock getIndexLock() {
+        return indexLock;
+    }
+
+    /**
+     * Ask the file-system monitor which paths changed since the token saved
+     * in the index. Returns null if core.fsmonitor is off or no monitor is
+     * running, in which case the whole working tree has to be examined.
+     */
+    public FsMonitor.Result queryFsMonitor() throws IOException {
+        if (!getConfigBoolean("core.fsmonitor", false)) {
+            return null;
+        }
+        indexLock.lock();
+        String token;
+        try {
+            token = index.getMonitorToken();
+        } finally {
+            indexLock.unlock();
+        }
+        return FsMonitor.query(coboltDir, token);
+    }
+
+    /**
+     * Write the tree described by the index and return the root tree ID.
+     * Directories whose cached tree is still valid are reused without being
+     * rebuilt; every tree written is cached in the index, which the caller
+     * saves once the inserter is flushed.
+     */
+    public ObjectId writeTree(ObjectInserter inserter) throws IOException {
+        indexLock.lock();
+        try {
+            List<Index.IndexEntry> entries = new ArrayList<>(index.getEntries());
+            return writeTree(inserter, entries, 0, entries.size(), "");
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Write the tree of one directory from the entries in [from, to), which
+     * are sorted and all lie below {@code dir}
+     */
+    private ObjectId writeTree(ObjectInserter inserter, List<Index.IndexEntry> entries, int from, int to, String dir)
+            throws IOException {
+        ObjectId cached = index.getCachedTree(dir);
+        // Only trust a cached tree that was actually written
+        if (cached != null && inserter.has(cached)) {
+            return cached;
+        }
+
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        Tree tree = new Tree();
+        int i = from;
+        while (i < to) {
+            Index.IndexEntry entry = entries.get(i);
+            String rest = entry.getPath().substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0) {
+                tree.addEntry(rest, entry.getObjectId(), entry.getMode());
+                i++;
+                continue;
+            }
+
+            // Paths sharing a prefix are contiguous in sorted order
+            String name = rest.substring(0, slash);
+            String childPrefix = prefix + name + "/";
+            int end = i + 1;
+            while (end < to && entries.get(end).getPath().startsWith(childPrefix)) {
+                end++;
+            }
+            tree.addEntry(name, writeTree(inserter, entries, i, end, prefix + name), "040000");
+            i = end;
+        }
+
+        ObjectId treeId = ObjectId.fromString(inserter.insert(tree));
+        index.putCachedTree(dir, treeId);
+        return treeId;
+    }
+
+    /**
+     * Save index to disk, split into a shared base and recent changes when
+     * core.splitIndex is set
      */
     public void saveIndex() throws IOException {
-        index.save(indexPath);
+        boolean split = getConfigBoolean("core.splitIndex", false);
+        int maxChangePercent = getConfigInt("core.splitIndexMaxPercent", DEFAULT_SPLIT_INDEX_MAX_PERCENT);
+        indexLock.lock();
+        try {
+            index.save(indexPath, split, maxChangePercent);
+        } finally {
+            indexLock.unlock();
+        }
     }
 
     // Reference methods
@@ -241,7 +967,12 @@ public class Repository {
      */
     public void setHead(String target, boolean symbolic) throws IOException {
         Reference head = new Reference("HEAD", Reference.Type.HEAD, target, symbolic);
-        head.save(refsDir);
+        refLock.lock();
+        try {
+            head.save(refsDir);
+        } finally {
+            refLock.unlock();
+        }
     }
 
     /**
@@ -256,16 +987,46 @@ public class Repository {
      */
     public void createBranch(String name, String commitId) throws IOException {
         Reference branch = new Reference(name, Reference.Type.BRANCH, commitId);
-        branch.save(refsDir);
+        refLock.lock();
+        try {
+            branch.save(refsDir);
+        } finally {
+            refLock.unlock();
+        }
+    }
+
+    /**
+     * Move a branch only if it still points at the expected commit (null
+     * meaning the branch must not exist yet). Returns false, leaving the
+     * branch alone, if another writer moved it first.
+     */
+    public boolean updateBranch(String name, String expectedId, String commitId) throws IOException {
+        refLock.lock();
+        try {
+            Reference current = getBranch(name);
+            String currentId = current != null ? current.getTarget() : null;
+            if (!Objects.equals(currentId, expectedId)) {
+                return false;
+            }
+            new Reference(name, Reference.Type.BRANCH, commitId).save(refsDir);
+            return true;
+        } finally {
+            refLock.unlock();
+        }
     }
 
     /**
      * Delete branch
      */
     public void deleteBranch(String name) throws IOException {
-        Reference branch = getBranch(name);
-        if (branch != null) {
-            branch.delete(refsDir);
+        refLock.lock();
+        try {
+            Reference branch = getBranch(name);
+            if (branch != null) {
+                branch.delete(refsDir);
+            }
+        } finally {
+            refLock.unlock();
         }
     }
 
@@ -279,6 +1040,7 @@ public class Repository {
         }
 
         return FileUtils.listFilesRecursively(headsDir).stream()
+                .filter(p -> !p.getFileName().toString().startsWith("."))
                 .map(p -> headsDir.relativize(p).toString())
                 .collect(Collectors.toList());
     }
@@ -288,7 +1050,12 @@ public class Repository {
      */
     public void createTag(String name, String commitId) throws IOException {
         Reference tag = new Reference(name, Reference.Type.TAG, commitId);
-        tag.save(refsDir);
+        refLock.lock();
+        try {
+            tag.save(refsDir);
+        } finally {
+            refLock.unlock();
+        }
     }
 
     /**
@@ -302,9 +1069,14 @@ public class Repository {
      * Delete tag
      */
     public void deleteTag(String name) throws IOException {
-        Reference tag = getTag(name);
-        if (tag != null) {
-            tag.delete(refsDir);
+        refLock.lock();
+        try {
+            Reference tag = getTag(name);
+            if (tag != null) {
+                tag.delete(refsDir);
+            }
+        } finally {
+            refLock.unlock();
         }
     }
 
@@ -318,6 +1090,7 @@ public class Repository {
         }
 
         return FileUtils.listFilesRecursively(tagsDir).stream()
+                .filter(p -> !p.getFileName().toString().startsWith("."))
                 .map(p -> tagsDir.relativize(p).toString())
                 .sorted()
                 .collect(Collectors.toList());
@@ -0,0 +1,295 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+import com.cobolt.objects.ObjectId;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compares HEAD with the index and the index with the working tree,
+ * reporting each difference to a {@link Listener} in path order as soon as
+ * it is known.
+ *
+ * HEAD and the index are compared by walking the HEAD tree alongside the
+ * sorted index entries. A directory whose tree ID cached in the index is
+ * the HEAD subtree has no staged changes, so neither is read any further;
+ * right after a commit the whole comparison is one lookup.
+ *
+ * Working-tree files are stat'ed first: trusted stat data that still matches
+ * means unchanged, and a size different from the blob's means modified, so
+ * neither is read. Only the remaining files are hashed. Both run on a pool
+ * of threads, a chunk of entries per task, and results are reported chunk
+ * by chunk in order. A file found to match its entry after all has its stat
+ * data refreshed in the index, which the caller saves.
+ */
+public class StatusEngine {
+
+    /** Entries checked per task */
+    static final int CHUNK_SIZE = 256;
+
+    /**
+     * How a path differs
+     */
+    public enum Change {
+        ADDED, MODIFIED, DELETED
+    }
+
+    /**
+     * Receives differences as they are found, on the calling thread
+     */
+    public interface Listener {
+        /**
+         * A path differs between HEAD and the index
+         */
+        void staged(String path, Change change);
+
+        /**
+         * A path differs between the index and the working tree
+         */
+        void unstaged(String path, Change change);
+    }
+
+    private final Repository repo;
+    private final Index index;
+    private final Path workTree;
+    private final int parallelism;
+
+    public StatusEngine(Repository repo) {
+        this(repo, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StatusEngine(Repository repo, int parallelism) {
+        this.repo = repo;
+        this.index = repo.getIndex();
+        this.workTree = repo.getWorkingDir();
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Report every path that differs between a HEAD tree (null if there is
+     * no commit yet) and the index
+     */
+    public void diffHeadToIndex(ObjectId headTree, Listener listener) throws IOException {
+        List<Index.IndexEntry> entries = new ArrayList<>(index.getEntries());
+        diffTree("", headTree, entries, 0, entries.size(), listener);
+    }
+
+    /**
+     * Compare one directory: the tree {@code treeId} (null if HEAD has no
+     * such directory) with the entries in [from, to), which are sorted and
+     * all lie below {@code dir}
+     */
+    private void diffTree(String dir, ObjectId treeId, List<Index.IndexEntry> entries, int from, int to,
+                          Listener listener) throws IOException {
+        if (treeId == null) {
+            for (int i = from; i < to; i++) {
+                listener.staged(entries.get(i).getPath(), Change.ADDED);
+            }
+            return;
+        }
+        if (from < to && treeId.equals(index.getCachedTree(dir))) {
+            return;
+        }
+
+        // Keyed so that the order matches the full paths: a directory sorts as "name/"
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        TreeMap<String, Tree.TreeEntry> head = new TreeMap<>();
+        for (Tree.TreeEntry entry : ((Tree) repo.readObject(treeId)).getEntries()) {
+            head.put(entry.isTree() ? entry.getName() + "/" : entry.getName(), entry);
+        }
+
+        int i = from;
+        while (i < to || !head.isEmpty()) {
+            String key = null;
+            int end = i;
+            if (i < to) {
+                String rest = entries.get(i).getPath().substring(prefix.length());
+                int slash = rest.indexOf('/');
+                key = slash < 0 ? rest : rest.substring(0, slash + 1);
+                end = i + 1;
+                if (slash >= 0) {
+                    String childPrefix = prefix + key;
+                    while (end < to && entries.get(end).getPath().startsWith(childPrefix)) {
+                        end++;
+                    }
+                }
+            }
+            Map.Entry<String, Tree.TreeEntry> first = head.firstEntry();
+            int cmp = key == null ? 1 : first == null ? -1 : key.compareTo(first.getKey());
+
+            if (cmp > 0) {
+                // Only in HEAD
+                head.pollFirstEntry();
+                reportDeleted(prefix, first.getValue(), listener);
+                continue;
+            }
+            Tree.TreeEntry headEntry = null;
+            if (cmp == 0) {
+                headEntry = head.pollFirstEntry().getValue();
+            }
+            if (key.endsWith("/")) {
+                ObjectId subtree = headEntry != null ? headEntry.getObjectId() : null;
+                diffTree(prefix + key.substring(0, key.length() - 1), subtree, entries, i, end, listener);
+            } else {
+                Index.IndexEntry entry = entries.get(i);
+                if (headEntry == null) {
+                    listener.staged(entry.getPath(), Change.ADDED);
+                } else if (!headEntry.getObjectId().equals(entry.getObjectId())
+                        || !headEntry.getMode().equals(entry.getMode())) {
+                    listener.staged(entry.getPath(), Change.MODIFIED);
+                }
+            }
+            i = end;
+        }
+    }
+
+    private void reportDeleted(String prefix, Tree.TreeEntry entry, Listener listener) throws IOException {
+        if (!entry.isTree()) {
+            listener.staged(prefix + entry.getName(), Change.DELETED);
+            return;
+        }
+        String childPrefix = prefix + entry.getName() + "/";
+        for (String path : repo.readTreeEntries(entry.getObjectId()).keySet()) {
+            listener.staged(childPrefix + path, Change.DELETED);
+        }
+    }
+
+    /**
+     * Report every entry whose working-tree file differs from it. Returns
+     * true if the stat data of any entry was refreshed.
+     */
+    public boolean diffIndexToWorkTree(Iterable<Index.IndexEntry> entries, Listener listener) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<List<Result>>> chunks = new ArrayList<>();
+            List<Index.IndexEntry> chunk = new ArrayList<>(CHUNK_SIZE);
+            for (Index.IndexEntry entry : entries) {
+                chunk.add(entry);
+                if (chunk.size() == CHUNK_SIZE) {
+                    chunks.add(submit(pool, chunk));
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(submit(pool, chunk));
+            }
+
+            boolean refreshed = false;
+            for (ForkJoinTask<List<Result>> task : chunks) {
+                List<Result> results;
+                try {
+                    results = task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while checking the working tree", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) cause).getCause();
+                    }
+                    throw new IOException("Failed to check the working tree", cause);
+                }
+                for (Result result : results) {
+                    if (result.change != null) {
+                        listener.unstaged(result.entry.getPath(), result.change);
+                    } else {
+                        // Same content: record the new stat data so the next status skips the file
+                        Index.IndexEntry entry = result.entry;
+                        index.add(entry.getPath(), entry.getObjectId(), entry.getMode(), result.stat);
+                        refreshed = true;
+                    }
+                }
+            }
+            return refreshed;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private ForkJoinTask<List<Result>> submit(ForkJoinPool pool, List<Index.IndexEntry> chunk) {
+        return pool.submit(() -> {
+            List<Result> results = new ArrayList<>();
+            for (Index.IndexEntry entry : chunk) {
+                try {
+                    Result result = check(entry);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Compare one file with its entry; null if it is known unchanged
+     */
+    private Result check(Index.IndexEntry entry) throws IOException {
+        Path file = workTree.resolve(entry.getPath());
+        FileStat stat = FileStat.ofRegularFile(file);
+        if (stat == null) {
+            return new Result(entry, Change.DELETED, null);
+        }
+        if (index.isUnchanged(entry, stat)) {
+            return null;
+        }
+        // The recorded size may predate an edit made while the file was added, so check the blob's
+        if (stat.getSize() != entry.getStat().getSize() && repo.hasObject(entry.getObjectId())
+                && repo.readObjectHeader(entry.getObjectId()).getSize() != stat.getSize()) {
+            return new Result(entry, Change.MODIFIED, null);
+        }
+        ObjectId contentId;
+        try {
+            contentId = hashFile(file, stat);
+        } catch (NoSuchFileException e) {
+            return new Result(entry, Change.DELETED, null);
+        }
+        if (contentId != null && contentId.equals(entry.getObjectId())) {
+            return new Result(entry, null, stat);
+        }
+        return new Result(entry, Change.MODIFIED, null);
+    }
+
+    /**
+     * Hash a file as a blob of the size it had when stat'ed. Returns null if
+     * its size has changed since, as the file is then being written to.
+     */
+    static ObjectId hashFile(Path file, FileStat stat) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            ObjectId id = HashUtils.hashObject("blob", stat.getSize(), in);
+            return in.read() < 0 ? id : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Outcome for one entry: a change, or the stat data to refresh it with
+     */
+    private static final class Result {
+        final Index.IndexEntry entry;
+        final Change change;
+        final FileStat stat;
+
+        Result(Index.IndexEntry entry, Change change, FileStat stat) {
+            this.entry = entry;
+            this.change = change;
+            this.stat = stat;
+        }
+    }
+}
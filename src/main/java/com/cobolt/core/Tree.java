@@ -1,7 +1,12 @@
 package com.cobolt.core;
 
+import com.cobolt.objects.ObjectId;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -28,7 +33,7 @@ public class Tree extends CoboltObject {
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             for (TreeEntry entry : entries.values()) {
-                String line = entry.mode + " " + entry.name + " " + entry.id + "\n";
+                String line = entry.mode + " " + entry.name + " " + entry.id.name() + "\n";
                 baos.write(line.getBytes(StandardCharsets.UTF_8));
             }
             return baos.toByteArray();
@@ -37,13 +42,56 @@ public class Tree extends CoboltObject {
         }
     }
 
+    /**
+     * Parse tree from canonical content bytes ("mode name id\n" per entry)
+     */
+    static Tree parse(byte[] data, int offset, int length) throws IOException {
+        Tree tree = new Tree();
+        int end = offset + length;
+        int pos = offset;
+
+        while (pos < end) {
+            int lineEnd = ObjectCodec.indexOf(data, (byte) '\n', pos, end);
+            if (lineEnd < 0) {
+                throw new IOException("Corrupt tree entry at offset " + (pos - offset));
+            }
+
+            int modeEnd = ObjectCodec.indexOf(data, (byte) ' ', pos, lineEnd);
+            int idStart = lineEnd - ObjectId.HEX_LENGTH;
+            if (modeEnd < 0 || idStart <= modeEnd + 1 || data[idStart - 1] != ' ') {
+                throw new IOException("Corrupt tree entry at offset " + (pos - offset));
+            }
+
+            String mode = new String(data, pos, modeEnd - pos, StandardCharsets.US_ASCII);
+            String name = new String(data, modeEnd + 1, idStart - 1 - (modeEnd + 1), StandardCharsets.UTF_8);
+            ObjectId id;
+            try {
+                id = ObjectId.fromHex(data, idStart);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt tree entry at offset " + (pos - offset), e);
+            }
+            tree.entries.put(name, new TreeEntry(name, id, mode));
+
+            pos = lineEnd + 1;
+        }
+
+        return tree;
+    }
+
     /**
      * Add entry to tree
      */
-    public void addEntry(String name, String id, String mode) {
+    public void addEntry(String name, ObjectId id, String mode) {
         entries.put(name, new TreeEntry(name, id, mode));
     }
 
+    /**
+     * Add entry to tree, with the ID in hex
+     */
+    public void addEntry(String name, String id, String mode) {
+        addEntry(name, ObjectId.fromString(id), mode);
+    }
+
     /**
      * Get entry by name
      */
@@ -78,24 +126,38 @@ public class Tree extends CoboltObject {
     public static class TreeEntry implements Serializable {
         private static final long serialVersionUID = 1L;
 
-        private final String name;
-        private final String id;
-        private final String mode;
+        /** Legacy tree objects store the ID as a hex string */
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("name", String.class),
+                new ObjectStreamField("id", String.class),
+                new ObjectStreamField("mode", String.class) };
 
-        public TreeEntry(String name, String id, String mode) {
+        private transient String name;
+        private transient ObjectId id;
+        private transient String mode;
+
+        public TreeEntry(String name, ObjectId id, String mode) {
             this.name = name;
             this.id = id;
             this.mode = mode;
         }
 
+        public TreeEntry(String name, String id, String mode) {
+            this(name, ObjectId.fromString(id), mode);
+        }
+
         public String getName() {
             return name;
         }
 
-        public String getId() {
+        public ObjectId getObjectId() {
             return id;
         }
 
+        public String getId() {
+            return id.name();
+        }
+
         public String getMode() {
             return mode;
         }
@@ -111,5 +173,37 @@ public class Tree extends CoboltObject {
         public boolean isExecutable() {
             return mode.equals("100755");
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TreeEntry)) {
+                return false;
+            }
+            TreeEntry other = (TreeEntry) obj;
+            return id.equals(other.id) && name.equals(other.name) && mode.equals(other.mode);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("name", name);
+            fields.put("id", id.name());
+            fields.put("mode", mode);
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            name = (String) fields.get("name", null);
+            id = ObjectId.fromString((String) fields.get("id", null));
+            mode = (String) fields.get("mode", null);
+        }
     }
 }
@@ -3,6 +3,7 @@ package com.cobolt.core;
 import com.cobolt.git.GitAdapter;
 import com.cobolt.git.GitCommands;
 
+import java.io.IOException;
 import java.nio.file.Path;
 
 /**
@@ -65,9 +66,12 @@ public class UnifiedVCS {
     /**
      * Close resources
      */
-    public void close() {
+    public void close() throws IOException {
         if (gitCommands != null) {
             gitCommands.close();
         }
+        if (coboltRepo != null) {
+            coboltRepo.close();
+        }
     }
 }
@@ -0,0 +1,211 @@
+package com.cobolt.core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Untracked files of each directory of a working tree, with the directory's
+ * mtime when it was listed, so {@link WorkTreeScanner#scanUntracked} skips
+ * listing a directory that has not changed since. Creating, removing or
+ * renaming an entry changes the mtime of its directory; editing a file does
+ * not, and need not.
+ *
+ * Each directory also records its subdirectories, so an unchanged tree is
+ * walked with one stat per directory, and the stat data of its ignore file,
+ * since editing that file changes what is ignored below it without touching
+ * the directory. A change to the exclude file drops the whole cache. The
+ * index invalidates a directory when a path in it is added or removed, as
+ * that changes which of its files are untracked. A directory modified within
+ * {@link #RACY_NANOS} of being listed could change again without its mtime
+ * moving, so it is listed again next time.
+ *
+ * Stored in the UNTR extension of the index; the scanner fills it from
+ * several threads at once.
+ */
+public final class UntrackedCache {
+
+    /** Allows for coarse file-system clocks, down to the 2 s of FAT */
+    static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final Map<String, Dir> dirs = new ConcurrentHashMap<>();
+
+    /** Stat data of .cobolt/info/exclude when the cache was filled, or null if there was none */
+    private FileStat excludeStat;
+    private volatile boolean changed;
+
+    /**
+     * Check if the cache was updated since it was loaded
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Number of directories cached
+     */
+    public int size() {
+        return dirs.size();
+    }
+
+    Dir get(String dir) {
+        return dirs.get(dir);
+    }
+
+    void put(String dir, Dir listing) {
+        dirs.put(dir, listing);
+        changed = true;
+    }
+
+    /**
+     * Force a directory to be listed again; its ignore file stat is kept
+     */
+    void invalidate(String dir) {
+        Dir listing = dirs.get(dir);
+        if (listing != null && listing.mtime >= 0) {
+            dirs.put(dir, new Dir(-1, listing.ignoreStat, Collections.emptyList(), Collections.emptyList()));
+            changed = true;
+        }
+    }
+
+    /**
+     * Drop everything if the exclude file changed since the cache was filled
+     */
+    void checkExclude(Path excludeFile, long now) throws IOException {
+        FileStat stat = Files.isRegularFile(excludeFile) ? stableStat(excludeFile, now) : null;
+        boolean same = stat == null ? excludeStat == null : excludeStat != null && excludeStat.matches(stat);
+        if (!same) {
+            dirs.clear();
+            excludeStat = stat;
+            changed = true;
+        }
+    }
+
+    /**
+     * Stat data of a file, smudged if it was modified too recently to be
+     * trusted to change its mtime on the next edit
+     */
+    static FileStat stableStat(Path file, long now) throws IOException {
+        FileStat stat = FileStat.of(file);
+        return stat.getMtime() < now - RACY_NANOS ? stat : stat.smudged();
+    }
+
+    int encodedLength() {
+        int length = 1 + (excludeStat != null ? 40 : 0) + 4;
+        for (Map.Entry<String, Dir> e : dirs.entrySet()) {
+            Dir listing = e.getValue();
+            length += 2 + Index.utf8Length(e.getKey()) + 8 + 1 + (listing.ignoreStat != null ? 40 : 0) + 8;
+            for (String name : listing.files) {
+                length += 2 + Index.utf8Length(name);
+            }
+            for (String name : listing.subdirs) {
+                length += 2 + Index.utf8Length(name);
+            }
+        }
+        return length;
+    }
+
+    void write(ByteBuffer out) {
+        writeStat(out, excludeStat);
+        out.putInt(dirs.size());
+        for (Map.Entry<String, Dir> e : dirs.entrySet()) {
+            Dir listing = e.getValue();
+            writeName(out, e.getKey());
+            out.putLong(listing.mtime);
+            writeStat(out, listing.ignoreStat);
+            out.putInt(listing.files.size());
+            for (String name : listing.files) {
+                writeName(out, name);
+            }
+            out.putInt(listing.subdirs.size());
+            for (String name : listing.subdirs) {
+                writeName(out, name);
+            }
+        }
+    }
+
+    static UntrackedCache read(ByteBuffer in, Path indexPath) throws IOException {
+        UntrackedCache cache = new UntrackedCache();
+        try {
+            cache.excludeStat = readStat(in);
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                String dir = Index.readPath(in);
+                long mtime = in.getLong();
+                FileStat ignoreStat = readStat(in);
+                List<String> files = readNames(in);
+                List<String> subdirs = readNames(in);
+                cache.dirs.put(dir, new Dir(mtime, ignoreStat, files, subdirs));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Index file is corrupt: " + indexPath, e);
+        }
+        return cache;
+    }
+
+    private static void writeName(ByteBuffer out, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static void writeStat(ByteBuffer out, FileStat stat) {
+        if (stat == null) {
+            out.put((byte) 0);
+            return;
+        }
+        out.put((byte) 1).putLong(stat.getMtime()).putLong(stat.getCtime()).putLong(stat.getDev())
+                .putLong(stat.getInode()).putLong(stat.getSize());
+    }
+
+    private static FileStat readStat(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return new FileStat(in.getLong(), in.getLong(), in.getLong(), in.getLong(), in.getLong());
+    }
+
+    private static List<String> readNames(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 2) {
+            throw new IllegalArgumentException("Bad name count " + count);
+        }
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(Index.readPath(in));
+        }
+        return names;
+    }
+
+    /**
+     * Listing of one directory
+     */
+    static final class Dir {
+        /** Directory mtime when listed, or -1 if it has to be listed again */
+        final long mtime;
+
+        /** Stat data of the directory's ignore file, or null if it had none */
+        final FileStat ignoreStat;
+
+        /** Names of the untracked, unignored files */
+        final List<String> files;
+
+        /** Names of the subdirectories scanned */
+        final List<String> subdirs;
+
+        Dir(long mtime, FileStat ignoreStat, List<String> files, List<String> subdirs) {
+            this.mtime = mtime;
+            this.ignoreStat = ignoreStat;
+            this.files = files;
+            this.subdirs = subdirs;
+        }
+    }
+}
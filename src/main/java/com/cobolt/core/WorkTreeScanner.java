@@ -0,0 +1,385 @@
+package com.cobolt.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Lists the files of a working tree, one fork/join task per directory.
+ *
+ * Each entry's attributes are read through the open directory handle where
+ * the platform supports it, so no path is resolved from the root again.
+ * The .cobolt directory and any nested repository (a directory other than
+ * the work tree root holding a .cobolt entry) are pruned before they are
+ * descended into. With an {@link IgnoreMatcher}, ignored files are left out
+ * and ignored directories are pruned the same way, each directory being
+ * checked against the rules of its parent before it is listed. Symbolic
+ * links to regular files are listed; linked directories are not followed.
+ * Files and directories that vanish while being scanned are skipped.
+ *
+ * {@link #scanUntracked} looks only for untracked files and reuses the
+ * listing of every directory that an {@link UntrackedCache} shows has not
+ * changed.
+ */
+public class WorkTreeScanner {
+
+    private static final String COBOLT_DIR = ".cobolt";
+
+    private final Path workTree;
+    private final IgnoreMatcher ignore;
+    private final int parallelism;
+
+    public WorkTreeScanner(Path workTree) {
+        this(workTree, null);
+    }
+
+    public WorkTreeScanner(Path workTree, IgnoreMatcher ignore) {
+        this(workTree, ignore, Runtime.getRuntime().availableProcessors());
+    }
+
+    public WorkTreeScanner(Path workTree, IgnoreMatcher ignore, int parallelism) {
+        this.workTree = workTree.toAbsolutePath().normalize();
+        this.ignore = ignore;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Pass every file below a directory of the work tree to a consumer as it
+     * is found. The consumer is called from several threads at once.
+     */
+    public void scan(Path dir, Consumer<Path> consumer) throws IOException {
+        Path start = dir.toAbsolutePath().normalize();
+        if (!Files.isDirectory(start) || isPruned(start)) {
+            return;
+        }
+        String relativeDir = start.startsWith(workTree) ? relativePath(workTree.relativize(start)) : "";
+        IgnoreMatcher.Rules rules = null;
+        if (ignore != null) {
+            rules = ignore.rulesFor(relativeDir);
+            if (rules == null) {
+                return;
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(start, relativeDir, rules, true, consumer));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * List every file below a directory of the work tree, sorted by path
+     */
+    public List<Path> scan(Path dir) throws IOException {
+        ConcurrentLinkedQueue<Path> found = new ConcurrentLinkedQueue<>();
+        scan(dir, found::add);
+        List<Path> files = new ArrayList<>(found);
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Pass every untracked, unignored file of the work tree to a consumer,
+     * by its path from the root. Directories are listed only if the cache
+     * does not hold their current listing, and the cache is updated with
+     * what was listed. The consumer is called from several threads at once.
+     */
+    public void scanUntracked(UntrackedCache cache, Predicate<String> tracked, Consumer<String> consumer)
+            throws IOException {
+        if (ignore == null) {
+            throw new IllegalStateException("Scanning for untracked files needs an IgnoreMatcher");
+        }
+        long now = FileStat.nanos(FileTime.from(Instant.now()));
+        cache.checkExclude(workTree.resolve(COBOLT_DIR).resolve("info").resolve("exclude"), now);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new UntrackedTask(workTree, "", ignore.getRoot(), true, true,
+                    new UntrackedScan(cache, tracked, consumer, now)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String relativePath(Path relative) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : relative) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Check if a start directory lies in .cobolt or a nested repository
+     */
+    private boolean isPruned(Path dir) {
+        if (!dir.startsWith(workTree)) {
+            return false;
+        }
+        for (Path current = dir; !current.equals(workTree); current = current.getParent()) {
+            if (current.getFileName().toString().equals(COBOLT_DIR) || Files.exists(current.resolve(COBOLT_DIR))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Files and subdirectories of one directory
+     */
+    private static final class Listing {
+        final List<Path> files = new ArrayList<>();
+        final List<Path> subdirs = new ArrayList<>();
+        boolean hasIgnoreFile;
+
+        /** The directory is a nested repository, so nothing in it is passed on */
+        boolean nested;
+    }
+
+    /**
+     * List a directory, or return null if it vanished
+     */
+    private Listing list(Path dir) {
+        Listing listing = new Listing();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            SecureDirectoryStream<Path> secure = entries instanceof SecureDirectoryStream
+                    ? (SecureDirectoryStream<Path>) entries : null;
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.equals(COBOLT_DIR)) {
+                    if (!dir.equals(workTree)) {
+                        listing.nested = true;
+                        return listing;
+                    }
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = secure != null
+                            ? secure.getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class,
+                                    LinkOption.NOFOLLOW_LINKS).readAttributes()
+                            : Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    listing.subdirs.add(entry);
+                } else if (attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(entry))) {
+                    listing.files.add(entry);
+                    listing.hasIgnoreFile |= name.equals(IgnoreMatcher.IGNORE_FILE);
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return listing;
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String relativeDir;
+
+        /** Ignore rules of the parent directory, or of this one if it is the start */
+        private final IgnoreMatcher.Rules rules;
+        private final boolean start;
+        private final Consumer<Path> consumer;
+
+        ScanTask(Path dir, String relativeDir, IgnoreMatcher.Rules rules, boolean start, Consumer<Path> consumer) {
+            this.dir = dir;
+            this.relativeDir = relativeDir;
+            this.rules = rules;
+            this.start = start;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            Listing listing = list(dir);
+            if (listing == null || listing.nested) {
+                return;
+            }
+
+            IgnoreMatcher.Rules here = rules;
+            if (ignore != null && !start) {
+                try {
+                    here = ignore.enter(rules, relativeDir, listing.hasIgnoreFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            for (Path file : listing.files) {
+                if (here == null || !isIgnored(here, file, false)) {
+                    consumer.accept(file);
+                }
+            }
+            List<ScanTask> tasks = new ArrayList<>();
+            for (Path subdir : listing.subdirs) {
+                if (here == null || !isIgnored(here, subdir, true)) {
+                    tasks.add(new ScanTask(subdir, child(subdir), here, false, consumer));
+                }
+            }
+            invokeAll(tasks);
+        }
+
+        private boolean isIgnored(IgnoreMatcher.Rules here, Path entry, boolean isDirectory) {
+            return here.isIgnored(child(entry), entry.getFileName().toString(), isDirectory);
+        }
+
+        private String child(Path entry) {
+            String name = entry.getFileName().toString();
+            return relativeDir.isEmpty() ? name : relativeDir + "/" + name;
+        }
+    }
+
+    /**
+     * State shared by the tasks of one untracked scan
+     */
+    private static final class UntrackedScan {
+        final UntrackedCache cache;
+        final Predicate<String> tracked;
+        final Consumer<String> consumer;
+
+        /** Start of the scan, in nanoseconds */
+        final long now;
+
+        UntrackedScan(UntrackedCache cache, Predicate<String> tracked, Consumer<String> consumer, long now) {
+            this.cache = cache;
+            this.tracked = tracked;
+            this.consumer = consumer;
+            this.now = now;
+        }
+    }
+
+    private class UntrackedTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String relativeDir;
+
+        /** Ignore rules of the parent directory, or of this one if it is the start */
+        private final IgnoreMatcher.Rules rules;
+        private final boolean start;
+
+        /** False if the ignore rules changed above, so cached listings below are stale */
+        private final boolean cacheValid;
+        private final UntrackedScan scan;
+
+        UntrackedTask(Path dir, String relativeDir, IgnoreMatcher.Rules rules, boolean start, boolean cacheValid,
+                      UntrackedScan scan) {
+            this.dir = dir;
+            this.relativeDir = relativeDir;
+            this.rules = rules;
+            this.start = start;
+            this.cacheValid = cacheValid;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                scanDirectory();
+            } catch (NoSuchFileException e) {
+                // Vanished while being scanned
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void scanDirectory() throws IOException {
+            // Stat before listing, so a change made while listing moves the mtime past the cached one
+            long mtime = FileStat.nanos(Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS));
+            Path ignoreFile = dir.resolve(IgnoreMatcher.IGNORE_FILE);
+            UntrackedCache.Dir cached = cacheValid ? scan.cache.get(relativeDir) : null;
+            if (cached != null && cached.mtime == mtime
+                    && (cached.ignoreStat == null || sameStat(cached.ignoreStat, statIfExists(ignoreFile)))) {
+                IgnoreMatcher.Rules here = start ? rules : ignore.enter(rules, relativeDir, cached.ignoreStat != null);
+                for (String name : cached.files) {
+                    scan.consumer.accept(child(name));
+                }
+                List<UntrackedTask> tasks = new ArrayList<>();
+                for (String name : cached.subdirs) {
+                    tasks.add(new UntrackedTask(dir.resolve(name), child(name), here, false, true, scan));
+                }
+                invokeAll(tasks);
+                return;
+            }
+
+            Listing listing = list(dir);
+            if (listing == null) {
+                return;
+            }
+            FileStat ignoreStat = listing.hasIgnoreFile ? UntrackedCache.stableStat(ignoreFile, scan.now) : null;
+            List<String> untracked = new ArrayList<>();
+            List<String> subdirs = new ArrayList<>();
+            boolean rulesChanged = cached == null || !sameStat(cached.ignoreStat, ignoreStat);
+            List<UntrackedTask> tasks = new ArrayList<>();
+            if (!listing.nested) {
+                IgnoreMatcher.Rules here = start ? rules : ignore.enter(rules, relativeDir, listing.hasIgnoreFile);
+                for (Path file : listing.files) {
+                    String name = file.getFileName().toString();
+                    String relativePath = child(name);
+                    if (!here.isIgnored(relativePath, name, false) && !scan.tracked.test(relativePath)) {
+                        untracked.add(name);
+                        scan.consumer.accept(relativePath);
+                    }
+                }
+                for (Path subdir : listing.subdirs) {
+                    String name = subdir.getFileName().toString();
+                    if (!here.isIgnored(child(name), name, true)) {
+                        subdirs.add(name);
+                        tasks.add(new UntrackedTask(subdir, child(name), here, false, cacheValid && !rulesChanged,
+                                scan));
+                    }
+                }
+            }
+            boolean racy = mtime >= scan.now - UntrackedCache.RACY_NANOS;
+            scan.cache.put(relativeDir, new UntrackedCache.Dir(racy ? -1 : mtime, ignoreStat, untracked, subdirs));
+            invokeAll(tasks);
+        }
+
+        private String child(String name) {
+            return relativeDir.isEmpty() ? name : relativeDir + "/" + name;
+        }
+    }
+
+    private static FileStat statIfExists(Path file) throws IOException {
+        try {
+            return FileStat.of(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static boolean sameStat(FileStat cached, FileStat current) {
+        return cached == null ? current == null : current != null && cached.matches(current);
+    }
+}
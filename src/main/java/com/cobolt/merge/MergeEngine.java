@@ -1,7 +1,9 @@
 package com.cobolt.merge;
 
 import com.cobolt.core.*;
+import com.cobolt.objects.ObjectId;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -21,9 +23,9 @@ public class MergeEngine {
     public MergeResult merge(Commit ours, Commit theirs, Commit ancestor) throws IOException {
         MergeResult result = new MergeResult(true);
 
-        Map<String, Tree.TreeEntry> ourFiles = collectFiles(ours.getTreeId());
-        Map<String, Tree.TreeEntry> theirFiles = collectFiles(theirs.getTreeId());
-        Map<String, Tree.TreeEntry> ancestorFiles = collectFiles(ancestor.getTreeId());
+        Map<String, Tree.TreeEntry> ourFiles = collectFiles(ours.getTree());
+        Map<String, Tree.TreeEntry> theirFiles = collectFiles(theirs.getTree());
+        Map<String, Tree.TreeEntry> ancestorFiles = collectFiles(ancestor.getTree());
 
         Set<String> allFiles = new HashSet<>();
         allFiles.addAll(ourFiles.keySet());
@@ -44,7 +46,7 @@ public class MergeEngine {
                 // We haven't changed it, they have (or deleted it)
                 if (theirEntry != null) {
                     // They modified it, take theirs
-                    String content = getBlobContent(theirEntry.getId());
+                    String content = getBlobContent(theirEntry.getObjectId());
                     result.addMergedFile(path, content);
                 } else {
                     // They deleted it
@@ -59,28 +61,28 @@ public class MergeEngine {
                     // We deleted, they modified -> Conflict
                     result.addConflict(new Conflict(path, Conflict.Type.DELETE_EDIT,
                             null,
-                            getLines(theirEntry.getId()),
-                            getLines(ancestorEntry.getId())));
+                            getLines(theirEntry.getObjectId()),
+                            getLines(ancestorEntry.getObjectId())));
                     result.addMergedFile(path, null); // Tentatively delete? Or keep? Let's say conflict implies manual
                                                       // resolution.
                 } else if (theirEntry == null) {
                     // They deleted, we modified -> Conflict
                     result.addConflict(new Conflict(path, Conflict.Type.DELETE_EDIT,
-                            getLines(ourEntry.getId()),
+                            getLines(ourEntry.getObjectId()),
                             null,
-                            getLines(ancestorEntry.getId())));
+                            getLines(ancestorEntry.getObjectId())));
                 } else {
                     // Both modified
                     // Check if content is same
-                    if (ourEntry.getId().equals(theirEntry.getId())) {
+                    if (ourEntry.getObjectId().equals(theirEntry.getObjectId())) {
                         // Same content change, auto-merge (keep ours)
                     } else {
                         // Different content -> Content Conflict
                         // TODO: Try line-level merge here? For now, just mark as conflict.
                         result.addConflict(new Conflict(path, Conflict.Type.CONTENT,
-                                getLines(ourEntry.getId()),
-                                getLines(theirEntry.getId()),
-                                getLines(ancestorEntry.getId())));
+                                getLines(ourEntry.getObjectId()),
+                                getLines(theirEntry.getObjectId()),
+                                getLines(ancestorEntry.getObjectId())));
                     }
                 }
             }
@@ -89,7 +91,7 @@ public class MergeEngine {
         return result;
     }
 
-    private Map<String, Tree.TreeEntry> collectFiles(String treeId) throws IOException {
+    private Map<String, Tree.TreeEntry> collectFiles(ObjectId treeId) throws IOException {
         Map<String, Tree.TreeEntry> files = new HashMap<>();
         if (treeId == null)
             return files;
@@ -106,7 +108,7 @@ public class MergeEngine {
         for (Tree.TreeEntry entry : tree.getEntries()) {
             String path = prefix + entry.getName();
             if (entry.isTree()) {
-                CoboltObject obj = repository.readObject(entry.getId());
+                CoboltObject obj = repository.readObject(entry.getObjectId());
                 if (obj instanceof Tree) {
                     collectFilesRecursive((Tree) obj, path + "/", files);
                 }
@@ -116,15 +118,15 @@ public class MergeEngine {
         }
     }
 
-    private String getBlobContent(String blobId) throws IOException {
-        CoboltObject obj = repository.readObject(blobId);
-        if (obj instanceof Blob) {
-            return ((Blob) obj).getContentAsString();
+    private String getBlobContent(ObjectId blobId) throws IOException {
+        ObjectHeader header = repository.readObjectHeader(blobId);
+        if (!header.getType().equals("blob")) {
+            return "";
         }
-        return "";
+        return StandardCharsets.UTF_8.decode(repository.readObjectBody(blobId)).toString();
     }
 
-    private List<String> getLines(String blobId) throws IOException {
+    private List<String> getLines(ObjectId blobId) throws IOException {
         if (blobId == null)
             return null;
         String content = getBlobContent(blobId);
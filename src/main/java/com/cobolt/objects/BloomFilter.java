@@ -0,0 +1,126 @@
+package com.cobolt.objects;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Bloom filter over object IDs.
+ *
+ * IDs are SHA-1 hashes and therefore already uniformly distributed, so the
+ * probe positions are derived directly from the ID bytes by double hashing
+ * instead of hashing them again.
+ *
+ * Not synchronized. Reads may run alongside a single writer, but can miss
+ * bits that are being set at that moment.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long capacity;
+    private long count;
+
+    private BloomFilter(long[] bits, int hashCount, long capacity, long count) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.count = count;
+    }
+
+    /**
+     * Create a filter sized for the expected number of IDs at the given
+     * false-positive probability
+     */
+    public static BloomFilter create(long expected, double falsePositiveRate) {
+        long capacity = Math.max(expected, 1024);
+        double ln2 = Math.log(2);
+        long bitCount = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64);
+        return new BloomFilter(new long[words], hashCount, capacity, 0);
+    }
+
+    /**
+     * Add a raw ID (at least 16 bytes)
+     */
+    public void add(byte[] id) {
+        long h1 = readLong(id, 0);
+        long h2 = readLong(id, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * Check a raw ID; false means the ID was definitely never added
+     */
+    public boolean mightContain(byte[] id) {
+        long h1 = readLong(id, 0);
+        long h2 = readLong(id, 8) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of IDs the filter was sized for
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of IDs added (including duplicates)
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Write filter to stream
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(hashCount);
+        out.writeLong(capacity);
+        out.writeLong(count);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Read filter written by {@link #writeTo}
+     */
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int hashCount = in.readInt();
+        long capacity = in.readLong();
+        long count = in.readLong();
+        int words = in.readInt();
+        if (hashCount <= 0 || words <= 0) {
+            throw new IOException("Corrupt bloom filter");
+        }
+        long[] bits = new long[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashCount, capacity, count);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,136 @@
+package com.cobolt.objects;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Content-defined chunking in the style of FastCDC.
+ *
+ * A gear rolling hash runs over the input and a chunk ends where the hash
+ * matches a mask, so boundaries follow the content rather than fixed offsets
+ * and an edit only changes the chunks around it. Normalized chunking uses a
+ * stricter mask before the average size and a looser one after it, which
+ * keeps chunk sizes close to the average. The gear table is generated from a
+ * fixed seed, so every repository cuts identical content identically.
+ */
+public class ContentChunker {
+
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // splitmix64, spelled out so the table never depends on the JDK
+        long state = 0x636f626f6c74L;
+        for (int i = 0; i < GEAR.length; i++) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+    private final byte[] buffer;
+    private int start;
+    private int end;
+    private long remaining;
+
+    public ContentChunker(InputStream in, long length) {
+        this(in, length, DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Chunk at most {@code length} bytes of a stream
+     */
+    public ContentChunker(InputStream in, long length, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.in = in;
+        this.remaining = length;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        // Hash bits shift upwards, so the top bits cover the most recent bytes
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.maskSmall = -1L << (64 - (bits + 1));
+        this.maskLarge = -1L << (64 - (bits - 1));
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    /**
+     * Read the next chunk, or return null at the end of the input
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (start == end) {
+            return null;
+        }
+        int length = cut(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Find the length of the chunk starting at an offset
+     */
+    int cut(byte[] data, int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(avgSize, limit);
+
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Top the buffer up so at least a maximum-size chunk is available, unless
+     * the input ends first
+     */
+    private void fill() throws IOException {
+        if (end - start >= maxSize || remaining == 0) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (end < buffer.length && remaining > 0) {
+            int n = in.read(buffer, end, (int) Math.min(buffer.length - end, remaining));
+            if (n < 0) {
+                remaining = 0;
+                break;
+            }
+            end += n;
+            remaining -= n;
+        }
+    }
+}
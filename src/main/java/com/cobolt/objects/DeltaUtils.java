@@ -0,0 +1,208 @@
+package com.cobolt.objects;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Copy/insert binary deltas between two byte arrays.
+ *
+ * A delta starts with the base and result sizes as varints, followed by
+ * instructions: a byte with the high bit set copies a range of the base
+ * (the low 4 bits flag which offset bytes follow, the next 3 bits which size
+ * bytes follow); a byte from 1 to 127 inserts that many literal bytes.
+ */
+public class DeltaUtils {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int MAX_COPY = 0xFFFFFF;
+    private static final int MAX_CHAIN = 64;
+
+    /**
+     * Create a delta that turns base into target
+     */
+    public static byte[] createDelta(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // Index every aligned block of the base by hash
+        int blocks = base.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+        int[] head = new int[tableSize];
+        int[] next = new int[Math.max(blocks, 1)];
+        Arrays.fill(head, -1);
+        for (int block = 0; block < blocks; block++) {
+            int slot = hashBlock(base, block * BLOCK_SIZE) & (tableSize - 1);
+            next[block] = head[slot];
+            head[slot] = block;
+        }
+
+        int pos = 0;
+        int insertStart = 0;
+        while (pos + BLOCK_SIZE <= target.length) {
+            int bestOffset = -1;
+            int bestLength = 0;
+
+            int slot = hashBlock(target, pos) & (tableSize - 1);
+            int tries = 0;
+            for (int block = head[slot]; block >= 0 && tries < MAX_CHAIN; block = next[block], tries++) {
+                int offset = block * BLOCK_SIZE;
+                int length = matchLength(base, offset, target, pos);
+                if (length > bestLength) {
+                    bestOffset = offset;
+                    bestLength = length;
+                }
+            }
+
+            if (bestLength < BLOCK_SIZE) {
+                pos++;
+                continue;
+            }
+
+            // Extend the match backwards into bytes not yet emitted
+            while (bestOffset > 0 && pos > insertStart && base[bestOffset - 1] == target[pos - 1]) {
+                bestOffset--;
+                pos--;
+                bestLength++;
+            }
+
+            writeInsert(out, target, insertStart, pos);
+            int copied = 0;
+            while (copied < bestLength) {
+                int chunk = Math.min(bestLength - copied, MAX_COPY);
+                writeCopy(out, bestOffset + copied, chunk);
+                copied += chunk;
+            }
+
+            pos += bestLength;
+            insertStart = pos;
+        }
+
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a delta to its base
+     */
+    public static byte[] applyDelta(byte[] base, byte[] delta) {
+        int[] pos = { 0 };
+        long baseSize = readVarint(delta, pos);
+        long resultSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw new IllegalArgumentException("Delta base size mismatch");
+        }
+
+        byte[] result = new byte[(int) resultSize];
+        int out = 0;
+        int i = pos[0];
+        while (i < delta.length) {
+            int op = delta[i++] & 0xff;
+            if ((op & 0x80) != 0) {
+                int offset = 0;
+                int size = 0;
+                for (int b = 0; b < 4; b++) {
+                    if ((op & (1 << b)) != 0) {
+                        offset |= (delta[i++] & 0xff) << (8 * b);
+                    }
+                }
+                for (int b = 0; b < 3; b++) {
+                    if ((op & (0x10 << b)) != 0) {
+                        size |= (delta[i++] & 0xff) << (8 * b);
+                    }
+                }
+                System.arraycopy(base, offset, result, out, size);
+                out += size;
+            } else if (op != 0) {
+                System.arraycopy(delta, i, result, out, op);
+                i += op;
+                out += op;
+            } else {
+                throw new IllegalArgumentException("Invalid delta opcode");
+            }
+        }
+
+        if (out != result.length) {
+            throw new IllegalArgumentException("Delta result size mismatch");
+        }
+        return result;
+    }
+
+    /**
+     * Read the result size recorded in a delta header
+     */
+    public static long getResultSize(byte[] delta) {
+        int[] pos = { 0 };
+        readVarint(delta, pos);
+        return readVarint(delta, pos);
+    }
+
+    private static int matchLength(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        int max = Math.min(base.length - baseOffset, target.length - targetOffset);
+        int length = 0;
+        while (length < max && base[baseOffset + length] == target[targetOffset + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int hashBlock(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * 31 + (data[offset + i] & 0xff);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int chunk = Math.min(to - from, MAX_INSERT);
+            out.write(chunk);
+            out.write(data, from, chunk);
+            from += chunk;
+        }
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int size) {
+        int op = 0x80;
+        byte[] args = new byte[7];
+        int n = 0;
+        for (int b = 0; b < 4; b++) {
+            int value = (offset >>> (8 * b)) & 0xff;
+            if (value != 0) {
+                op |= 1 << b;
+                args[n++] = (byte) value;
+            }
+        }
+        for (int b = 0; b < 3; b++) {
+            int value = (size >>> (8 * b)) & 0xff;
+            if (value != 0) {
+                op |= 0x10 << b;
+                args[n++] = (byte) value;
+            }
+        }
+        out.write(op);
+        out.write(args, 0, n);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -36,6 +36,22 @@ public class FileUtils {
         Files.write(path, data);
     }
 
+    /**
+     * Write bytes to a temp file and rename it over the target, so readers see
+     * either the old or the new content and never a partial write
+     */
+    public static void writeAtomically(Path path, byte[] data) throws IOException {
+        Files.createDirectories(path.getParent());
+        // Hidden name, so directory listings never pick up the temp file
+        Path tempPath = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".tmp");
+        try {
+            Files.write(tempPath, data);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
     /**
      * Write string to file
      */
@@ -1,26 +1,59 @@
 package com.cobolt.objects;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
- * Utilities for SHA-1 hashing and object ID generation
+ * Utilities for SHA-1 hashing and object ID generation.
+ *
+ * One-shot hashing reuses a per-thread digest and header buffer, so hashing
+ * an object allocates nothing beyond the resulting ID. Content that arrives
+ * in pieces goes through an {@link ObjectHasher}, which borrows a digest
+ * from a small per-thread pool and returns it when finished; a hasher opened
+ * while another is in use on the same thread gets a digest of its own.
  */
 public class HashUtils {
 
+    /** Longest possible header: "commit " + 19 digits + NUL */
+    private static final int MAX_HEADER_LENGTH = 32;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(HashUtils::newSHA1);
+
+    private static final ThreadLocal<byte[]> HEADER = ThreadLocal.withInitial(() -> new byte[MAX_HEADER_LENGTH]);
+
+    /** Digests kept per thread for {@link ObjectHasher}s; more than one only when hashers nest */
+    private static final int MAX_POOLED_DIGESTS = 4;
+
+    private static final ThreadLocal<ArrayDeque<MessageDigest>> HASHER_DIGESTS =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private static final ThreadLocal<byte[]> STREAM_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[STREAM_BUFFER_SIZE]);
+
     /**
      * Compute SHA-1 hash of byte array
      */
+    public static String computeSHA1(byte[] data) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return bytesToHex(digest.digest(data));
+    }
+
     /**
-     * Compute SHA-1 hash of byte array
+     * Create a SHA-1 digest for incremental hashing
      */
-    public static String computeSHA1(byte[] data) {
+    public static MessageDigest newSHA1() {
         try {
-            java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-1");
-            byte[] hash = digest.digest(data);
-            return bytesToHex(hash);
-        } catch (java.security.NoSuchAlgorithmException e) {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("SHA-1 algorithm not found", e);
         }
     }
@@ -32,29 +65,148 @@ public class HashUtils {
         return computeSHA1(data.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    /**
+     * Convert raw bytes to lowercase hex string
+     */
+    public static String bytesToHex(byte[] bytes) {
+        return ObjectId.toHex(bytes);
+    }
+
+    /**
+     * Convert hex string to raw bytes
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() == ObjectId.HEX_LENGTH) {
+            return ObjectId.fromString(hex).getBytes();
+        }
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex string: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
         }
-        return sb.toString();
+        return bytes;
     }
 
     /**
      * Compute object ID from type and content
      */
     public static String computeObjectId(String type, byte[] content) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            String header = type + " " + content.length + "\0";
-            baos.write(header.getBytes(StandardCharsets.UTF_8));
-            baos.write(content);
-            return computeSHA1(baos.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to compute object ID", e);
+        return hashObject(type, content).name();
+    }
+
+    /**
+     * Compute object ID from type and content as an {@link ObjectId}
+     */
+    public static ObjectId hashObject(String type, byte[] content) {
+        return hashObject(type, content, 0, content.length);
+    }
+
+    /**
+     * Compute object ID from type and a range of a content array
+     */
+    public static ObjectId hashObject(String type, byte[] content, int offset, int length) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        byte[] header = HEADER.get();
+        digest.update(header, 0, writeHeader(header, type, length));
+        digest.update(content, offset, length);
+        return ObjectId.fromRaw(digest.digest());
+    }
+
+    /**
+     * Compute object ID from type and exactly {@code length} bytes of a stream.
+     * Throws EOFException if the stream is shorter.
+     */
+    public static ObjectId hashObject(String type, long length, InputStream in) throws IOException {
+        ObjectHasher hasher = new ObjectHasher(type, length);
+        byte[] buffer = STREAM_BUFFER.get();
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Stream ended " + remaining + " bytes early");
+            }
+            hasher.update(buffer, 0, n);
+            remaining -= n;
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Start hashing an object whose content will be supplied in pieces
+     */
+    public static ObjectHasher newObjectHasher(String type, long length) {
+        return new ObjectHasher(type, length);
+    }
+
+    /**
+     * Take a reset digest from this thread's pool, creating one if it is empty
+     */
+    static MessageDigest borrowDigest() {
+        MessageDigest digest = HASHER_DIGESTS.get().pollFirst();
+        return digest != null ? digest : newSHA1();
+    }
+
+    /**
+     * Return a digest taken with {@link #borrowDigest} once its result has been read
+     */
+    static void releaseDigest(MessageDigest digest) {
+        ArrayDeque<MessageDigest> pool = HASHER_DIGESTS.get();
+        if (pool.size() < MAX_POOLED_DIGESTS) {
+            digest.reset();
+            pool.addFirst(digest);
         }
     }
 
+    /**
+     * Hash the header of an object into a digest without allocating
+     */
+    static void updateHeader(MessageDigest digest, String type, long length) {
+        byte[] header = HEADER.get();
+        digest.update(header, 0, writeHeader(header, type, length));
+    }
+
+    /**
+     * Encode the header that precedes object content: "type length\0"
+     */
+    public static byte[] objectHeader(String type, long length) {
+        byte[] header = new byte[MAX_HEADER_LENGTH];
+        return Arrays.copyOf(header, writeHeader(header, type, length));
+    }
+
+    /**
+     * Write "type length\0" into a buffer, returning the number of bytes written
+     */
+    static int writeHeader(byte[] target, String type, long length) {
+        int pos = 0;
+        for (int i = 0; i < type.length(); i++) {
+            target[pos++] = (byte) type.charAt(i);
+        }
+        target[pos++] = ' ';
+
+        int digitsStart = pos;
+        do {
+            target[pos++] = (byte) ('0' + length % 10);
+            length /= 10;
+        } while (length > 0);
+        // Digits were produced least significant first
+        for (int i = digitsStart, j = pos - 1; i < j; i++, j--) {
+            byte tmp = target[i];
+            target[i] = target[j];
+            target[j] = tmp;
+        }
+
+        target[pos++] = 0;
+        return pos;
+    }
+
     /**
      * Get short hash (first 7 characters)
      */
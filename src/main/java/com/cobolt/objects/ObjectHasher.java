@@ -0,0 +1,52 @@
+package com.cobolt.objects;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Incremental object ID computation for content that arrives in pieces,
+ * such as a file being streamed into the object store. The header is hashed
+ * up front, so the content length must be known in advance.
+ */
+public class ObjectHasher {
+
+    private MessageDigest digest;
+    private final long length;
+    private long received;
+
+    ObjectHasher(String type, long length) {
+        this.digest = HashUtils.borrowDigest();
+        this.length = length;
+        HashUtils.updateHeader(digest, type, length);
+    }
+
+    /**
+     * Hash the next piece of content
+     */
+    public void update(byte[] data, int offset, int count) {
+        digest.update(data, offset, count);
+        received += count;
+    }
+
+    /**
+     * Hash the remaining bytes of a buffer
+     */
+    public void update(ByteBuffer data) {
+        received += data.remaining();
+        digest.update(data);
+    }
+
+    /**
+     * Finish hashing; the content must have been exactly the declared length.
+     * The hasher cannot be used afterwards, as its digest goes back to the pool.
+     */
+    public ObjectId finish() {
+        if (received != length) {
+            throw new IllegalStateException("Hashed " + received + " bytes but the header declared " + length);
+        }
+        ObjectId id = ObjectId.fromRaw(digest.digest());
+        HashUtils.releaseDigest(digest);
+        digest = null;
+        return id;
+    }
+}
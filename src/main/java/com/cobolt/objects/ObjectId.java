@@ -0,0 +1,261 @@
+package com.cobolt.objects;
+
+import java.util.Arrays;
+
+/**
+ * Immutable 20-byte SHA-1 object ID.
+ *
+ * The raw bytes are held in five int fields, so an ID costs a single small
+ * object instead of a 40-character string, and equality is five int compares.
+ * IDs are uniformly distributed hashes, so one word of the ID serves directly
+ * as the hash code.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+
+    /** Length of a raw ID in bytes */
+    public static final int LENGTH = 20;
+
+    /** Length of an ID in hex characters */
+    public static final int HEX_LENGTH = 40;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+    }
+
+    private final int w1;
+    private final int w2;
+    private final int w3;
+    private final int w4;
+    private final int w5;
+
+    private ObjectId(int w1, int w2, int w3, int w4, int w5) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    /**
+     * Create from 20 raw bytes starting at an offset
+     */
+    public static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(readInt(raw, offset), readInt(raw, offset + 4), readInt(raw, offset + 8),
+                readInt(raw, offset + 12), readInt(raw, offset + 16));
+    }
+
+    /**
+     * Create from 20 raw bytes
+     */
+    public static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    /**
+     * Parse a 40-character hex ID
+     */
+    public static ObjectId fromString(String hex) {
+        if (hex.length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("Invalid object ID: " + hex);
+        }
+        return new ObjectId(parseWord(hex, 0), parseWord(hex, 8), parseWord(hex, 16),
+                parseWord(hex, 24), parseWord(hex, 32));
+    }
+
+    /**
+     * Parse 40 hex characters of ASCII bytes starting at an offset
+     */
+    public static ObjectId fromHex(byte[] hex, int offset) {
+        return new ObjectId(parseWord(hex, offset), parseWord(hex, offset + 8), parseWord(hex, offset + 16),
+                parseWord(hex, offset + 24), parseWord(hex, offset + 32));
+    }
+
+    /**
+     * Parse a hex ID, or return null for null
+     */
+    public static ObjectId fromNullable(String hex) {
+        return hex == null ? null : fromString(hex);
+    }
+
+    /**
+     * Check if a string is a well-formed 40-character hex ID
+     */
+    public static boolean isId(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = hex.charAt(i);
+            if (c >= HEX_VALUES.length || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the first byte, used for fan-out tables and directory names
+     */
+    public int getFirstByte() {
+        return w1 >>> 24;
+    }
+
+    /**
+     * Copy the raw bytes into a buffer
+     */
+    public void copyRawTo(byte[] target, int offset) {
+        writeInt(target, offset, w1);
+        writeInt(target, offset + 4, w2);
+        writeInt(target, offset + 8, w3);
+        writeInt(target, offset + 12, w4);
+        writeInt(target, offset + 16, w5);
+    }
+
+    /**
+     * Get the raw bytes as a new array
+     */
+    public byte[] getBytes() {
+        byte[] raw = new byte[LENGTH];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    /**
+     * Get the 40-character lowercase hex form
+     */
+    public String name() {
+        char[] out = new char[HEX_LENGTH];
+        formatWord(out, 0, w1);
+        formatWord(out, 8, w2);
+        formatWord(out, 16, w3);
+        formatWord(out, 24, w4);
+        formatWord(out, 32, w5);
+        return new String(out);
+    }
+
+    /**
+     * Compare against raw bytes at an offset, in unsigned byte order
+     */
+    public int compareTo(byte[] raw, int offset) {
+        int cmp = Integer.compareUnsigned(w1, readInt(raw, offset));
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w2, readInt(raw, offset + 4));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, readInt(raw, offset + 8));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w4, readInt(raw, offset + 12));
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w5, readInt(raw, offset + 16));
+        }
+        return cmp;
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Integer.compareUnsigned(w1, other.w1);
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w2, other.w2);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w3, other.w3);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w4, other.w4);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(w5, other.w5);
+        }
+        return cmp;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId other = (ObjectId) obj;
+        return w2 == other.w2 && w1 == other.w1 && w3 == other.w3 && w4 == other.w4 && w5 == other.w5;
+    }
+
+    @Override
+    public int hashCode() {
+        // Bytes 4-7 of a SHA-1 are as good a hash as any; byte 0 is skewed by fan-out sorting
+        return w2;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /**
+     * Format raw bytes as lowercase hex using a lookup table
+     */
+    static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >>> 4) & 0xf];
+            out[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static int parseWord(String hex, int offset) {
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = hex.charAt(offset + i);
+            byte digit = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid object ID: " + hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int parseWord(byte[] hex, int offset) {
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            int c = hex[offset + i] & 0xff;
+            byte digit = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid object ID at offset " + offset);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void formatWord(char[] out, int offset, int word) {
+        for (int i = 7; i >= 0; i--) {
+            out[offset + i] = HEX[word & 0xf];
+            word >>>= 4;
+        }
+    }
+
+    private static int readInt(byte[] raw, int offset) {
+        return (raw[offset] & 0xff) << 24 | (raw[offset + 1] & 0xff) << 16
+                | (raw[offset + 2] & 0xff) << 8 | (raw[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,184 @@
+package com.cobolt.objects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Open-addressing hash map keyed by {@link ObjectId}.
+ *
+ * Keys and values sit in two parallel arrays probed linearly from the ID's
+ * own hash bits, so a lookup touches no entry objects and needs no rehashing.
+ * The table doubles when it is half full. Iteration order is unspecified.
+ */
+public class ObjectIdMap<V> {
+
+    private ObjectId[] keys;
+    private Object[] values;
+    private int size;
+
+    public ObjectIdMap() {
+        this(16);
+    }
+
+    public ObjectIdMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = new ObjectId[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Get the value for an ID, or null if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        int slot = find(id);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    /**
+     * Check if an ID is present
+     */
+    public boolean containsKey(ObjectId id) {
+        return find(id) >= 0;
+    }
+
+    /**
+     * Set the value for an ID, returning the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        int slot = slotFor(id);
+        if (keys[slot] != null) {
+            V previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        insert(slot, id, value);
+        return null;
+    }
+
+    /**
+     * Set the value for an ID unless it is already present; returns the
+     * existing value, or null if the new one was added
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(ObjectId id, V value) {
+        int slot = slotFor(id);
+        if (keys[slot] != null) {
+            return (V) values[slot];
+        }
+        insert(slot, id, value);
+        return null;
+    }
+
+    /**
+     * Remove an ID, returning its value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(ObjectId id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = (V) values[slot];
+        int mask = keys.length - 1;
+
+        // Shift later entries of the probe run back so no lookup stops early
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+            int home = keys[next].hashCode() & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        keys = new ObjectId[16];
+        values = new Object[16];
+        size = 0;
+    }
+
+    /**
+     * Visit every entry
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<ObjectId, ? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of all keys
+     */
+    public List<ObjectId> keys() {
+        List<ObjectId> result = new ArrayList<>(size);
+        for (ObjectId key : keys) {
+            if (key != null) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    private int find(ObjectId id) {
+        int slot = slotFor(id);
+        return keys[slot] != null ? slot : -1;
+    }
+
+    /**
+     * Slot holding the ID, or the empty slot where it would go
+     */
+    private int slotFor(ObjectId id) {
+        int mask = keys.length - 1;
+        int slot = id.hashCode() & mask;
+        while (keys[slot] != null && !keys[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, ObjectId id, Object value) {
+        keys[slot] = id;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    private void resize() {
+        ObjectId[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new ObjectId[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldKeys[i].hashCode() & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.cobolt.objects;
+
+import java.util.Iterator;
+
+/**
+ * Open-addressing hash set of {@link ObjectId}s, backed by an {@link ObjectIdMap}
+ */
+public class ObjectIdSet implements Iterable<ObjectId> {
+
+    private final ObjectIdMap<Boolean> map;
+
+    public ObjectIdSet() {
+        this.map = new ObjectIdMap<>();
+    }
+
+    public ObjectIdSet(int expectedSize) {
+        this.map = new ObjectIdMap<>(expectedSize);
+    }
+
+    /**
+     * Add an ID; returns false if it was already present
+     */
+    public boolean add(ObjectId id) {
+        return map.putIfAbsent(id, Boolean.TRUE) == null;
+    }
+
+    public boolean contains(ObjectId id) {
+        return map.containsKey(id);
+    }
+
+    public boolean remove(ObjectId id) {
+        return map.remove(id) != null;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Iterate over a snapshot of the IDs
+     */
+    @Override
+    public Iterator<ObjectId> iterator() {
+        return map.keys().iterator();
+    }
+}
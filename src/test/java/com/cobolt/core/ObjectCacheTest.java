@@ -0,0 +1,70 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the segments of the object cache share their budgets
+ */
+class ObjectCacheTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    @Test
+    void objectLargerThanOneSegmentsShareIsCached() {
+        ObjectCache cache = new ObjectCache(ObjectCache.DEFAULT_METADATA_BYTES, ObjectCache.DEFAULT_BLOB_BYTES);
+        Blob large = blob(0, (int) (ObjectCache.DEFAULT_BLOB_BYTES / 16 + MIB));
+        cache.put(large.getObjectId(), large);
+
+        assertNotNull(cache.get(large.getObjectId()));
+        assertEquals(1, cache.getStats().getHits());
+    }
+
+    @Test
+    void objectLargerThanTheBudgetIsNotCached() {
+        ObjectCache cache = new ObjectCache(MIB, 4 * MIB);
+        Blob huge = blob(0, (int) (5 * MIB));
+        cache.put(huge.getObjectId(), huge);
+
+        assertNull(cache.get(huge.getObjectId()));
+        assertEquals(0, cache.getStats().getBlobBytes());
+    }
+
+    @Test
+    void leastRecentlyUsedObjectsAreEvictedAcrossSegments() {
+        ObjectCache cache = new ObjectCache(MIB, 4 * MIB);
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Blob blob = blob(i, (int) MIB - 1024);
+            cache.put(blob.getObjectId(), blob);
+            ids.add(blob.getObjectId());
+        }
+
+        ObjectCache.Stats stats = cache.getStats();
+        assertTrue(stats.getBlobBytes() <= 4 * MIB);
+        assertEquals(8, stats.getBlobEvictions());
+        for (int i = 0; i < 8; i++) {
+            assertFalse(cache.contains(ids.get(i)));
+        }
+        for (int i = 8; i < 12; i++) {
+            assertTrue(cache.contains(ids.get(i)));
+        }
+    }
+
+    private static Blob blob(int seed, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) seed;
+        Blob blob = new Blob(data);
+        blob.computeId();
+        return blob;
+    }
+}
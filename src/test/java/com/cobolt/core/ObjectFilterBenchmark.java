@@ -0,0 +1,69 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of existence checks for absent objects: {@link Repository#hasObject},
+ * answered by the Bloom filter, against a plain {@link Files#exists} on the
+ * loose object path, which is what a lookup cost without the filter. Not run
+ * by the build; start it with
+ *
+ * <pre>java -cp target/classes:target/test-classes com.cobolt.core.ObjectFilterBenchmark [misses] [objects]</pre>
+ *
+ * Each case is run twice and the second run is reported.
+ */
+public class ObjectFilterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int misses = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int objects = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Path workDir = Files.createTempDirectory("cobolt-filter-bench");
+        try (Repository repo = Repository.init(workDir)) {
+            for (int i = 0; i < objects; i++) {
+                repo.writeObject(new Blob(("object " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            String[] absent = new String[misses];
+            for (int i = 0; i < misses; i++) {
+                absent[i] = HashUtils.computeSHA1("absent " + i);
+            }
+            Path objectsDir = workDir.resolve(".cobolt").resolve("objects");
+
+            System.out.printf("%-14s %10s %10s%n", "path", "ms", "ns/miss");
+            for (int run = 0; run < 2; run++) {
+                long start = System.nanoTime();
+                for (String id : absent) {
+                    if (repo.hasObject(id)) {
+                        throw new IllegalStateException("Found absent object " + id);
+                    }
+                }
+                report(run, "filter", start, misses);
+
+                start = System.nanoTime();
+                for (String id : absent) {
+                    if (Files.exists(objectsDir.resolve(id.substring(0, 2)).resolve(id.substring(2)))) {
+                        throw new IllegalStateException("Found absent object " + id);
+                    }
+                }
+                report(run, "files-exists", start, misses);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(workDir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void report(int run, String label, long start, int misses) {
+        long nanos = System.nanoTime() - start;
+        if (run > 0) {
+            System.out.printf("%-14s %10.0f %10.0f%n", label, nanos / 1e6, (double) nanos / misses);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.HashUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the Bloom journal is compacted once folded into the filter,
+ * without losing IDs appended through a handle on the replaced journal
+ */
+class ObjectFilterTest {
+
+    @TempDir
+    Path objectsDir;
+
+    private ObjectDirectory objectDirectory;
+    private Path journalPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(objectsDir);
+        objectDirectory = new ObjectDirectory(objectsDir, Deflater.DEFAULT_COMPRESSION);
+        journalPath = objectsDir.resolve("info").resolve("bloom-journal");
+    }
+
+    @Test
+    void journalIsCompactedOnLoad() throws IOException {
+        List<String> ids = writeBlobs("first", ObjectFilter.FOLD_THRESHOLD * 2);
+        long grown = Files.size(journalPath);
+        assertTrue(grown > (long) ObjectFilter.FOLD_THRESHOLD * PackFile.ID_LENGTH);
+
+        try (ObjectFilter reader = new ObjectFilter(objectDirectory)) {
+            for (String id : ids) {
+                assertTrue(reader.mightContain(id));
+            }
+        }
+        assertTrue(Files.size(journalPath) < grown);
+
+        ids.addAll(writeBlobs("second", ObjectFilter.FOLD_THRESHOLD * 2));
+        try (ObjectFilter reader = new ObjectFilter(objectDirectory)) {
+            for (String id : ids) {
+                assertTrue(reader.mightContain(id));
+            }
+            assertFalse(reader.mightContain(HashUtils.computeSHA1("never written")));
+        }
+        assertEquals(PackFile.ID_LENGTH, Files.size(journalPath));
+        objectDirectory.close();
+    }
+
+    @Test
+    void appendsThroughReplacedJournalAreKept() throws IOException {
+        // The object directory keeps its journal open across the compaction below
+        writeBlobs("bulk", ObjectFilter.FOLD_THRESHOLD * 2);
+        try (ObjectFilter compactor = new ObjectFilter(objectDirectory)) {
+            assertFalse(compactor.mightContain(HashUtils.computeSHA1("never written")));
+        }
+        assertEquals(PackFile.ID_LENGTH, Files.size(journalPath));
+
+        String late = writeBlobs("late", 1).get(0);
+        assertEquals(2 * PackFile.ID_LENGTH, Files.size(journalPath));
+        objectDirectory.close();
+
+        try (ObjectFilter reader = new ObjectFilter(objectDirectory)) {
+            assertTrue(reader.mightContain(late));
+        }
+    }
+
+    @Test
+    void objectsJournaledElsewhereShowUpAfterRefresh() throws Exception {
+        String id = HashUtils.computeSHA1("elsewhere");
+        try (ObjectFilter reader = new ObjectFilter(objectDirectory);
+                ObjectFilter writer = new ObjectFilter(objectDirectory)) {
+            assertFalse(reader.mightContain(id));
+            writer.add(id);
+            Thread.sleep(ObjectFilter.REFRESH_MILLIS + 50);
+            assertTrue(reader.mightContain(id));
+        }
+    }
+
+    private List<String> writeBlobs(String prefix, int count) throws IOException {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Blob blob = new Blob((prefix + " " + i).getBytes(StandardCharsets.UTF_8));
+            blob.computeId();
+            objectDirectory.write(blob.getObjectId().name(), ObjectCodec.encode(blob));
+            ids.add(blob.getObjectId().name());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,64 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that objects queued in an inserter stay invisible to the
+ * repository until the batch is flushed
+ */
+class ObjectInserterTest {
+
+    @TempDir
+    Path workDir;
+
+    private Repository repo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        repo = Repository.init(workDir);
+        repo.setConfig("core.fsyncObjects", "false");
+    }
+
+    @Test
+    void discardedObjectsAreNeverVisible() throws IOException {
+        String id;
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            id = inserter.insert(new Blob(bytes("discarded")));
+            assertTrue(inserter.has(ObjectId.fromString(id)));
+            assertFalse(repo.hasObject(id));
+        }
+        assertFalse(repo.hasObject(id));
+        assertThrows(IOException.class, () -> repo.readObject(id));
+    }
+
+    @Test
+    void flushedObjectsAreVisible() throws IOException {
+        String id;
+        try (ObjectInserter inserter = repo.newObjectInserter()) {
+            id = inserter.insert(new Blob(bytes("flushed")));
+            inserter.flush();
+        }
+        assertTrue(repo.hasObject(id));
+        // Published objects go into the cache, so reading one back is a hit
+        long hits = repo.getObjectCacheStats().getHits();
+        assertArrayEquals(bytes("flushed"), ((Blob) repo.readObject(id)).data());
+        assertEquals(hits + 1, repo.getObjectCacheStats().getHits());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package com.cobolt.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmark of {@link Repository#readObject} on loose objects stored raw
+ * (core.compression=0) and compressed (the default level). Not run by the
+ * build; start it with
+ *
+ * <pre>java -cp target/classes:target/test-classes com.cobolt.core.ReadThroughputBenchmark [files] [passes]</pre>
+ *
+ * Each case reads every blob of a corpus of source-like files:
+ * <ul>
+ * <li>cold: page cache dropped and a fresh repository, so every read hits
+ * the disk. Dropping needs root; without it this equals warm.</li>
+ * <li>warm: page cache warm but a fresh repository, so every read opens and
+ * inflates the file</li>
+ * <li>cached: the same repository again, so every read is an object cache hit</li>
+ * </ul>
+ * The best of the passes is reported.
+ */
+public class ReadThroughputBenchmark {
+
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    private static final String[] WORDS = { "public", "private", "static", "final", "return", "if", "else",
+            "for", "while", "new", "int", "long", "String", "byte[]", "throws", "IOException", "null", "this" };
+
+    /** Keeps results live so the JIT cannot drop the work */
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path root = Files.createTempDirectory("cobolt-read-bench");
+        try {
+            List<byte[]> corpus = corpus(files, new Random(42));
+            long totalBytes = 0;
+            for (byte[] content : corpus) {
+                totalBytes += content.length;
+            }
+            System.out.printf("%d files, %.1f MiB of content%n", files, totalBytes / (1024.0 * 1024));
+            if (!dropCaches()) {
+                System.out.println("Cannot write " + DROP_CACHES + "; cold reads use a warm page cache");
+            }
+
+            System.out.printf("%-12s %-8s %10s %10s%n", "storage", "case", "MiB/s", "on disk");
+            for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.DEFAULT_COMPRESSION }) {
+                Path workDir = root.resolve("level" + level);
+                List<String> ids = populate(workDir, level, corpus);
+                String label = level == Deflater.NO_COMPRESSION ? "raw" : "compressed";
+                String onDisk = String.format("%.1f MiB", objectBytes(workDir) / (1024.0 * 1024));
+
+                double cold = 0;
+                double warm = 0;
+                double cached = 0;
+                for (int pass = 0; pass < passes; pass++) {
+                    dropCaches();
+                    try (Repository repo = new Repository(workDir)) {
+                        cold = Math.max(cold, readAll(repo, ids, totalBytes));
+                    }
+                    try (Repository repo = new Repository(workDir)) {
+                        warm = Math.max(warm, readAll(repo, ids, totalBytes));
+                        cached = Math.max(cached, readAll(repo, ids, totalBytes));
+                    }
+                }
+                System.out.printf("%-12s %-8s %10.1f %10s%n", label, "cold", cold, onDisk);
+                System.out.printf("%-12s %-8s %10.1f%n", label, "warm", warm);
+                System.out.printf("%-12s %-8s %10.1f%n", label, "cached", cached);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Read every object once and return the throughput in MiB/s of content
+     */
+    private static double readAll(Repository repo, List<String> ids, long totalBytes) throws IOException {
+        long start = System.nanoTime();
+        for (String id : ids) {
+            sink += ((Blob) repo.readObject(id)).data().length;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return totalBytes / seconds / (1024 * 1024);
+    }
+
+    private static List<String> populate(Path workDir, int level, List<byte[]> corpus) throws IOException {
+        Files.createDirectories(workDir);
+        try (Repository repo = Repository.init(workDir)) {
+            repo.setConfig("core.compression", Integer.toString(level));
+        }
+        List<String> ids = new ArrayList<>(corpus.size());
+        // Reopened so the compression level applies; objects are synced so the page cache can drop them
+        try (Repository repo = new Repository(workDir); ObjectInserter inserter = repo.newObjectInserter()) {
+            for (byte[] content : corpus) {
+                ids.add(inserter.insert(new Blob(content)));
+            }
+            inserter.flush();
+        }
+        return ids;
+    }
+
+    /**
+     * Files of 1 to 16 KiB of lines built from a small vocabulary, so they
+     * compress about as well as source code
+     */
+    private static List<byte[]> corpus(int files, Random random) {
+        List<byte[]> corpus = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            int size = 1024 + random.nextInt(15 * 1024);
+            StringBuilder text = new StringBuilder(size + 100);
+            text.append("// file ").append(i).append('\n');
+            while (text.length() < size) {
+                text.append("    ".repeat(1 + random.nextInt(3)));
+                int words = 3 + random.nextInt(8);
+                for (int w = 0; w < words; w++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                text.append("value").append(random.nextInt(100)).append(";\n");
+            }
+            corpus.add(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return corpus;
+    }
+
+    private static long objectBytes(Path workDir) throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir.resolve(".cobolt").resolve("objects"))) {
+            long total = 0;
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                total += Files.size(path);
+            }
+            return total;
+        }
+    }
+
+    private static boolean dropCaches() {
+        try {
+            Files.write(DROP_CACHES, "3".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.cobolt.core;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that pushes and pulls copy objects after everything they reference
+ * and that a full pull completes a partial one
+ */
+class RemoteUtilsTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Repository source;
+    private Repository dest;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = init(tempDir.resolve("source"));
+        dest = init(tempDir.resolve("dest"));
+    }
+
+    @Test
+    void pushCopiesMergedHistory() throws IOException {
+        String base = commit(source, files("a", "base"));
+        String left = commit(source, files("a", "left"), base);
+        String right = commit(source, files("b", "right"), base);
+        String merge = commit(source, files("a", "left", "b", "right"), left, right);
+        source.createBranch("main", merge);
+
+        RemoteUtils.push(source, dest, "main");
+
+        for (String id : new String[] { base, left, right, merge }) {
+            assertTrue(dest.hasObject(id));
+            assertTrue(dest.hasObject(((Commit) dest.readObject(id)).getTreeId()));
+        }
+        assertTrue(dest.hasObject(blobId("right")));
+    }
+
+    @Test
+    void failedPushNeverPublishesCommitWithoutItsObjects() throws IOException {
+        // Enough incompressible content that the batch flushes before the missing blob is reached
+        Random random = new Random(42);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] content = new byte[900 * 1024];
+            random.nextBytes(content);
+            files.put("f" + i, content);
+        }
+        files.put("z", bytes("lost"));
+        String commitId = commit(source, files);
+        source.createBranch("main", commitId);
+        String lost = blobId("lost");
+        Files.delete(source.getCoboltDir().resolve("objects").resolve(lost.substring(0, 2))
+                .resolve(lost.substring(2)));
+
+        Repository reopened = new Repository(source.getWorkingDir());
+        assertThrows(IOException.class, () -> RemoteUtils.push(reopened, dest, "main"));
+
+        Repository destReopened = new Repository(dest.getWorkingDir());
+        assertFalse(destReopened.hasObject(commitId));
+        assertFalse(destReopened.hasObject(((Commit) source.readObject(commitId)).getTreeId()));
+    }
+
+    @Test
+    void fullPullFetchesBlobsLeftOutByPartialPull() throws IOException {
+        String first = commit(source, files("a", "one"));
+        String second = commit(source, files("a", "two"), first);
+        source.createBranch("main", second);
+        dest.addRemote("origin", source.getWorkingDir().toString());
+
+        dest.pull("origin", "main", true);
+        assertTrue(dest.hasObject(second));
+        assertFalse(dest.hasObject(blobId("one")));
+
+        dest.pull("origin", "main", false);
+        assertTrue(dest.hasObject(blobId("one")));
+        assertTrue(dest.hasObject(blobId("two")));
+    }
+
+    private static Repository init(Path workDir) throws IOException {
+        Files.createDirectories(workDir);
+        Repository repo = Repository.init(workDir);
+        repo.setConfig("core.fsyncObjects", "false");
+        return repo;
+    }
+
+    private static String commit(Repository repo, Map<String, byte[]> files, String... parents) throws IOException {
+        Tree tree = new Tree();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            tree.addEntry(file.getKey(), repo.writeObject(new Blob(file.getValue())), "100644");
+        }
+        Commit commit = new Commit();
+        commit.setTreeId(repo.writeObject(tree));
+        commit.setMessage("commit");
+        commit.setAuthor("test");
+        commit.setCommitter("test");
+        for (String parent : parents) {
+            commit.addParent(parent);
+        }
+        return repo.writeObject(commit);
+    }
+
+    private static Map<String, byte[]> files(String... namesAndContents) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            files.put(namesAndContents[i], bytes(namesAndContents[i + 1]));
+        }
+        return files;
+    }
+
+    private static String blobId(String content) {
+        Blob blob = new Blob(bytes(content));
+        blob.computeId();
+        return blob.getObjectId().name();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
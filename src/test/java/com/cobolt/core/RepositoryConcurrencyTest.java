@@ -0,0 +1,202 @@
+package com.cobolt.core;
+
+import com.cobolt.objects.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hammers one shared Repository from a fixed thread pool and checks that
+ * the objects, the index and the refs it leaves behind are consistent
+ */
+class RepositoryConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int TASKS = 32;
+    private static final int OBJECTS_PER_TASK = 50;
+
+    @TempDir
+    Path workDir;
+
+    private Repository repo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        repo = Repository.init(workDir);
+        repo.setConfig("core.fsyncObjects", "false");
+    }
+
+    @Test
+    void concurrentInsertsAndReadsSeeEveryFlushedObject() throws Exception {
+        Map<ObjectId, byte[]> written = new ConcurrentHashMap<>();
+        // A few objects every task reads, so the cache segments see contention
+        List<ObjectId> shared = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            byte[] content = ("shared " + i).getBytes(StandardCharsets.UTF_8);
+            ObjectId id = ObjectId.fromString(repo.writeObject(new Blob(content)));
+            shared.add(id);
+            written.put(id, content);
+        }
+
+        runConcurrently(task -> {
+            List<ObjectId> mine = new ArrayList<>();
+            try (ObjectInserter inserter = repo.newObjectInserter()) {
+                for (int i = 0; i < OBJECTS_PER_TASK; i++) {
+                    byte[] content = ("task " + task + " object " + i).getBytes(StandardCharsets.UTF_8);
+                    ObjectId id = ObjectId.fromString(inserter.insert(new Blob(content)));
+                    mine.add(id);
+                    written.put(id, content);
+                }
+                inserter.flush();
+            }
+            for (int round = 0; round < 4; round++) {
+                for (ObjectId id : mine) {
+                    assertTrue(repo.hasObject(id));
+                    assertArrayEquals(written.get(id), ((Blob) repo.readObject(id)).getContent());
+                }
+                for (ObjectId id : shared) {
+                    assertArrayEquals(written.get(id), ((Blob) repo.readObject(id)).getContent());
+                }
+                ObjectId absent = ObjectId.fromString(new Blob("absent " + task + " " + round).getId());
+                assertFalse(repo.hasObject(absent));
+            }
+        });
+
+        assertEquals(16 + TASKS * OBJECTS_PER_TASK, written.size());
+        assertTrue(repo.getObjectCacheStats().getHits() > 0);
+
+        // Everything flushed is on disk, as a fresh instance without the cache sees it
+        Repository fresh = new Repository(workDir);
+        for (Map.Entry<ObjectId, byte[]> e : written.entrySet()) {
+            assertTrue(fresh.hasObject(e.getKey()));
+            assertArrayEquals(e.getValue(), ((Blob) fresh.readObject(e.getKey())).getContent());
+        }
+    }
+
+    @Test
+    void concurrentIndexUpdatesAreAllSaved() throws Exception {
+        runConcurrently(task -> {
+            for (int i = 0; i < OBJECTS_PER_TASK; i++) {
+                String path = "dir" + task + "/file" + i;
+                ObjectId id = ObjectId.fromString(repo.writeObject(new Blob(path)));
+                repo.getIndexLock().lock();
+                try {
+                    repo.getIndex().add(path, id, "100644");
+                } finally {
+                    repo.getIndexLock().unlock();
+                }
+                if (i % 10 == 0) {
+                    repo.saveIndex();
+                }
+            }
+        });
+        repo.saveIndex();
+
+        Index index = new Repository(workDir).getIndex();
+        assertEquals(TASKS * OBJECTS_PER_TASK, index.getEntries().size());
+        for (int task = 0; task < TASKS; task++) {
+            for (int i = 0; i < OBJECTS_PER_TASK; i++) {
+                String path = "dir" + task + "/file" + i;
+                Index.IndexEntry entry = index.getEntry(path);
+                assertNotNull(entry, path);
+                assertEquals(new Blob(path).getObjectId(), entry.getObjectId());
+            }
+        }
+    }
+
+    @Test
+    void concurrentCommitsOnOneBranchFormASingleChain() throws Exception {
+        String treeId = repo.writeObject(new Tree());
+        int commitsPerTask = 5;
+
+        runConcurrently(task -> {
+            for (int i = 0; i < commitsPerTask; i++) {
+                // Retry on the latest tip until the compare-and-set wins
+                while (true) {
+                    Reference tip = repo.getBranch("main");
+                    String parent = tip != null ? tip.getTarget() : null;
+
+                    Commit commit = new Commit();
+                    commit.setTreeId(treeId);
+                    commit.setMessage("task " + task + " commit " + i);
+                    commit.setAuthor("test");
+                    commit.setCommitter("test");
+                    if (parent != null) {
+                        commit.addParent(parent);
+                    }
+                    String commitId;
+                    try (ObjectInserter inserter = repo.newObjectInserter()) {
+                        commitId = inserter.insert(commit);
+                        inserter.flush();
+                    }
+                    if (repo.updateBranch("main", parent, commitId)) {
+                        break;
+                    }
+                }
+            }
+        });
+
+        // Every commit made it into the chain exactly once
+        Set<String> messages = new HashSet<>();
+        String id = repo.getBranch("main").getTarget();
+        while (id != null) {
+            Commit commit = (Commit) new Repository(workDir).readObject(id);
+            assertTrue(messages.add(commit.getMessage()), commit.getMessage());
+            List<String> parents = commit.getParentIds();
+            id = parents.isEmpty() ? null : parents.get(0);
+        }
+        assertEquals(TASKS * commitsPerTask, messages.size());
+    }
+
+    /**
+     * Run TASKS tasks on a pool of THREADS threads, all released at once,
+     * and fail with the first error any of them threw
+     */
+    private static void runConcurrently(Task task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < TASKS; t++) {
+                int n = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    task.run(n);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run(int task) throws Exception;
+    }
+}
@@ -0,0 +1,57 @@
+package com.cobolt.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that status hashing copes with files changing under it
+ */
+class StatusEngineTest {
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void unchangedFileHashesAsItsBlob() throws IOException {
+        Path file = write("file.txt", "hello world\n");
+        FileStat stat = FileStat.of(file);
+
+        assertEquals("3b18e512dba79e4c8300dd08aeb37f8e728b8dad", StatusEngine.hashFile(file, stat).name());
+    }
+
+    @Test
+    void fileTruncatedAfterStatIsReportedChanged() throws IOException {
+        Path file = write("file.txt", "hello world\n");
+        FileStat stat = FileStat.of(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(5);
+        }
+
+        assertNull(StatusEngine.hashFile(file, stat));
+    }
+
+    @Test
+    void fileGrownAfterStatIsReportedChanged() throws IOException {
+        Path file = write("file.txt", "hello world\n");
+        FileStat stat = FileStat.of(file);
+        Files.write(file, "more\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertNull(StatusEngine.hashFile(file, stat));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        Path file = workDir.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,114 @@
+package com.cobolt.objects;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Micro-benchmark of the object hashing paths: a digest created per object
+ * (how hashing used to work), the one-shot per-thread digest, the stream
+ * path and an {@link ObjectHasher} fed in pieces. Not run by the build;
+ * start it with
+ *
+ * <pre>java -cp target/classes:target/test-classes com.cobolt.objects.HashBenchmark [millis per case]</pre>
+ *
+ * Each case is warmed up for the same time it is measured.
+ */
+public class HashBenchmark {
+
+    private static final int[] SIZES = { 100, 4 * 1024, 64 * 1024, 1024 * 1024 };
+
+    /** Keeps results live so the JIT cannot drop the work */
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Random random = new Random(42);
+
+        System.out.printf("%-10s %-14s %12s %10s%n", "size", "path", "ns/object", "MB/s");
+        for (int size : SIZES) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            check(content);
+            for (Case c : Case.values()) {
+                run(c, content, millis);
+                double nanos = run(c, content, millis);
+                System.out.printf("%-10d %-14s %12.0f %10.1f%n", size, c.label, nanos,
+                        size / nanos * 1e9 / (1024 * 1024));
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Hash repeatedly for about {@code millis} and return nanoseconds per object
+     */
+    private static double run(Case c, byte[] content, long millis) throws IOException {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long count = 0;
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < 16; i++) {
+                sink += c.hash(content).hashCode();
+            }
+            count += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - start) / count;
+    }
+
+    private static void check(byte[] content) throws IOException {
+        ObjectId expected = Case.FRESH_DIGEST.hash(content);
+        for (Case c : Case.values()) {
+            if (!c.hash(content).equals(expected)) {
+                throw new IllegalStateException(c.label + " disagrees for " + content.length + " bytes");
+            }
+        }
+    }
+
+    private enum Case {
+        FRESH_DIGEST("fresh-digest") {
+            @Override
+            ObjectId hash(byte[] content) {
+                MessageDigest digest = HashUtils.newSHA1();
+                digest.update(HashUtils.objectHeader("blob", content.length));
+                digest.update(content);
+                return ObjectId.fromRaw(digest.digest());
+            }
+        },
+        ONE_SHOT("one-shot") {
+            @Override
+            ObjectId hash(byte[] content) {
+                return HashUtils.hashObject("blob", content);
+            }
+        },
+        STREAM("stream") {
+            @Override
+            ObjectId hash(byte[] content) throws IOException {
+                return HashUtils.hashObject("blob", content.length, new ByteArrayInputStream(content));
+            }
+        },
+        HASHER("hasher-8k") {
+            @Override
+            ObjectId hash(byte[] content) {
+                ObjectHasher hasher = HashUtils.newObjectHasher("blob", content.length);
+                for (int offset = 0; offset < content.length; offset += 8192) {
+                    hasher.update(content, offset, Math.min(8192, content.length - offset));
+                }
+                return hasher.finish();
+            }
+        };
+
+        final String label;
+
+        Case(String label) {
+            this.label = label;
+        }
+
+        abstract ObjectId hash(byte[] content) throws IOException;
+    }
+}
@@ -0,0 +1,47 @@
+package com.cobolt.objects;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HashUtilsTest {
+
+    private static final byte[] CONTENT = "hello world\n".getBytes(StandardCharsets.UTF_8);
+
+    /** ID of "hello world\n" as a blob, the same as git's */
+    private static final ObjectId HELLO = ObjectId.fromString("3b18e512dba79e4c8300dd08aeb37f8e728b8dad");
+
+    @Test
+    void everyHashingPathAgrees() throws Exception {
+        assertEquals(HELLO, HashUtils.hashObject("blob", CONTENT));
+        assertEquals(HELLO, HashUtils.hashObject("blob", CONTENT.length, new ByteArrayInputStream(CONTENT)));
+
+        ObjectHasher hasher = HashUtils.newObjectHasher("blob", CONTENT.length);
+        hasher.update(CONTENT, 0, 5);
+        hasher.update(CONTENT, 5, CONTENT.length - 5);
+        assertEquals(HELLO, hasher.finish());
+    }
+
+    @Test
+    void pooledDigestsAreNotShared() {
+        // A hasher opened while another is in use, as chunking does, must get its own digest
+        ObjectHasher outer = HashUtils.newObjectHasher("blob", CONTENT.length);
+        outer.update(CONTENT, 0, 3);
+        for (int i = 0; i < 3; i++) {
+            ObjectHasher inner = HashUtils.newObjectHasher("blob", CONTENT.length);
+            inner.update(CONTENT, 0, CONTENT.length);
+            assertEquals(HELLO, inner.finish());
+            assertEquals(HELLO, HashUtils.hashObject("blob", CONTENT));
+        }
+        outer.update(CONTENT, 3, CONTENT.length - 3);
+        assertEquals(HELLO, outer.finish());
+
+        // And a digest returned to the pool starts clean
+        ObjectHasher reused = HashUtils.newObjectHasher("blob", CONTENT.length);
+        reused.update(CONTENT, 0, CONTENT.length);
+        assertEquals(HELLO, reused.finish());
+    }
+}